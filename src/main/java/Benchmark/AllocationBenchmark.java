@@ -0,0 +1,102 @@
+package Benchmark;
+
+import bptree.PageProxyCursor;
+import bptree.impl.DiskCache;
+import bptree.impl.IndexTree;
+import bptree.impl.SearchCursor;
+import org.neo4j.io.pagecache.PagedFile;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+/**
+ * Measures the bytes allocated by the lookups and scans of a join loop, through the allocating find and next, and
+ * through a reused SearchCursor which decodes into a reused key.
+ */
+public class AllocationBenchmark {
+    static final int KEY_LENGTH = 4;
+    static final int PATHS = 1000;
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    IndexTree tree;
+    DiskCache disk;
+
+    public static void main(String[] args) throws IOException {
+        for(boolean compressed : new boolean[]{false, true}) {
+            AllocationBenchmark benchmark = new AllocationBenchmark(1000000, compressed);
+            benchmark.run(100000);
+            benchmark.disk.shutdown();
+        }
+    }
+
+    public AllocationBenchmark(int numberOfKeys, boolean compressed) throws IOException {
+        disk = DiskCache.temporaryDiskCache(numberOfKeys + "allocation_benchmark.dat", compressed);
+        tree = new IndexTree(KEY_LENGTH, disk);
+        long[] key = new long[KEY_LENGTH];
+        for(int i = 0; i < numberOfKeys; i++){
+            key[0] = 1 + (i % PATHS); //a compressed leaf ends at the first key with a path id of zero
+            key[1] = i / PATHS;
+            key[2] = i;
+            key[3] = i;
+            tree.insert(key);
+        }
+    }
+
+    public void run(int lookups) throws IOException {
+        long[] prefix = new long[2];
+        try(PageProxyCursor cursor = disk.getCursor(tree.rootNodeId, PagedFile.PF_SHARED_LOCK)) {
+            for(int warmup = 0; warmup < 3; warmup++) {
+                allocatingLookups(cursor, lookups);
+                reusingLookups(cursor, prefix, lookups);
+            }
+            long startBytes = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            long startTime = System.nanoTime();
+            long found = allocatingLookups(cursor, lookups);
+            long allocatingTime = System.nanoTime() - startTime;
+            long allocatingBytes = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - startBytes;
+
+            startBytes = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            startTime = System.nanoTime();
+            reusingLookups(cursor, prefix, lookups);
+            long reusingTime = System.nanoTime() - startTime;
+            long reusingBytes = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - startBytes;
+
+            StringBuilder strBuilder = new StringBuilder();
+            strBuilder.append("\n ------- Allocation, compressed: ").append(disk.COMPRESSION).append(" -------");
+            strBuilder.append("\n Lookups: ").append(lookups).append(" Keys found: ").append(found);
+            strBuilder.append("\n find and next - bytes per lookup: ").append(allocatingBytes / lookups);
+            strBuilder.append(" Time(ms): ").append(allocatingTime / 1000000);
+            strBuilder.append("\n reused SearchCursor and key - bytes per lookup: ").append(reusingBytes / lookups);
+            strBuilder.append(" Time(ms): ").append(reusingTime / 1000000);
+            Benchmark.logToFile(strBuilder.toString());
+        }
+    }
+
+    private long allocatingLookups(PageProxyCursor cursor, int lookups) throws IOException {
+        Random random = new Random(0);
+        long found = 0;
+        for(int i = 0; i < lookups; i++){
+            SearchCursor result = tree.find(cursor, new long[]{1 + random.nextInt(PATHS), random.nextInt(PATHS)});
+            while(result.next(cursor) != null){
+                found++;
+            }
+        }
+        return found;
+    }
+
+    private long reusingLookups(PageProxyCursor cursor, long[] prefix, int lookups) throws IOException {
+        Random random = new Random(0);
+        SearchCursor result = new SearchCursor();
+        long[] key = new long[KEY_LENGTH];
+        long found = 0;
+        for(int i = 0; i < lookups; i++){
+            prefix[0] = 1 + random.nextInt(PATHS);
+            prefix[1] = random.nextInt(PATHS);
+            tree.find(cursor, prefix, result);
+            while(result.next(cursor, key)){
+                found++;
+            }
+        }
+        return found;
+    }
+}
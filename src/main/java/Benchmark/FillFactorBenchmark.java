@@ -0,0 +1,101 @@
+package Benchmark;
+
+import PageCacheSort.Sorter;
+import bptree.impl.DiskCache;
+import bptree.impl.IndexTree;
+import bptree.impl.PipelinedIndexBuilder;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Measures the latency of inserts into a freshly bulk loaded index, at several fill factors. The inserted keys are
+ * spread over the whole index, as the joins insert into a freshly built K2 or K3 index, so at a fill factor of 100%
+ * nearly every one of the first inserts splits the leaf it lands in.
+ *
+ * The index is built either from keys added in order, or from keys added out of order to a Sorter which sorts them
+ * into the builder, as the path indexes are built. Both fill the leaves and internal nodes to the fill factor.
+ */
+public class FillFactorBenchmark {
+    static final int KEY_LENGTH = 3;
+    static final int PATHS = 1000;
+    IndexTree tree;
+    DiskCache disk;
+    int numberOfKeys;
+    boolean sorted;
+
+    public static void main(String[] args) throws IOException {
+        for(boolean sorted : new boolean[]{false, true}) {
+            for(boolean compressed : new boolean[]{false, true}) {
+                for(double fillFactor : new double[]{0.7, 0.85, 1.0}) {
+                    FillFactorBenchmark benchmark = new FillFactorBenchmark(10000000, fillFactor, compressed, sorted);
+                    benchmark.run(fillFactor, 200000);
+                    benchmark.disk.shutdown();
+                }
+            }
+        }
+    }
+
+    public FillFactorBenchmark(int numberOfKeys, double fillFactor, boolean compressed, boolean sorted) throws IOException {
+        this.numberOfKeys = numberOfKeys;
+        this.sorted = sorted;
+        disk = DiskCache.temporaryDiskCache(numberOfKeys + "fill_factor_benchmark.dat", compressed);
+        PipelinedIndexBuilder builder = new PipelinedIndexBuilder(disk, KEY_LENGTH, fillFactor);
+        if(sorted){
+            Sorter sorter = new Sorter(KEY_LENGTH);
+            for(int i = 0; i < numberOfKeys; i++){
+                sorter.addUnsortedKey(keyOf((int) ((i * 7919l) % numberOfKeys))); //every key once, out of order
+            }
+            tree = sorter.sortInto(builder);
+        }
+        else{
+            for(int i = 0; i < numberOfKeys; i++){
+                builder.addKey(keyOf(i));
+            }
+            tree = builder.finish();
+        }
+    }
+
+    private long[] keyOf(int i){
+        return new long[]{pathOf(i), i * 2l, i * 2l};
+    }
+
+    /*
+    A compressed leaf ends at the first key with a path id of zero, so path ids start at one.
+     */
+    private long pathOf(int i){
+        return 1 + (i / (numberOfKeys / PATHS));
+    }
+
+    /*
+    Inserts keys with odd node ids, each just after a random bulk loaded key.
+     */
+    public void run(double fillFactor, int inserts) throws IOException {
+        Random random = new Random(0);
+        long[] latencies = new long[inserts];
+        long pagesBefore = disk.freePages.nextNewPage();
+        long startTime = System.nanoTime();
+        for(int i = 0; i < inserts; i++){
+            int after = random.nextInt(numberOfKeys);
+            long[] key = new long[]{pathOf(after), after * 2l + 1, after * 2l + 1};
+            long insertStart = System.nanoTime();
+            tree.insert(key);
+            latencies[i] = System.nanoTime() - insertStart;
+        }
+        long totalTime = System.nanoTime() - startTime;
+        Arrays.sort(latencies);
+
+        StringBuilder strBuilder = new StringBuilder();
+        strBuilder.append("\n ------- Inserts after bulk load, fill factor: ").append(fillFactor);
+        strBuilder.append(" compressed: ").append(disk.COMPRESSION);
+        strBuilder.append(" through sorter: ").append(sorted).append(" -------");
+        strBuilder.append("\n Inserts: ").append(inserts).append(" Time(ms): ").append(totalTime / 1000000);
+        strBuilder.append("\n Latency(ns) mean: ").append(totalTime / inserts);
+        strBuilder.append(" median: ").append(latencies[inserts / 2]);
+        strBuilder.append(" p99: ").append(latencies[(int) (inserts * 0.99)]);
+        strBuilder.append(" max: ").append(latencies[inserts - 1]);
+        strBuilder.append("\n Pages added by splits: ").append(disk.freePages.nextNewPage() - pagesBefore);
+        Benchmark.logToFile(strBuilder.toString());
+    }
+}
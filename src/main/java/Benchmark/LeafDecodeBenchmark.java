@@ -0,0 +1,100 @@
+package Benchmark;
+
+import bptree.PageProxyCursor;
+import bptree.impl.DiskCache;
+import bptree.impl.IndexTree;
+import bptree.impl.NodeHeader;
+import bptree.impl.PipelinedIndexBuilder;
+import bptree.impl.SuperCompressedPageCursor;
+import org.neo4j.io.pagecache.PagedFile;
+
+import java.io.IOException;
+
+/**
+ * Measures how fast the compressed leaves of a K3 index, of five longs per key, are decoded. Every leaf is decoded
+ * whole as the cursor moves to it, and then again key by key through a streaming cursor, as a scan reads them.
+ */
+public class LeafDecodeBenchmark {
+    static final int KEY_LENGTH = 5;
+    static final int PATHS = 1000;
+    IndexTree tree;
+    DiskCache disk;
+    long firstLeaf;
+    long checksum; //the sum of every key read, logged so the reads cannot be left out
+
+    public static void main(String[] args) throws IOException {
+        LeafDecodeBenchmark benchmark = new LeafDecodeBenchmark(5000000);
+        benchmark.run(20);
+        benchmark.disk.shutdown();
+    }
+
+    public LeafDecodeBenchmark(int numberOfKeys) throws IOException {
+        disk = DiskCache.temporaryDiskCache(numberOfKeys + "leaf_decode_benchmark.dat", true);
+        PipelinedIndexBuilder builder = new PipelinedIndexBuilder(disk, KEY_LENGTH);
+        long[] key = new long[KEY_LENGTH];
+        for(int i = 0; i < numberOfKeys; i++){
+            key[0] = 1 + (i / (numberOfKeys / PATHS)); //a compressed leaf ends at the first key with a path id of zero
+            key[1] = i / 10;
+            key[2] = i * 3l;
+            key[3] = i * 7l;
+            key[4] = i * 1000003l;
+            builder.addKey(key);
+        }
+        tree = builder.finish();
+        try(PageProxyCursor cursor = disk.getCursor(tree.rootNodeId, PagedFile.PF_SHARED_LOCK)){
+            while(!NodeHeader.isLeafNode(cursor)){
+                cursor.next(tree.getChildIdAtIndex(cursor, 0));
+            }
+            firstLeaf = cursor.getCurrentPageId();
+        }
+    }
+
+    public void run(int iterations) throws IOException {
+        for(int warmup = 0; warmup < 3; warmup++){
+            decodeLeaves(false);
+            decodeLeaves(true);
+        }
+        for(boolean streaming : new boolean[]{false, true}) {
+            long keys = 0;
+            checksum = 0;
+            long startTime = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                keys += decodeLeaves(streaming);
+            }
+            long time = System.nanoTime() - startTime;
+            StringBuilder strBuilder = new StringBuilder();
+            strBuilder.append("\n ------- Leaf decoding, key length: ").append(KEY_LENGTH);
+            strBuilder.append(" streaming: ").append(streaming).append(" -------");
+            strBuilder.append("\n Keys decoded: ").append(keys).append(" Time(ms): ").append(time / 1000000);
+            strBuilder.append(" Checksum: ").append(checksum);
+            strBuilder.append("\n Keys per second: ").append((long) (keys / (time / 1000000000d)));
+            strBuilder.append(" Decoded MB per second: ").append((long) ((keys * KEY_LENGTH * Long.BYTES) / (time / 1000d)));
+            Benchmark.logToFile(strBuilder.toString());
+        }
+    }
+
+    /*
+    The keys are summed into the checksum so the reads of the streaming cursor cannot be left out.
+     */
+    private long decodeLeaves(boolean streaming) throws IOException {
+        long keys = 0;
+        long sum = 0;
+        try(PageProxyCursor cursor = new SuperCompressedPageCursor(disk, firstLeaf, PagedFile.PF_SHARED_LOCK, streaming)){
+            long leaf = firstLeaf;
+            while(leaf != -1){
+                cursor.next(leaf);
+                int numberOfKeys = NodeHeader.getNumberOfKeys(cursor);
+                if(streaming){
+                    cursor.setOffset(NodeHeader.NODE_HEADER_LENGTH);
+                    for(int i = 0; i < numberOfKeys * KEY_LENGTH; i++){
+                        sum += cursor.getLong();
+                    }
+                }
+                keys += numberOfKeys;
+                leaf = NodeHeader.getSiblingID(cursor);
+            }
+        }
+        checksum += sum;
+        return keys;
+    }
+}
@@ -17,6 +17,10 @@ public class SortBenchmark {
 
         sortBenchmark.smallestExample();
 
+        //sortBenchmark.parallelMerge(Runtime.getRuntime().availableProcessors());
+
+        //sortBenchmark.radixSortedRuns(256);
+
         //sortBenchmark.randomSorting();
     }
 
@@ -52,6 +56,36 @@ public class SortBenchmark {
         }
     }
 
+    public void parallelMerge(int threads) throws IOException {
+        sorter = new Sorter(4);
+        sorter.MERGE_THREADS = threads;
+        writeRandomKeysToSorter(sorter, 10000000);
+        long startTime = System.nanoTime();
+
+        SetIterator itr = sorter.sort();
+
+        String text = "ParallelMerge - Merge Set Size:" + sorter.FAN_IN + " Threads: " + threads + " Duration: " + ((System.nanoTime() - startTime) / 1000000);
+        try(PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter("sorting_benchmarking.txt", true)))) {
+            out.println(text);
+            System.out.println(text);
+        }
+    }
+
+    public void radixSortedRuns(int runBufferMB) throws IOException {
+        sorter = new Sorter(4);
+        sorter.RUN_BUFFER_MB = runBufferMB;
+        sorter.RUN_SORT_THREADS = Runtime.getRuntime().availableProcessors();
+        long startTime = System.nanoTime();
+        writeRandomKeysToSorter(sorter, 10000000);
+        SetIterator itr = sorter.sort();
+
+        String text = "RadixSortedRuns - Run buffer(MB):" + runBufferMB + " Duration including run generation: " + ((System.nanoTime() - startTime) / 1000000);
+        try(PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter("sorting_benchmarking.txt", true)))) {
+            out.println(text);
+            System.out.println(text);
+        }
+    }
+
     public void writeUnsortedKeysToSorter(Sorter sorter, int count) throws IOException {
         long[] key = new long[4];
         for(int i = 2; i < count; i++){
@@ -0,0 +1,82 @@
+package Join;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Joins two scans in any order. The right scan is read into a table keyed on its join columns, then the left scan
+ * is streamed against it.
+ */
+public class HashJoin implements JoinCursor {
+    PrefixScan left;
+    PrefixScan right;
+    int[] leftColumns;
+    int[] rightColumns;
+    HashMap<Long, ArrayList<long[]>> table;
+    long[] leftKey;
+    long[] rightKey;
+    ArrayList<long[]> candidates;
+    int candidateIndex;
+
+    public HashJoin(PrefixScan left, int[] leftColumns, PrefixScan right, int[] rightColumns){
+        this.left = left;
+        this.right = right;
+        this.leftColumns = leftColumns;
+        this.rightColumns = rightColumns;
+        this.leftKey = new long[left.keyLength()];
+    }
+
+    private void build() throws IOException {
+        table = new HashMap<>();
+        long[] key = new long[right.keyLength()];
+        while(right.next(key)){
+            table.computeIfAbsent(hash(key, rightColumns), h -> new ArrayList<>()).add(key.clone());
+        }
+    }
+
+    @Override
+    public boolean next() throws IOException {
+        if(table == null)
+            build();
+        while(true){
+            if(candidates != null){
+                while(candidateIndex < candidates.size()){
+                    long[] candidate = candidates.get(candidateIndex++);
+                    if(Joins.matches(leftKey, leftColumns, candidate, rightColumns, 0)){
+                        rightKey = candidate;
+                        return true;
+                    }
+                }
+            }
+            if(!left.next(leftKey))
+                return false;
+            candidates = table.get(hash(leftKey, leftColumns));
+            candidateIndex = 0;
+        }
+    }
+
+    static long hash(long[] key, int[] columns){
+        long hash = 17;
+        for(int column : columns){
+            hash = hash * 31 + key[column];
+        }
+        return hash;
+    }
+
+    @Override
+    public long[] left() {
+        return leftKey;
+    }
+
+    @Override
+    public long[] right() {
+        return rightKey;
+    }
+
+    @Override
+    public void close() throws IOException {
+        left.close();
+        right.close();
+    }
+}
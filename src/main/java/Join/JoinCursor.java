@@ -0,0 +1,19 @@
+package Join;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * The pairs of keys of two scans which are equal on the join columns, produced one pair at a time.
+ * The arrays returned by left() and right() are reused, so they must be copied to be kept past the next call to next().
+ */
+public interface JoinCursor extends Closeable {
+    /**
+     * Moves to the next pair of keys, returns false when there are no more.
+     */
+    boolean next() throws IOException;
+
+    long[] left();
+
+    long[] right();
+}
@@ -0,0 +1,10 @@
+package Join;
+
+import java.io.IOException;
+
+/**
+ * Receives each matching pair of a PartitionedHashJoin. The arrays are reused between calls.
+ */
+public interface JoinVisitor {
+    void visit(long[] build, long[] probe) throws IOException;
+}
@@ -0,0 +1,36 @@
+package Join;
+
+import java.io.IOException;
+
+/**
+ * Chooses how to join two prefix scans. A merge join is used when both scans are sorted on the first pair of join
+ * columns, otherwise the right scan is read into a hash table and the left scan streamed against it.
+ */
+public class Joins {
+
+    /**
+     * Joins the keys of the scans where left[leftColumns[i]] == right[rightColumns[i]] for every i.
+     * Closing the returned cursor closes both scans.
+     */
+    public static JoinCursor join(PrefixScan left, int[] leftColumns, PrefixScan right, int[] rightColumns) throws IOException {
+        if(leftColumns.length != rightColumns.length || leftColumns.length == 0)
+            throw new IllegalArgumentException("Join columns must be given in pairs");
+        int sortedColumns = 0;
+        while(sortedColumns < leftColumns.length
+                && left.isSortedOn(leftColumns, sortedColumns + 1)
+                && right.isSortedOn(rightColumns, sortedColumns + 1)){
+            sortedColumns++;
+        }
+        if(sortedColumns > 0)
+            return new MergeJoin(left, leftColumns, right, rightColumns, sortedColumns);
+        return new HashJoin(left, leftColumns, right, rightColumns);
+    }
+
+    static boolean matches(long[] left, int[] leftColumns, long[] right, int[] rightColumns, int fromColumn){
+        for(int i = fromColumn; i < leftColumns.length; i++){
+            if(left[leftColumns[i]] != right[rightColumns[i]])
+                return false;
+        }
+        return true;
+    }
+}
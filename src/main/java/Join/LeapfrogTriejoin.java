@@ -0,0 +1,103 @@
+package Join;
+
+import bptree.KeyVisitor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Finds every binding of a set of variables which appears in all of the given tries, one variable at a time. The
+ * tries taking part in a variable are intersected by seeking each one to the largest value of the others, so the
+ * work done is bounded by the size of the result rather than by the joins of pairs of tries. This makes cyclic
+ * patterns such as rectangles cheap, where pairwise joins produce far more intermediate paths than results.
+ *
+ * Every variable of a trie must come after the variables of its levels above, in the order the variables are bound.
+ */
+public class LeapfrogTriejoin {
+    final int variables;
+    final TrieIterator[][] participants; //the tries with a level for each variable
+    final long[] binding;
+    KeyVisitor visitor;
+    long results;
+    boolean stopped;
+
+    /**
+     * @param variablesOfTries the variable of each level of each trie, in level order.
+     */
+    public LeapfrogTriejoin(int variables, TrieIterator[] tries, int[][] variablesOfTries){
+        this.variables = variables;
+        this.binding = new long[variables];
+        participants = new TrieIterator[variables][];
+        for(int variable = 0; variable < variables; variable++){
+            ArrayList<TrieIterator> triesOnVariable = new ArrayList<>();
+            for(int i = 0; i < tries.length; i++){
+                int[] trieVariables = variablesOfTries[i];
+                for(int level = 0; level < trieVariables.length; level++){
+                    if(level > 0 && trieVariables[level] <= trieVariables[level - 1])
+                        throw new IllegalArgumentException("The levels of trie " + i + " are not in variable order: " + Arrays.toString(trieVariables));
+                    if(trieVariables[level] == variable)
+                        triesOnVariable.add(tries[i]);
+                }
+            }
+            if(triesOnVariable.isEmpty())
+                throw new IllegalArgumentException("Variable " + variable + " is not in any trie");
+            participants[variable] = triesOnVariable.toArray(new TrieIterator[triesOnVariable.size()]);
+        }
+    }
+
+    /**
+     * Passes each binding of the variables to the visitor, until it returns false.
+     * @return the number of bindings visited.
+     */
+    public long run(KeyVisitor visitor) throws IOException {
+        this.visitor = visitor;
+        results = 0;
+        stopped = false;
+        join(0);
+        return results;
+    }
+
+    private void join(int variable) throws IOException {
+        if(variable == variables){
+            results++;
+            stopped = !visitor.visit(binding);
+            return;
+        }
+        TrieIterator[] tries = participants[variable];
+        for(TrieIterator trie : tries){
+            trie.open();
+        }
+        if(!anyAtEnd(tries)) {
+            Arrays.sort(tries, (a, b) -> Long.compare(a.key(), b.key()));
+            int p = 0;
+            long max = tries[tries.length - 1].key();
+            while(!stopped){
+                TrieIterator trie = tries[p];
+                if(trie.key() == max){
+                    binding[variable] = max;
+                    join(variable + 1);
+                    trie.next();
+                }
+                else{
+                    trie.seek(max);
+                }
+                if(trie.atEnd())
+                    break;
+                max = trie.key();
+                p = (p + 1) % tries.length;
+            }
+        }
+        for(TrieIterator trie : tries){
+            trie.up();
+        }
+    }
+
+    private static boolean anyAtEnd(TrieIterator[] tries){
+        for(TrieIterator trie : tries){
+            if(trie.atEnd())
+                return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,107 @@
+package Join;
+
+import java.util.Arrays;
+
+/**
+ * A hash table from long keys to rows of longs, held in flat arrays so that a build side of millions of rows does not
+ * allocate an object per row. Slots are found by linear probing, rows with the same key are chained through next.
+ */
+public class LongHashTable {
+    public final int rowLength;
+    long[] slotKeys;
+    int[] heads; //first row of each slot, -1 if the slot is empty
+    int mask;
+    int distinctKeys = 0;
+    long[] rows;
+    int[] next;
+    public int size = 0;
+
+    public LongHashTable(int rowLength, int expectedRows){
+        this.rowLength = rowLength;
+        int capacity = Integer.highestOneBit(Math.max(16, expectedRows) * 2 - 1) << 1;
+        slotKeys = new long[capacity];
+        heads = new int[capacity];
+        Arrays.fill(heads, -1);
+        mask = capacity - 1;
+        rows = new long[Math.max(16, expectedRows) * rowLength];
+        next = new int[Math.max(16, expectedRows)];
+    }
+
+    public static long hash(long key){
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        return key ^ (key >>> 33);
+    }
+
+    public void add(long key, long[] row){
+        if(size == next.length){
+            rows = Arrays.copyOf(rows, rows.length * 2);
+            next = Arrays.copyOf(next, next.length * 2);
+        }
+        System.arraycopy(row, 0, rows, size * rowLength, rowLength);
+        int slot = slot(key);
+        if(heads[slot] == -1){
+            slotKeys[slot] = key;
+            next[size] = -1;
+            heads[slot] = size;
+            if(++distinctKeys * 2 > heads.length){
+                rehash();
+            }
+        }
+        else{
+            next[size] = heads[slot];
+            heads[slot] = size;
+        }
+        size++;
+    }
+
+    /**
+     * @return the last row added with this key, or -1 if there is none.
+     */
+    public int first(long key){
+        return heads[slot(key)];
+    }
+
+    /**
+     * @return the row added before the given row with the same key, or -1 if there is none.
+     */
+    public int next(int row){
+        return next[row];
+    }
+
+    public void copyRow(int row, long[] dest){
+        System.arraycopy(rows, row * rowLength, dest, 0, rowLength);
+    }
+
+    public void clear(){
+        Arrays.fill(heads, -1);
+        distinctKeys = 0;
+        size = 0;
+    }
+
+    private int slot(long key){
+        int slot = (int) hash(key) & mask;
+        while(heads[slot] != -1 && slotKeys[slot] != key){
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void rehash(){
+        long[] oldKeys = slotKeys;
+        int[] oldHeads = heads;
+        slotKeys = new long[oldKeys.length * 2];
+        heads = new int[oldHeads.length * 2];
+        Arrays.fill(heads, -1);
+        mask = heads.length - 1;
+        for(int i = 0; i < oldHeads.length; i++){
+            if(oldHeads[i] != -1){
+                int slot = slot(oldKeys[i]);
+                slotKeys[slot] = oldKeys[i];
+                heads[slot] = oldHeads[i];
+            }
+        }
+    }
+}
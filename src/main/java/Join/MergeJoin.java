@@ -0,0 +1,136 @@
+package Join;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Joins two scans sorted on their first sortedColumns join columns. The right keys sharing a value of those columns
+ * are held as a group while every left key with the same value is paired with them, any further join columns are
+ * compared within the group. The side which is behind seeks to the other, rather than reading the keys between.
+ */
+public class MergeJoin implements JoinCursor {
+    PrefixScan left;
+    PrefixScan right;
+    int[] leftColumns;
+    int[] rightColumns;
+    int sortedColumns;
+    long[] leftKey;
+    long[] rightKey;
+    long[] nextRightKey;
+    boolean hasNextRightKey;
+    long[] seekValues;
+    ArrayList<long[]> group = new ArrayList<>();
+    int groupSize = 0;
+    int groupIndex = 0;
+    boolean inGroup = false;
+    boolean started = false;
+
+    public MergeJoin(PrefixScan left, int[] leftColumns, PrefixScan right, int[] rightColumns, int sortedColumns){
+        this.left = left;
+        this.right = right;
+        this.leftColumns = leftColumns;
+        this.rightColumns = rightColumns;
+        this.sortedColumns = sortedColumns;
+        this.leftKey = new long[left.keyLength()];
+        this.nextRightKey = new long[right.keyLength()];
+        this.seekValues = new long[sortedColumns];
+    }
+
+    @Override
+    public boolean next() throws IOException {
+        if(!started){
+            started = true;
+            if(!left.next(leftKey) || !(hasNextRightKey = right.next(nextRightKey)))
+                return false;
+        }
+        while(true){
+            if(inGroup){
+                while(groupIndex < groupSize){
+                    long[] candidate = group.get(groupIndex++);
+                    if(Joins.matches(leftKey, leftColumns, candidate, rightColumns, sortedColumns)){
+                        rightKey = candidate;
+                        return true;
+                    }
+                }
+                if(!left.next(leftKey))
+                    return false;
+                groupIndex = 0;
+                if(compareSorted(leftKey, group.get(0)) == 0)
+                    continue;
+                inGroup = false;
+            }
+            if(!hasNextRightKey)
+                return false;
+            int comparison = compareSorted(leftKey, nextRightKey);
+            if(comparison < 0){
+                left.seekTo(sortedValues(nextRightKey, rightColumns), sortedColumns);
+                if(!left.next(leftKey))
+                    return false;
+            }
+            else if(comparison > 0){
+                right.seekTo(sortedValues(leftKey, leftColumns), sortedColumns);
+                hasNextRightKey = right.next(nextRightKey);
+            }
+            else{
+                readGroup();
+                inGroup = true;
+            }
+        }
+    }
+
+    /**
+     * Reads the right keys equal to nextRightKey on the sorted columns into the group, leaving the key after them
+     * in nextRightKey. The arrays of the group are reused for the next group.
+     */
+    private void readGroup() throws IOException {
+        groupSize = 0;
+        groupIndex = 0;
+        do{
+            if(groupSize == group.size())
+                group.add(new long[nextRightKey.length]);
+            System.arraycopy(nextRightKey, 0, group.get(groupSize++), 0, nextRightKey.length);
+            hasNextRightKey = right.next(nextRightKey);
+        } while(hasNextRightKey && compareSorted(group.get(0), nextRightKey, rightColumns) == 0);
+    }
+
+    private long[] sortedValues(long[] key, int[] columns){
+        for(int i = 0; i < sortedColumns; i++){
+            seekValues[i] = key[columns[i]];
+        }
+        return seekValues;
+    }
+
+    private int compareSorted(long[] leftKey, long[] rightKey){
+        for(int i = 0; i < sortedColumns; i++){
+            int comparison = Long.compare(leftKey[leftColumns[i]], rightKey[rightColumns[i]]);
+            if(comparison != 0)
+                return comparison;
+        }
+        return 0;
+    }
+
+    private int compareSorted(long[] a, long[] b, int[] columns){
+        for(int i = 0; i < sortedColumns; i++){
+            int comparison = Long.compare(a[columns[i]], b[columns[i]]);
+            if(comparison != 0)
+                return comparison;
+        }
+        return 0;
+    }
+
+    @Override
+    public long[] left() {
+        return leftKey;
+    }
+
+    @Override
+    public long[] right() {
+        return rightKey;
+    }
+
+    @Override
+    public void close() throws IOException {
+        left.close();
+        right.close();
+    }
+}
@@ -0,0 +1,193 @@
+package Join;
+
+import bptree.PageProxyCursor;
+import bptree.impl.DiskCache;
+import bptree.impl.NodeHeader;
+import org.neo4j.io.pagecache.PagedFile;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Joins rows on one column of each side. Build rows are added first and kept in a LongHashTable, probe rows are then
+ * streamed against it. When the build side grows past maxBuildRows, both sides are split into partitions on the hash
+ * of the join column and written to pages of a temporary DiskCache, and each partition is joined in turn by finish.
+ */
+public class PartitionedHashJoin implements Closeable {
+    public static int DEFAULT_PARTITIONS = 64;
+    public static int DEFAULT_MAX_BUILD_ROWS = 1 << 22;
+    static int spillFiles = 0;
+    final int buildLength;
+    final int buildColumn;
+    final int probeLength;
+    final int probeColumn;
+    final int partitions;
+    final int maxBuildRows;
+    LongHashTable table;
+    DiskCache spillDisk;
+    long nextSpillPage = 0;
+    Partition[] buildPartitions;
+    Partition[] probePartitions;
+    long[] buildRow;
+    long[] probeRow;
+
+    public PartitionedHashJoin(int buildLength, int buildColumn, int probeLength, int probeColumn){
+        this(buildLength, buildColumn, probeLength, probeColumn, DEFAULT_PARTITIONS, DEFAULT_MAX_BUILD_ROWS);
+    }
+
+    public PartitionedHashJoin(int buildLength, int buildColumn, int probeLength, int probeColumn, int partitions, int maxBuildRows){
+        this.buildLength = buildLength;
+        this.buildColumn = buildColumn;
+        this.probeLength = probeLength;
+        this.probeColumn = probeColumn;
+        this.partitions = partitions;
+        this.maxBuildRows = maxBuildRows;
+        table = new LongHashTable(buildLength, Math.min(maxBuildRows, 1 << 16));
+        buildRow = new long[buildLength];
+        probeRow = new long[probeLength];
+    }
+
+    public boolean spilled(){
+        return spillDisk != null;
+    }
+
+    public void addBuildRow(long[] row) throws IOException {
+        if(spilled()){
+            buildPartitions[partition(row[buildColumn])].add(row);
+            return;
+        }
+        table.add(row[buildColumn], row);
+        if(table.size > maxBuildRows){
+            spill();
+        }
+    }
+
+    /**
+     * Passes each build row matching the probe row to the visitor, or holds the probe row for finish if the build
+     * side has spilled. All build rows must be added before the first probe.
+     */
+    public void probe(long[] row, JoinVisitor visitor) throws IOException {
+        if(spilled()){
+            probePartitions[partition(row[probeColumn])].add(row);
+        }
+        else{
+            probeTable(row, visitor);
+        }
+    }
+
+    /**
+     * Joins the partitions held on disk. Does nothing if the build side fit in the table.
+     */
+    public void finish(JoinVisitor visitor) throws IOException {
+        if(!spilled())
+            return;
+        for(int i = 0; i < partitions; i++){
+            buildPartitions[i].flush();
+            probePartitions[i].flush();
+        }
+        for(int i = 0; i < partitions; i++){
+            table.clear();
+            for(long pageId : buildPartitions[i].pages){
+                try(PageProxyCursor cursor = spillDisk.getCursor(pageId, PagedFile.PF_SHARED_LOCK)){
+                    int rows = NodeHeader.getNumberOfKeys(cursor);
+                    cursor.setOffset(NodeHeader.NODE_HEADER_LENGTH);
+                    for(int r = 0; r < rows; r++){
+                        for(int j = 0; j < buildLength; j++){
+                            buildRow[j] = cursor.getLong();
+                        }
+                        table.add(buildRow[buildColumn], buildRow);
+                    }
+                }
+            }
+            for(long pageId : probePartitions[i].pages){
+                try(PageProxyCursor cursor = spillDisk.getCursor(pageId, PagedFile.PF_SHARED_LOCK)){
+                    int rows = NodeHeader.getNumberOfKeys(cursor);
+                    cursor.setOffset(NodeHeader.NODE_HEADER_LENGTH);
+                    for(int r = 0; r < rows; r++){
+                        for(int j = 0; j < probeLength; j++){
+                            probeRow[j] = cursor.getLong();
+                        }
+                        probeTable(probeRow, visitor);
+                    }
+                }
+            }
+        }
+    }
+
+    private void probeTable(long[] row, JoinVisitor visitor) throws IOException {
+        long key = row[probeColumn];
+        for(int match = table.first(key); match != -1; match = table.next(match)){
+            table.copyRow(match, buildRow);
+            visitor.visit(buildRow, row);
+        }
+    }
+
+    private int partition(long key){
+        return (int) ((LongHashTable.hash(key) >>> 40) % partitions);
+    }
+
+    private void spill() throws IOException {
+        spillDisk = DiskCache.temporaryDiskCache(spillFiles++ + "tmp_hashJoinSpill.dat", false);
+        buildPartitions = new Partition[partitions];
+        probePartitions = new Partition[partitions];
+        for(int i = 0; i < partitions; i++){
+            buildPartitions[i] = new Partition(buildLength);
+            probePartitions[i] = new Partition(probeLength);
+        }
+        for(int r = 0; r < table.size; r++){
+            table.copyRow(r, buildRow);
+            buildPartitions[partition(buildRow[buildColumn])].add(buildRow);
+        }
+        table.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(spilled()){
+            spillDisk.shutdown();
+            spillDisk.pageCacheFile.delete();
+            spillDisk = null;
+        }
+    }
+
+    /**
+     * The rows of one partition, buffered until they fill a page.
+     */
+    class Partition {
+        final int rowLength;
+        final long[] buffer;
+        int bufferedValues = 0;
+        ArrayList<Long> pages = new ArrayList<>();
+
+        Partition(int rowLength){
+            this.rowLength = rowLength;
+            buffer = new long[((DiskCache.PAGE_SIZE - NodeHeader.NODE_HEADER_LENGTH) / (rowLength * 8)) * rowLength];
+        }
+
+        void add(long[] row) throws IOException {
+            System.arraycopy(row, 0, buffer, bufferedValues, rowLength);
+            bufferedValues += rowLength;
+            if(bufferedValues == buffer.length){
+                flush();
+            }
+        }
+
+        void flush() throws IOException {
+            if(bufferedValues == 0)
+                return;
+            long pageId = nextSpillPage++;
+            try(PageProxyCursor cursor = spillDisk.getCursor(pageId, PagedFile.PF_EXCLUSIVE_LOCK)){
+                NodeHeader.setNodeTypeLeaf(cursor);
+                NodeHeader.setKeyLength(cursor, rowLength);
+                NodeHeader.setNumberOfKeys(cursor, bufferedValues / rowLength);
+                cursor.setOffset(NodeHeader.NODE_HEADER_LENGTH);
+                for(int i = 0; i < bufferedValues; i++){
+                    cursor.putLong(buffer[i]);
+                }
+            }
+            pages.add(pageId);
+            bufferedValues = 0;
+        }
+    }
+}
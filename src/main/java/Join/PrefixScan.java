@@ -0,0 +1,79 @@
+package Join;
+
+import bptree.PageProxyCursor;
+import bptree.impl.IndexTree;
+import bptree.impl.SearchCursor;
+import org.neo4j.io.pagecache.PagedFile;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * The keys of an index matching a prefix, in index order. Keys are sorted on the columns following the prefix.
+ * A thread can only hold one page of a DiskCache at a time, so scans of the same index which are read together must
+ * share a cursor. A SearchCursor moves the cursor back to its own page before reading.
+ */
+public class PrefixScan implements Closeable {
+    public final IndexTree tree;
+    public final long[] prefix;
+    PageProxyCursor cursor;
+    SearchCursor results = new SearchCursor();
+    boolean ownsCursor;
+    long[] seekKey = new long[0];
+
+    public PrefixScan(IndexTree tree, long[] prefix) throws IOException {
+        this(tree, prefix, tree.disk.getCursor(tree.rootNodeId, PagedFile.PF_SHARED_LOCK));
+        this.ownsCursor = true;
+    }
+
+    /**
+     * A scan reading through the given cursor, which is left open when the scan is closed.
+     */
+    public PrefixScan(IndexTree tree, long[] prefix, PageProxyCursor cursor) throws IOException {
+        this.tree = tree;
+        this.prefix = prefix;
+        this.cursor = cursor;
+        tree.find(cursor, prefix, results);
+    }
+
+    /**
+     * Copies the next key into dest.
+     * @return false if there are no more keys, dest is then unchanged.
+     */
+    public boolean next(long[] dest) throws IOException {
+        return results.next(cursor, dest);
+    }
+
+    /**
+     * Skips ahead to the first key whose columns after the prefix are not smaller than the first count values.
+     */
+    public void seekTo(long[] values, int count) throws IOException {
+        if(seekKey.length != prefix.length + count){
+            seekKey = new long[prefix.length + count];
+            System.arraycopy(prefix, 0, seekKey, 0, prefix.length);
+        }
+        System.arraycopy(values, 0, seekKey, prefix.length, count);
+        results.seekTo(cursor, seekKey);
+    }
+
+    public int keyLength(){
+        return tree.keySize;
+    }
+
+    /**
+     * True if the keys are in order of the first count of the given columns.
+     */
+    public boolean isSortedOn(int[] columns, int count){
+        for(int i = 0; i < count; i++){
+            if(columns[i] != prefix.length + i)
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(ownsCursor)
+            cursor.close();
+    }
+}
@@ -0,0 +1,96 @@
+package Join;
+
+import bptree.PageProxyCursor;
+import bptree.impl.IndexTree;
+import bptree.impl.SearchCursor;
+
+import java.io.IOException;
+
+/**
+ * Reads the keys of an index matching a prefix as a trie, one column after the prefix per level. Moving within a
+ * level seeks the SearchCursor of the level to the first key with the given value, so runs of keys which cannot
+ * match are skipped rather than read.
+ */
+public class TrieIterator {
+    public final IndexTree tree;
+    public final long[] prefix;
+    PageProxyCursor cursor;
+    SearchCursor[] results; //one per level, so that the position of a level survives opening the levels below
+    int depth = -1; //the column after the prefix this iterator is on, -1 before the first open
+    long[][] levelPrefixes; //the prefix and the values of the levels above each level
+    long[][] seekKeys;
+    long[] key;
+    boolean atEnd;
+
+    public TrieIterator(IndexTree tree, long[] prefix, PageProxyCursor cursor){
+        this.tree = tree;
+        this.prefix = prefix;
+        this.cursor = cursor;
+        int levels = tree.keySize - prefix.length;
+        levelPrefixes = new long[levels][];
+        seekKeys = new long[levels][];
+        results = new SearchCursor[levels];
+        for(int level = 0; level < levels; level++){
+            results[level] = new SearchCursor();
+            levelPrefixes[level] = new long[prefix.length + level];
+            seekKeys[level] = new long[prefix.length + level + 1];
+        }
+        System.arraycopy(prefix, 0, levelPrefixes[0], 0, prefix.length);
+        key = new long[tree.keySize];
+    }
+
+    /**
+     * Moves down to the first value of the next level under the current value.
+     */
+    public void open() throws IOException {
+        depth++;
+        if(depth > 0){
+            System.arraycopy(key, 0, levelPrefixes[depth], 0, levelPrefixes[depth].length);
+        }
+        long[] levelPrefix = levelPrefixes[depth];
+        tree.find(cursor, levelPrefix, results[depth]);
+        atEnd = !results[depth].next(cursor, key);
+    }
+
+    /**
+     * Moves back to the level above, on the value it was left at.
+     */
+    public void up(){
+        depth--;
+        atEnd = false;
+    }
+
+    public long key(){
+        return key[prefix.length + depth];
+    }
+
+    public boolean atEnd(){
+        return atEnd;
+    }
+
+    public void next() throws IOException {
+        if(key() == Long.MAX_VALUE){
+            atEnd = true;
+            return;
+        }
+        seekTo(key() + 1);
+    }
+
+    /**
+     * Moves to the first value of this level not smaller than the given value.
+     */
+    public void seek(long value) throws IOException {
+        if(!atEnd && key() < value){
+            seekTo(value);
+        }
+    }
+
+    private void seekTo(long value) throws IOException {
+        long[] levelPrefix = levelPrefixes[depth];
+        long[] seekKey = seekKeys[depth];
+        System.arraycopy(levelPrefix, 0, seekKey, 0, levelPrefix.length);
+        seekKey[levelPrefix.length] = value;
+        results[depth].seekTo(cursor, seekKey);
+        atEnd = !results[depth].next(cursor, key);
+    }
+}
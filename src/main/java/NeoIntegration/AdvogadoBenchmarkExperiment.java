@@ -11,9 +11,7 @@ import org.neo4j.io.pagecache.PagedFile;
 import org.neo4j.tooling.GlobalGraphOperations;
 
 import java.io.*;
-import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
 
 /**
  * Created by max on 6/21/15.
@@ -76,19 +74,15 @@ public class AdvogadoBenchmarkExperiment {
 
     public AdvogadoBenchmarkExperiment() throws IOException {
 
-        BufferedReader bufferedReader = new BufferedReader(new FileReader(new File("advogado2/pathIndexMetaData.dat")));
-        String line;
         String folder = "advogado2/";
-        while((line = bufferedReader.readLine()) != null) {
-            List<String> entry = Arrays.asList(line.split(","));
-            int k = new Integer(entry.get(0));
-            long root = new Long(entry.get(1));
-            boolean compressed = new Boolean(entry.get(2));
-            DiskCache disk = DiskCache.persistentDiskCache(folder + "K"+k+"Cleverlubm50Index.db", compressed);
-            indexes.put(k, new IndexTree(k+1, root, disk));
-            disks.put(k, disk);
+        for(int k = 3; k < 3 + CleverIndexBuilder.MAX_K; k++){
+            File indexFile = new File(folder + "K"+k+"Cleverlubm50Index.db");
+            if(indexFile.exists()){
+                IndexTree index = DiskCache.openIndex(indexFile.getPath());
+                indexes.put(k, index);
+                disks.put(k, index.disk);
+            }
         }
-        bufferedReader.close();
 
         stringBuilder = new StringBuilder();
 
@@ -1,5 +1,8 @@
 package NeoIntegration;
 
+import Join.JoinVisitor;
+import Join.PartitionedHashJoin;
+import Join.PrefixScan;
 import PageCacheSort.SetIterator;
 import PageCacheSort.Sorter;
 import bptree.PageProxyCursor;
@@ -26,7 +29,7 @@ public class CleverIndexBuilder {
     public static final int MAX_K = 3;
     public static final String DB_PATH = "graph.db/";
     public static final String LUBM_INDEX_PATH = "Cleverlubm50Index.db";
-    public static final String INDEX_METADATA_PATH = "pathIndexMetaData.dat";
+    public static int RUN_BUFFER_MB = Sorter.runBufferMB(MAX_K); //the run buffer of each sorter, the first argument sets it
     StringBuilder strBulder;
     LinkedList<String> prettyPaths = new LinkedList<>();
     HashMap<Integer, Sorter> sorters = new HashMap<>();
@@ -42,13 +45,13 @@ public class CleverIndexBuilder {
 
 
     public static void main(String[] args) throws IOException {
+        if(args.length > 0){
+            RUN_BUFFER_MB = Integer.parseInt(args[0]);
+        }
         CleverIndexBuilder indexBuilder = new CleverIndexBuilder();
 
-        try(PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(INDEX_METADATA_PATH, false)))) {
-            for(int i = 0; i < indexBuilder.indexes.size(); i++){
-                out.println(indexBuilder.sorters.get(i+3).keySize + "," + indexBuilder.indexes.get(i+1).rootNodeId + "," + indexBuilder.indexes.get(i+1).disk.COMPRESSION);
-                indexBuilder.indexes.get(i+1).disk.shutdown();
-            }
+        for(IndexTree index : indexBuilder.indexes.values()){
+            index.disk.shutdown(); //writes the superblock the index is reopened from
         }
         try(PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter("CleverLUBMLoaderLog" +".txt", false)))) {
             System.out.println("");
@@ -76,7 +79,10 @@ public class CleverIndexBuilder {
     public CleverIndexBuilder() throws IOException {
 
         for(int i = 1; i <= MAX_K; i++){
-            sorters.put(i + 2, new Sorter(i + 2));
+            Sorter sorter = new Sorter(i + 2);
+            sorter.RUN_BUFFER_MB = RUN_BUFFER_MB;
+            sorter.RUN_SORT_THREADS = Runtime.getRuntime().availableProcessors();
+            sorters.put(i + 2, sorter);
         }
 
         long startTime = System.nanoTime();
@@ -87,14 +93,9 @@ public class CleverIndexBuilder {
         System.out.println("\nSorting K = 1");
 
         startTime = System.nanoTime();
-        SetIterator k1Iterator = sorterK1.sort();
-        endTime = System.nanoTime();
-        //logToFile("Time to sort K1 edges(ns): " + (endTime - startTime));
-
-        startTime = System.nanoTime();
-        IndexTree k1Index = buildIndex(sorterK1, k1Iterator);
+        IndexTree k1Index = buildIndexPipelined(sorterK1);
         endTime = System.nanoTime();
-        //logToFile("Time to bulk load K1 edges into index(ns): " + (endTime - startTime));
+        //logToFile("Time to sort and bulk load K1 edges into index(ns): " + (endTime - startTime));
 
         indexes.put(1, k1Index);
 
@@ -103,8 +104,7 @@ public class CleverIndexBuilder {
             buildK2Paths();
             logToFile("Time to build K2 edges(ns): " + (System.nanoTime() - startTime));
             Sorter sorterK2 = sorters.get(4);
-            SetIterator k2Iterator = sorterK2.finishWithoutSort();
-            IndexTree k2Index = buildIndex(sorterK2, k2Iterator);
+            IndexTree k2Index = buildIndexPipelined(sorterK2);
             //k2DiskFiller.finish();
             //NodeTree k2Index = buildIndex(k2DiskFiller);
             indexes.put(2, k2Index);
@@ -131,6 +131,17 @@ public class CleverIndexBuilder {
         logToFile("index K= " + sorter.keySize + " root: " + index.rootNodeId);
         return index;
     }
+    /**
+     * Sorts the keys of the sorter straight into a compressed index, without writing the sorted keys out first.
+     */
+    public IndexTree buildIndexPipelined(Sorter sorter) throws IOException {
+        System.out.println("Building Index");
+        DiskCache indexDisk = DiskCache.persistentDiskCache(sorter.toString() + LUBM_INDEX_PATH, true);
+        IndexTree index = sorter.sortInto(new PipelinedIndexBuilder(indexDisk, sorter.keySize));
+        System.out.println("Done. Root for this index: " + index.rootNodeId);
+        logToFile("index K= " + sorter.keySize + " root: " + index.rootNodeId);
+        return index;
+    }
     public IndexTree buildIndex(SuperFillSortedDisk filler) throws IOException {
         System.out.println("Building Index");
         DiskCache sortedDisk = filler.compressedDisk;
@@ -146,7 +157,7 @@ public class CleverIndexBuilder {
     public IndexTree buildIndexK3(SuperFillSortedDisk filler) throws IOException {
         System.out.println("Building Index");
         DiskCache sortedDisk = filler.compressedDisk;
-        IndexBulkLoader bulkLoader = new IndexBulkLoader(sortedDisk, filler.finalPageID, filler.keyLength);
+        ParallelIndexBulkLoader bulkLoader = new ParallelIndexBulkLoader(sortedDisk, filler.finalPageID, filler.keyLength);
         IndexTree index = bulkLoader.run();
         String folder = "/Volumes/Passport/";
         File newFile = new File(folder + "K" + filler.keyLength + LUBM_INDEX_PATH);
@@ -206,43 +217,42 @@ public class CleverIndexBuilder {
         System.out.println("Keys written: " + count);
     }
 
+    /**
+     * Joins K1 with itself on the end node of the first path and the start node of the second. K1 is scanned once
+     * into a hash table on the end nodes and once more to probe it, instead of one index lookup per entry and path pair.
+     */
     private void buildK2Paths() throws IOException {
         System.out.println("Building K2 Paths");
-        int pathCount = 0;
-        long[] combinedPath;
-        ArrayList<long[]> entries = new ArrayList<>();
-        int total = relationshipMap.size() * relationshipMap.size();
-        try (PageProxyCursor cursorA = indexes.get(1).disk.getCursor(0, PagedFile.PF_SHARED_LOCK)) {
+        IndexTree k1Index = indexes.get(1);
+        JoinVisitor addK2Path = (entryA, entryB) -> {
+            PathIDBuilder builder = new PathIDBuilder(relationshipMap.get(entryA[0]).getPath(), relationshipMap.get(entryB[0]).getPath());
+            if (!k2PathIds.containsKey(builder.buildPath())) {
+                k2PathIds.put(builder.buildPath(), currentShortPathID++);
+                k2RelationshipsMap.put(k2PathIds.get(builder.buildPath()), builder);
+            }
+            long k2PathId = k2PathIds.get(builder.buildPath());
+            sorters.get(4).addUnsortedKey(new long[]{k2PathId, entryA[1], entryA[2], entryB[2]});
+        };
+        long[] entry = new long[k1Index.keySize];
+        try (PartitionedHashJoin join = new PartitionedHashJoin(k1Index.keySize, 2, k1Index.keySize, 1);
+             PageProxyCursor cursor = k1Index.disk.getCursor(k1Index.rootNodeId, PagedFile.PF_SHARED_LOCK)) {
             for(long pathIdA : relationshipMap.keySet()){
-                for(long pathIdB: relationshipMap.keySet()) {
-                    System.out.print("\rPaths complete: " + pathCount++ + "/" + total);
-                    entries.clear();
-                    SearchCursor resultA = indexes.get(1).find(cursorA, new long[]{pathIdA});
-                    while (resultA.hasNext(cursorA)) {
-                        entries.add(resultA.next(cursorA));
+                try (PrefixScan scan = new PrefixScan(k1Index, new long[]{pathIdA}, cursor)) {
+                    while (scan.next(entry)) {
+                        join.addBuildRow(entry);
                     }
-                    for (long[] entry : entries) {
-                        SearchCursor resultB = indexes.get(1).find(cursorA, new long[]{pathIdB, entry[2]});
-                        while (resultB.hasNext(cursorA)) {
-                            long[] secondPath = resultB.next(cursorA);
-                            PathIDBuilder builder = new PathIDBuilder(relationshipMap.get(entry[0]).getPath(), relationshipMap.get(pathIdB).getPath());
-                            /*long inverse = relationshipMap.get(pathIdA).buildInversePathID();
-                            if(inverse == pathIdB && (entry[1] == secondPath[2] && entry[2] == secondPath[1])) {
-                                continue;
-                            }*/
-
-                            if (!k2PathIds.containsKey(builder.buildPath())) {
-                                k2PathIds.put(builder.buildPath(), currentShortPathID++);
-                                k2RelationshipsMap.put(k2PathIds.get(builder.buildPath()), builder);
-                            }
-                            long k2PathId = k2PathIds.get(builder.buildPath());
-                            combinedPath = new long[]{k2PathId, entry[1], entry[2], secondPath[2]};
-                            sorters.get(4).addSortedKeyBulk(combinedPath);
-                            //k2DiskFiller.addKey(combinedPath);
-                        }
+                }
+            }
+            int pathCount = 0;
+            for(long pathIdB : relationshipMap.keySet()){
+                System.out.print("\rPaths complete: " + pathCount++ + "/" + relationshipMap.size());
+                try (PrefixScan scan = new PrefixScan(k1Index, new long[]{pathIdB}, cursor)) {
+                    while (scan.next(entry)) {
+                        join.probe(entry, addK2Path);
                     }
                 }
             }
+            join.finish(addK2Path);
         }
     }
 
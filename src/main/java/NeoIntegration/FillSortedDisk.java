@@ -82,25 +82,25 @@ public class FillSortedDisk {
     public static int numberOfBytes(long value){
         long abs = Math.abs(value);
         int minBytes = 8;
-        if(abs <= 127){
+        if(abs < 128){
             minBytes = 1;
         }
-        else if(abs <= 32768){
+        else if(abs < 32768){
             minBytes = 2;
         }
-        else if(abs <= 8388608){
+        else if(abs < 8388608){
             minBytes = 3;
         }
-        else if(abs <= 2147483648l){
+        else if(abs < 2147483648l){
             minBytes = 4;
         }
-        else if(abs <= 549755813888l){
+        else if(abs < 549755813888l){
             minBytes = 5;
         }
-        else if(abs <= 140737488355328l){
+        else if(abs < 140737488355328l){
             minBytes = 6;
         }
-        else if(abs <= 36028797018963968l){
+        else if(abs < 36028797018963968l){
             minBytes = 7;
         }
         return minBytes;
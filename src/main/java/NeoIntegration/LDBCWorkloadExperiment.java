@@ -397,9 +397,7 @@ public class LDBCWorkloadExperiment {
     }
 
     public long joinOnK1(long pathID1, long pathID2) throws IOException {
-        long[] resultB;
-        long clock;
-        int count = 0;
+        long count = 0;
         List<long[]> entries = new ArrayList<>();
         long[] key = new long[]{pathID1, pathID2};
         if(!k2PathIds.containsKey(key))
@@ -410,19 +408,18 @@ public class LDBCWorkloadExperiment {
             while (searchCursorA.hasNext(cursor)) {
                 entries.add(searchCursorA.next(cursor));
             }
-            for (long[] resultA : entries) {
-                SearchCursor searchCursorB = indexes.get(1).find(cursor, new long[]{pathID2, resultA[2]});
-                while (searchCursorB.hasNext(cursor)) {
-                    resultB = searchCursorB.next(cursor);
-                    count++;
-
-                    //pause clock
-                    clock = System.nanoTime();
-                    indexes.get(2).insert(new long[]{pathID3, resultA[1], resultA[2], resultB[2]});
-                    duration += System.nanoTime() - clock;
-                    //start clock again
-                }
+            long[][] probes = new long[entries.size()][];
+            for (int i = 0; i < probes.length; i++) {
+                probes[i] = new long[]{pathID2, entries.get(i)[2]};
             }
+            count = indexes.get(1).findAll(cursor, probes, (probe, resultB) -> {
+                long[] resultA = entries.get(probe);
+                //pause clock
+                long clock = System.nanoTime();
+                indexes.get(2).insert(new long[]{pathID3, resultA[1], resultA[2], resultB[2]});
+                duration += System.nanoTime() - clock;
+                //start clock again
+            });
         }
         System.out.println("k2 joins found: " + count);
         return pathID3;
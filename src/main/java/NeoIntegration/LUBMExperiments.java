@@ -1,5 +1,10 @@
 package NeoIntegration;
 
+import Join.JoinCursor;
+import Join.Joins;
+import Join.LeapfrogTriejoin;
+import Join.PrefixScan;
+import Join.TrieIterator;
 import bptree.PageProxyCursor;
 import bptree.impl.DiskCache;
 import bptree.impl.IndexTree;
@@ -12,7 +17,6 @@ import org.neo4j.tooling.GlobalGraphOperations;
 
 import java.io.*;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 
@@ -87,18 +91,14 @@ public class LUBMExperiments {
 
     public LUBMExperiments() throws IOException {
 
-        BufferedReader bufferedReader = new BufferedReader(new FileReader(new File("LUBM50IndexCompressed/pathIndexMetaData.dat")));
-        String line;
-        while((line = bufferedReader.readLine()) != null) {
-            List<String> entry = Arrays.asList(line.split(","));
-            int k = new Integer(entry.get(0));
-            long root = new Long(entry.get(1));
-            boolean compressed = new Boolean(entry.get(2));
-            DiskCache disk = DiskCache.persistentDiskCache("LUBM50IndexCompressed/K"+k+"Compressedlubm50Index.db", compressed);
-            indexes.put(k, new IndexTree(k+1, root, disk));
-            disks.put(k, disk);
+        for(int k = 3; k < 3 + CleverIndexBuilder.MAX_K; k++){
+            File indexFile = new File("LUBM50IndexCompressed/K"+k+"Compressedlubm50Index.db");
+            if(indexFile.exists()){
+                IndexTree index = DiskCache.openIndex(indexFile.getPath());
+                indexes.put(k, index);
+                disks.put(k, index.disk);
+            }
         }
-        bufferedReader.close();
 
         stringBuilder = new StringBuilder();
         stringBuilder456 = new StringBuilder();
@@ -312,98 +312,51 @@ public class LUBMExperiments {
     }
 
 
+    /**
+     * Closes a K1 path (x, y) with a K2 path (x, z, y) by leapfrog triejoin, binding x, then z, then y.
+     */
     public int rectangleJoin(int indexA, long pathIDA, int indexB, long pathIDB) throws IOException {
         long startTime = System.nanoTime();
-        long timeToFirstResult;
-        long timeToLastResult;
-        long[] searchKeyA = new long[]{pathIDA};
-        long[] searchKeyB = new long[]{pathIDB};
-
-        long[] resultA;
-        long[] resultB;
-        int count = 0;
-        SearchCursor searchCursorA = indexes.get(indexA).find(searchKeyA);
-        SearchCursor searchCursorB = indexes.get(indexB).find(searchKeyB);
-        try (PageProxyCursor cursorA = disks.get(indexA).getCursor(searchCursorA.pageID, PagedFile.PF_SHARED_LOCK)) {
-            try (PageProxyCursor cursorB = disks.get(indexB).getCursor(searchCursorB.pageID, PagedFile.PF_SHARED_LOCK)) {
-                timeToFirstResult = System.nanoTime();
-                if(searchCursorA.hasNext(cursorA) && searchCursorB.hasNext(cursorB)) {
-                    resultA = searchCursorA.next(cursorA);
-                    resultB = searchCursorB.next(cursorB);
-                    while (searchCursorA.hasNext(cursorA) && searchCursorB.hasNext(cursorB)) {
-                        if (resultA[1] == resultB[1]) {
-                            if(resultA[2] == resultB[3]) {
-                                count++;
-                                resultA = searchCursorA.next(cursorA);
-                                resultB = searchCursorB.next(cursorB);
-                            }
-                            else if(resultA[2] > resultB[3]){
-                                if (searchCursorB.hasNext(cursorB)) {
-                                    resultB = searchCursorB.next(cursorB);
-                                }
-                            }
-                            else{
-                                if (searchCursorA.hasNext(cursorA)) {
-                                    resultA = searchCursorA.next(cursorA);
-                                }
-                            }
-                        } else if (resultA[1] > resultB[1]) {
-                            if (searchCursorB.hasNext(cursorB)) {
-                                resultB = searchCursorB.next(cursorB);
-                            }
-                        } else {
-                            if (searchCursorA.hasNext(cursorA)) {
-                                resultA = searchCursorA.next(cursorA);
-                            }
-                        }
-                    }
-                }
-                timeToLastResult = System.nanoTime();
-            }
+        long[] timeToFirstResult = new long[]{0};
+        long count;
+        try (PageProxyCursor cursorA = disks.get(indexA).getCursor(indexes.get(indexA).rootNodeId, PagedFile.PF_SHARED_LOCK);
+             PageProxyCursor cursorB = disks.get(indexB).getCursor(indexes.get(indexB).rootNodeId, PagedFile.PF_SHARED_LOCK)) {
+            TrieIterator pathA = new TrieIterator(indexes.get(indexA), new long[]{pathIDA}, cursorA);
+            TrieIterator pathB = new TrieIterator(indexes.get(indexB), new long[]{pathIDB}, cursorB);
+            LeapfrogTriejoin join = new LeapfrogTriejoin(3, new TrieIterator[]{pathA, pathB}, new int[][]{{0, 2}, {0, 1, 2}});
+            count = join.run(binding -> {
+                if(timeToFirstResult[0] == 0)
+                    timeToFirstResult[0] = System.nanoTime();
+                return true;
+            });
         }
-        //System.out.println("Number of results found in Index: " + count);
-        stringBuilder.append((timeToFirstResult - startTime) / (double) 1000000).append(",");
+        long timeToLastResult = System.nanoTime();
+        if(count == 0)
+            timeToFirstResult[0] = timeToLastResult;
+        stringBuilder.append((timeToFirstResult[0] - startTime) / (double) 1000000).append(",");
         stringBuilder.append((timeToLastResult - startTime) / (double) 1000000);
-        //System.out.println("Result Set Size index: " + count);
-        return count;
+        return (int) count;
     }
     public int pathJoin(int indexA, long pathIDA, int indexB, long pathIDB) throws IOException {
+        return timedJoin(indexA, pathIDA, new int[]{1}, indexB, pathIDB, new int[]{1});
+    }
+
+    private int timedJoin(int indexA, long pathIDA, int[] columnsA, int indexB, long pathIDB, int[] columnsB) throws IOException {
         long startTime = System.nanoTime();
-        long timeToFirstResult;
+        long timeToFirstResult = 0;
         long timeToLastResult;
-        long[] searchKeyA = new long[]{pathIDA};
-        long[] searchKeyB = new long[]{pathIDB};
-
-        long[] resultA;
-        long[] resultB;
         int count = 0;
-        SearchCursor searchCursorA = indexes.get(indexA).find(searchKeyA);
-        SearchCursor searchCursorB = indexes.get(indexB).find(searchKeyB);
-        try (PageProxyCursor cursorA = disks.get(indexA).getCursor(searchCursorA.pageID, PagedFile.PF_SHARED_LOCK)) {
-            try (PageProxyCursor cursorB = disks.get(indexB).getCursor(searchCursorB.pageID, PagedFile.PF_SHARED_LOCK)) {
-                timeToFirstResult = System.nanoTime();
-                if(searchCursorA.hasNext(cursorA) && searchCursorB.hasNext(cursorB)) {
-                    resultA = searchCursorA.next(cursorA);
-                    resultB = searchCursorB.next(cursorB);
-                    while (searchCursorA.hasNext(cursorA) && searchCursorB.hasNext(cursorB)) {
-                        if (resultA[1] == resultB[1]) {
-                            count++;
-                            //resultA = searchCursorA.next(cursorA);
-                            resultB = searchCursorB.next(cursorB);
-                        } else if (resultA[1] > resultB[1]) {
-                            if (searchCursorB.hasNext(cursorB)) {
-                                resultB = searchCursorB.next(cursorB);
-                            }
-                        } else {
-                            if (searchCursorA.hasNext(cursorA)) {
-                                resultA = searchCursorA.next(cursorA);
-                            }
-                        }
-                    }
-                }
-                timeToLastResult = System.nanoTime();
+        PrefixScan scanA = new PrefixScan(indexes.get(indexA), new long[]{pathIDA});
+        PrefixScan scanB = new PrefixScan(indexes.get(indexB), new long[]{pathIDB});
+        try (JoinCursor join = Joins.join(scanA, columnsA, scanB, columnsB)) {
+            while (join.next()) {
+                if(count++ == 0)
+                    timeToFirstResult = System.nanoTime();
             }
+            timeToLastResult = System.nanoTime();
         }
+        if(count == 0)
+            timeToFirstResult = timeToLastResult;
         stringBuilder.append((timeToFirstResult - startTime) / (double) 1000000).append(",");
         stringBuilder.append((timeToLastResult - startTime) / (double) 1000000);
         //System.out.println("Result Set Size index: " + count);
@@ -1,11 +1,13 @@
 package NeoIntegration;
 
+import Join.JoinCursor;
+import Join.Joins;
+import Join.PrefixScan;
 import PageCacheSort.Sorter;
 import bptree.PageProxyCursor;
 import bptree.impl.DiskCache;
-import bptree.impl.IndexBulkLoader;
-import bptree.impl.IndexTree;
-import bptree.impl.SearchCursor;
+import bptree.impl.MixedLengthIndex;
+import bptree.impl.PipelinedIndexBuilder;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
@@ -15,7 +17,6 @@ import org.neo4j.helpers.collection.IteratorUtil;
 import org.neo4j.io.pagecache.PagedFile;
 import org.neo4j.tooling.GlobalGraphOperations;
 
-import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -25,8 +26,10 @@ import java.util.List;
  * Created by max on 6/18/15.
  */
 public class LUBMWorkloadQueries {
-    public HashMap<Integer, IndexTree> indexes = new HashMap<>();
-    public HashMap<Integer, DiskCache> disks = new HashMap<>();
+    public static final int MAX_KEY_LENGTH = 5;
+    public static final String WORKLOAD_INDEX_PATH = "workload.db";
+    public DiskCache disk;
+    public MixedLengthIndex index; //the K1, K2 and K3 paths in one tree, and so one file and one page cache
     public GraphDatabaseService database;
     public GlobalGraphOperations ggo;
     StringBuilder stringBuilder;
@@ -36,34 +39,21 @@ public class LUBMWorkloadQueries {
     long k2PathCounter = 1;
     long k3PathCounter = 1;
     String cypher;
-    Sorter k1Sorter = new Sorter(3);
+    Sorter k1Sorter = new Sorter(MAX_KEY_LENGTH + 1);
     long duration = 0;
 
     public static void main(String[] args) throws IOException {
         LUBMWorkloadQueries workload = new LUBMWorkloadQueries();
         workload.run();
-        workload.disks.get(1).shutdown();
-        workload.disks.get(2).shutdown();
-        workload.disks.get(3).shutdown();
+        workload.disk.shutdown();
 
-        System.out.println("Workload Index Size: " + (workload.disks.get(1).pageCacheFile.length() + workload.disks.get(2).pageCacheFile.length() + workload.disks.get(3).pageCacheFile.length()));
+        System.out.println("Workload Index Size: " + workload.disk.pageCacheFile.length());
 
     }
 
     public LUBMWorkloadQueries() throws IOException {
 
-        DiskCache diskK2 = DiskCache.persistentDiskCache("workloadK2.db", false);
-        DiskCache diskK3 = DiskCache.persistentDiskCache("workloadK3.db", false);
-
-        disks.put(2, diskK2);
-        disks.put(3, diskK3);
-
-        IndexTree indexK2 = new IndexTree(4, diskK2);
-        IndexTree indexK3 = new IndexTree(5, diskK3);
-        indexes.put(2, indexK2);
-        indexes.put(3, indexK3);
-
-
+        disk = DiskCache.persistentDiskCache(WORKLOAD_INDEX_PATH, true); //compressed, so the shorter paths pay little for their padding
 
         stringBuilder = new StringBuilder();
 
@@ -388,178 +378,149 @@ public class LUBMWorkloadQueries {
     }
 
     public long joinOnK1AndK2Version1(long pathK1, long pathK2) throws IOException {
+        long[] resultA;
         long[] resultB;
-        long clock;
         int count = 0;
-        List<long[]> entries = new ArrayList<>();
         long[] key = new long[]{pathK1, pathK2};
         if(!k3PathIds.containsKey(key))
             k3PathIds.put(key, k3PathCounter++);
         long pathID3 = k3PathIds.get(key);
-        try (PageProxyCursor cursorK1 = disks.get(1).getCursor(0, PagedFile.PF_SHARED_LOCK)) {
-            try (PageProxyCursor cursorK2 = disks.get(2).getCursor(0, PagedFile.PF_SHARED_LOCK)) {
-                SearchCursor searchCursorA = indexes.get(1).find(cursorK1, new long[]{pathK1});
-                while (searchCursorA.hasNext(cursorK1)) {
-                    entries.add(searchCursorA.next(cursorK1));
-                }
-                for (long[] resultA : entries) {
-                    SearchCursor searchCursorB = indexes.get(2).find(cursorK2, new long[]{pathK2, resultA[1]});
-                    while (searchCursorB.hasNext(cursorK2)) {
-                        resultB = searchCursorB.next(cursorK2);
-                        if (resultA[2] == resultB[3]) {
-                            count++;
-
-                            //pause clock
-                            clock = System.nanoTime();
-                            indexes.get(3).insert(new long[]{pathID3, resultA[1], resultA[2], resultB[2], resultB[1]});
-                            duration += System.nanoTime() - clock;
-                            //start clock again
-                        }
-                    }
+        List<long[]> joined = new ArrayList<>();
+        try (PageProxyCursor cursor = disk.getCursor(index.tree.rootNodeId, PagedFile.PF_SHARED_LOCK)) {
+            PrefixScan scanK1 = scan(cursor, 3, pathK1);
+            PrefixScan scanK2 = scan(cursor, 4, pathK2);
+            try (JoinCursor join = Joins.join(scanK1, new int[]{2, 3}, scanK2, new int[]{2, 4})) {
+                while (join.next()) {
+                    resultA = join.left();
+                    resultB = join.right();
+                    count++;
+                    joined.add(new long[]{pathID3, resultA[2], resultA[3], resultB[3], resultB[2]});
                 }
             }
         }
+        insertAll(joined);
         System.out.println("k3 joins found: " + count);
         return pathID3;
     }
     public long joinOnK1AndK2Version2(long pathK1, long pathK2) throws IOException {
+        long[] resultA;
         long[] resultB;
-        long clock;
         int count = 0;
-        List<long[]> entries = new ArrayList<>();
         long[] key = new long[]{pathK1, pathK2};
         if(!k3PathIds.containsKey(key))
             k3PathIds.put(key, k3PathCounter++);
         long pathID3 = k3PathIds.get(key);
-        try (PageProxyCursor cursorK1 = disks.get(1).getCursor(0, PagedFile.PF_SHARED_LOCK)) {
-            try (PageProxyCursor cursorK2 = disks.get(2).getCursor(0, PagedFile.PF_SHARED_LOCK)) {
-                SearchCursor searchCursorA = indexes.get(1).find(cursorK1, new long[]{pathK1});
-                while (searchCursorA.hasNext(cursorK1)) {
-                    entries.add(searchCursorA.next(cursorK1));
-                }
-                for (long[] resultA : entries) {
-                    SearchCursor searchCursorB = indexes.get(2).find(cursorK2, new long[]{pathK2, resultA[2]});
-                    while (searchCursorB.hasNext(cursorK2)) {
-                        resultB = searchCursorB.next(cursorK2);
-
-                        count++;
-
-                        //pause clock
-                        clock = System.nanoTime();
-                        indexes.get(3).insert(new long[]{pathID3, resultA[1], resultA[2], resultB[2], resultB[3]});
-                        duration += System.nanoTime() - clock;
-                            //start clock again
-
-                    }
+        List<long[]> joined = new ArrayList<>();
+        try (PageProxyCursor cursor = disk.getCursor(index.tree.rootNodeId, PagedFile.PF_SHARED_LOCK)) {
+            PrefixScan scanK1 = scan(cursor, 3, pathK1);
+            PrefixScan scanK2 = scan(cursor, 4, pathK2);
+            try (JoinCursor join = Joins.join(scanK1, new int[]{3}, scanK2, new int[]{2})) {
+                while (join.next()) {
+                    resultA = join.left();
+                    resultB = join.right();
+                    count++;
+                    joined.add(new long[]{pathID3, resultA[2], resultA[3], resultB[3], resultB[4]});
                 }
             }
         }
+        insertAll(joined);
         System.out.println("k3 joins found: " + count);
         return pathID3;
     }
     public long joinOnK1AndK2Version3(long pathK1, long pathK2) throws IOException {
+        long[] resultA;
         long[] resultB;
-        long clock;
         int count = 0;
-        List<long[]> entries = new ArrayList<>();
         long[] key = new long[]{pathK1, pathK2};
         if(!k3PathIds.containsKey(key))
             k3PathIds.put(key, k3PathCounter++);
         long pathID3 = k3PathIds.get(key);
-        try (PageProxyCursor cursorK1 = disks.get(1).getCursor(0, PagedFile.PF_SHARED_LOCK)) {
-            try (PageProxyCursor cursorK2 = disks.get(2).getCursor(0, PagedFile.PF_SHARED_LOCK)) {
-                SearchCursor searchCursorA = indexes.get(1).find(cursorK1, new long[]{pathK1});
-                while (searchCursorA.hasNext(cursorK1)) {
-                    entries.add(searchCursorA.next(cursorK1));
-                }
-                for (long[] resultA : entries) {
-                    SearchCursor searchCursorB = indexes.get(2).find(cursorK2, new long[]{pathK2, resultA[2]});
-                    while (searchCursorB.hasNext(cursorK2)) {
-                        resultB = searchCursorB.next(cursorK2);
-                        if (resultA[1] == resultB[3]) {
-
-                            count++;
-
-                            //pause clock
-                            clock = System.nanoTime();
-                            indexes.get(3).insert(new long[]{pathID3, resultA[1], resultA[2], resultB[2], resultB[3]});
-                            duration += System.nanoTime() - clock;
-                            //start clock again
-                        }
-
-                    }
+        List<long[]> joined = new ArrayList<>();
+        try (PageProxyCursor cursor = disk.getCursor(index.tree.rootNodeId, PagedFile.PF_SHARED_LOCK)) {
+            PrefixScan scanK1 = scan(cursor, 3, pathK1);
+            PrefixScan scanK2 = scan(cursor, 4, pathK2);
+            try (JoinCursor join = Joins.join(scanK1, new int[]{3, 2}, scanK2, new int[]{2, 4})) {
+                while (join.next()) {
+                    resultA = join.left();
+                    resultB = join.right();
+                    count++;
+                    joined.add(new long[]{pathID3, resultA[2], resultA[3], resultB[3], resultB[4]});
                 }
             }
         }
+        insertAll(joined);
         System.out.println("k3 joins found: " + count);
         return pathID3;
     }
 
     public long joinOnK1(long pathID1, long pathID2) throws IOException {
-        long[] resultB;
-        long clock;
-        int count = 0;
+        long count = 0;
         List<long[]> entries = new ArrayList<>();
+        List<long[]> joined = new ArrayList<>();
         long[] key = new long[]{pathID1, pathID2};
         if(!k2PathIds.containsKey(key))
             k2PathIds.put(key, k2PathCounter++);
         long pathID3 = k2PathIds.get(key);
-        try (PageProxyCursor cursor = disks.get(1).getCursor(0, PagedFile.PF_SHARED_LOCK)) {
-                SearchCursor searchCursorA = indexes.get(1).find(cursor, new long[]{pathID1});
-                while (searchCursorA.hasNext(cursor)) {
-                    entries.add(searchCursorA.next(cursor));
-                }
-                for (long[] resultA : entries) {
-                    SearchCursor searchCursorB = indexes.get(1).find(cursor, new long[]{pathID2, resultA[2]});
-                    while (searchCursorB.hasNext(cursor)) {
-                        resultB = searchCursorB.next(cursor);
-                        count++;
-
-                        //pause clock
-                        clock = System.nanoTime();
-                        indexes.get(2).insert(new long[]{pathID3, resultA[1], resultA[2], resultB[2]});
-                        duration += System.nanoTime() - clock;
-                        //start clock again
-                    }
+        try (PageProxyCursor cursor = disk.getCursor(index.tree.rootNodeId, PagedFile.PF_SHARED_LOCK)) {
+                index.forEach(cursor, 3, new long[]{pathID1}, resultA -> {
+                    entries.add(resultA.clone());
+                    return true;
+                });
+                long[][] probes = new long[entries.size()][];
+                for (int i = 0; i < probes.length; i++) {
+                    probes[i] = index.storedPrefix(3, new long[]{pathID2, entries.get(i)[2]});
                 }
+                count = index.tree.findAll(cursor, probes, (probe, resultB) -> {
+                    long[] resultA = entries.get(probe);
+                    joined.add(new long[]{pathID3, resultA[1], resultA[2], resultB[3]}); //resultB is stored, a column on
+                });
             }
+        insertAll(joined);
         System.out.println("k2 joins found: " + count);
         return pathID3;
     }
 
     public void findK2(long pathID) throws IOException {
        /*
-        int count = 0;
-        SearchCursor searchCursor = indexes.get(2).find(new long[]{pathID});
-        try(PageProxyCursor cursor = disks.get(2).getCursor(searchCursor.pageID, PagedFile.PF_SHARED_LOCK)){
-            while(searchCursor.hasNext(cursor)){
-                searchCursor.next(cursor);
-                count++;
-            }
+        int count;
+        try(PageProxyCursor cursor = disk.getCursor(index.tree.rootNodeId, PagedFile.PF_SHARED_LOCK)){
+            count = index.forEach(cursor, 4, new long[]{pathID}, key -> true);
         }
         System.out.println("Found: " + count);
         */
     }
 
     public void findK3(long pathID) throws IOException {
-       /* int count = 0;
-        SearchCursor searchCursor = indexes.get(3).find(new long[]{pathID});
-        try(PageProxyCursor cursor = disks.get(3).getCursor(searchCursor.pageID, PagedFile.PF_SHARED_LOCK)){
-            while(searchCursor.hasNext(cursor)){
-                searchCursor.next(cursor);
-                count++;
-            }
+       /* int count;
+        try(PageProxyCursor cursor = disk.getCursor(index.tree.rootNodeId, PagedFile.PF_SHARED_LOCK)){
+            count = index.forEach(cursor, 5, new long[]{pathID}, key -> true);
         }
         System.out.println("Found: " + count);
         */
     }
 
+    /**
+     * The paths of the given length and path id, read through the cursor so scans of the index can be joined. Their
+     * keys are stored keys, each column one on from where it is in the path.
+     */
+    private PrefixScan scan(PageProxyCursor cursor, int keyLength, long pathID) throws IOException {
+        return new PrefixScan(index.tree, index.storedPrefix(keyLength, new long[]{pathID}), cursor);
+    }
+
+    /**
+     * Inserts the paths a join found once its scans are closed, as they read the tree being inserted into.
+     */
+    private void insertAll(List<long[]> paths){
+        long clock = System.nanoTime();
+        for(long[] path : paths){
+            index.insert(path);
+        }
+        duration += System.nanoTime() - clock;
+    }
+
     public void loadK1Index() throws IOException {
         enumerateSingleEdges();
-        k1Sorter.sort();
-        indexes.put(1, buildIndex(k1Sorter));
-        k1Sorter.getSortedDisk().pageCacheFile.renameTo(new File("workloadK1.db"));
-
+        index = new MixedLengthIndex(k1Sorter.sortInto(new PipelinedIndexBuilder(disk, MAX_KEY_LENGTH + 1)));
     }
 
     private void enumerateSingleEdges() throws IOException {
@@ -578,18 +539,10 @@ public class LUBMWorkloadQueries {
     private void addPath(Node node1, Relationship relationship1, Node node2) throws IOException {
         PathIDBuilder builder = new PathIDBuilder(node1, relationship1, node2);
         long[] key = new long[]{builder.buildPath(), node1.getId(), node2.getId()};
-        k1Sorter.addUnsortedKey(key);
+        k1Sorter.addUnsortedKey(MixedLengthIndex.storedKey(key, MAX_KEY_LENGTH));
         updateStats(builder);
     }
 
-    public IndexTree buildIndex(Sorter sorter) throws IOException {
-        DiskCache sortedDisk = sorter.getSortedDisk();
-        disks.put(1, sortedDisk);
-        IndexBulkLoader bulkLoader = new IndexBulkLoader(sortedDisk, sorter.finalPageId(), sorter.keySize);
-        IndexTree index = bulkLoader.run();
-        return index;
-    }
-
     private void updateStats(PathIDBuilder builder){
         if(!relationshipMap.containsKey(builder.buildPath())){
             relationshipMap.put(builder.buildPath(), builder);
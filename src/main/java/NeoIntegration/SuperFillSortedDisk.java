@@ -3,6 +3,7 @@ package NeoIntegration;
 import bptree.PageProxyCursor;
 import bptree.impl.DiskCache;
 import bptree.impl.NodeHeader;
+import bptree.impl.NodeSize;
 import org.neo4j.io.pagecache.PagedFile;
 
 import java.io.IOException;
@@ -19,11 +20,20 @@ public class SuperFillSortedDisk {
     int keyLength;
     PageProxyCursor compressedCursor;
     int maxNumBytes;
+    int pageBytes; //the bytes of a page which are filled, the rest is left free for inserts
     final int sameID = 128;
     final int sameFirstNode = 64;
 
     public SuperFillSortedDisk(int keyLength) throws IOException {
+        this(keyLength, 1.0);
+    }
+
+    /**
+     * A filler which fills each leaf to the given fraction of a page.
+     */
+    public SuperFillSortedDisk(int keyLength, double fillFactor) throws IOException {
         this.keyLength = keyLength;
+        this.pageBytes = NodeSize.bulkLoadedPageBytes(fillFactor);
         this.prev = new long[keyLength];
         //String folder = "";
         String folder = "/Volumes/Passport/";
@@ -42,7 +52,7 @@ public class SuperFillSortedDisk {
         keyCount++;
         compressedCursor.putBytes(encodedKey);
         NodeHeader.setNumberOfKeys(compressedCursor, keyCount);
-        if ((compressedCursor.getOffset() + (keyLength * Long.BYTES)) > DiskCache.PAGE_SIZE) {
+        if ((compressedCursor.getOffset() + (keyLength * Long.BYTES)) > pageBytes) {
             //finalize this buffer, write it to the page, and start a new buffer
             NodeHeader.setNumberOfKeys(compressedCursor, keyCount);
             compressedCursor.next(compressedCursor.getCurrentPageId() + 1);
@@ -102,25 +112,25 @@ public class SuperFillSortedDisk {
     public static int numberOfBytes(long value){
         long abs = Math.abs(value);
         int minBytes = 8;
-        if(abs <= 127){
+        if(abs < 128){
             minBytes = 1;
         }
-        else if(abs <= 32768){
+        else if(abs < 32768){
             minBytes = 2;
         }
-        else if(abs <= 8388608){
+        else if(abs < 8388608){
             minBytes = 3;
         }
-        else if(abs <= 2147483648l){
+        else if(abs < 2147483648l){
             minBytes = 4;
         }
-        else if(abs <= 549755813888l){
+        else if(abs < 549755813888l){
             minBytes = 5;
         }
-        else if(abs <= 140737488355328l){
+        else if(abs < 140737488355328l){
             minBytes = 6;
         }
-        else if(abs <= 36028797018963968l){
+        else if(abs < 36028797018963968l){
             minBytes = 7;
         }
         return minBytes;
@@ -0,0 +1,71 @@
+package PageCacheSort;
+
+import java.io.IOException;
+
+/**
+ * Picks the smallest next key of a group of runs, for a k-way merge. Each inner node of the tournament holds the run
+ * which lost the match played there, so replacing the winner's key only replays the matches on its path to the
+ * root: log2(k) comparisons per key, made in place in the runs' page buffers.
+ */
+class LoserTree {
+    final Sorter.SetIteratorImpl[] runs;
+    final int[] losers;
+    int winner;
+
+    LoserTree(Sorter.SetIteratorImpl[] runs) throws IOException {
+        this.runs = runs;
+        int k = runs.length;
+        losers = new int[k];
+        int[] winners = new int[2 * k];
+        for(int i = 0; i < k; i++){
+            winners[k + i] = i;
+        }
+        for(int node = k - 1; node >= 1; node--){
+            int left = winners[2 * node];
+            int right = winners[2 * node + 1];
+            if(beats(left, right)){
+                winners[node] = left;
+                losers[node] = right;
+            }
+            else{
+                winners[node] = right;
+                losers[node] = left;
+            }
+        }
+        winner = k == 1 ? 0 : winners[1];
+    }
+
+    /**
+     * The run holding the smallest next key, or null once every run is exhausted.
+     */
+    Sorter.SetIteratorImpl winner() throws IOException {
+        Sorter.SetIteratorImpl run = runs[winner];
+        return run.hasNext() ? run : null;
+    }
+
+    /**
+     * Plays the winner's next key back up the tree, after its previous one has been taken.
+     */
+    void replay() throws IOException {
+        for(int node = (winner + runs.length) >> 1; node >= 1; node >>= 1){
+            if(beats(losers[node], winner)){
+                int loser = winner;
+                winner = losers[node];
+                losers[node] = loser;
+            }
+        }
+    }
+
+    /**
+     * True if run a's next key comes before run b's. Exhausted runs lose to every other run, and equal keys go to the
+     * earlier run.
+     */
+    private boolean beats(int a, int b) throws IOException {
+        if(!runs[a].hasNext())
+            return false;
+        if(!runs[b].hasNext())
+            return true;
+        int comparison = runs[a].compareNext(runs[b]);
+        return comparison < 0 || (comparison == 0 && a < b);
+    }
+}
@@ -0,0 +1,171 @@
+package PageCacheSort;
+
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Sorts keys of keySize longs packed one after another in a LongBuffer, in place, by most significant digit radix
+ * sort. A range of keys is spread over 256 buckets on one byte of one column by swapping each key into its bucket,
+ * then each bucket is sorted on the next byte. Bytes which are the same in every key are skipped, so small node ids
+ * cost one pass per byte they use rather than eight per column. Buckets of more than PARALLEL_KEYS keys are sorted
+ * as separate fork-join tasks.
+ */
+class RadixSort {
+    static final int INSERTION_SORT_KEYS = 32;
+    static final int PARALLEL_KEYS = 1 << 16;
+    final LongBuffer keys;
+    final int keySize;
+    final int numberOfKeys;
+    final int digits;
+    final long[] varyingBits; //per column, the bits which are not the same in every key
+
+    RadixSort(LongBuffer keys, int keySize, int numberOfKeys){
+        this.keys = keys;
+        this.keySize = keySize;
+        this.numberOfKeys = numberOfKeys;
+        this.digits = keySize * 8;
+        varyingBits = new long[keySize];
+        for(int k = 1; k < numberOfKeys; k++){
+            for(int column = 0; column < keySize; column++){
+                varyingBits[column] |= keys.get(k * keySize + column) ^ keys.get(column);
+            }
+        }
+    }
+
+    void sort(int threads){
+        Bucket all = new Bucket(0, numberOfKeys, nextDigit(-1));
+        if(threads > 1){
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                pool.invoke(all);
+            } finally {
+                pool.shutdown();
+            }
+        }
+        else{
+            all.sort(false);
+        }
+    }
+
+    /**
+     * The first digit after the given one which is not the same in every key. Digit d is byte d % 8, counting from
+     * the most significant, of column d / 8.
+     */
+    private int nextDigit(int digit){
+        for(digit++; digit < digits; digit++){
+            if(((varyingBits[digit / 8] >>> shift(digit)) & 0xFF) != 0)
+                return digit;
+        }
+        return digits;
+    }
+
+    private static int shift(int digit){
+        return 56 - ((digit % 8) * 8);
+    }
+
+    /**
+     * The digit of a key, with the sign bit of its column flipped so that negative values sort first.
+     */
+    private int digit(int key, int digit){
+        return (int) (((keys.get(key * keySize + (digit / 8)) ^ Long.MIN_VALUE) >>> shift(digit)) & 0xFF);
+    }
+
+    private void swap(int a, int b){
+        int offsetA = a * keySize;
+        int offsetB = b * keySize;
+        for(int i = 0; i < keySize; i++){
+            long value = keys.get(offsetA + i);
+            keys.put(offsetA + i, keys.get(offsetB + i));
+            keys.put(offsetB + i, value);
+        }
+    }
+
+    private int compare(int a, int b){
+        int offsetA = a * keySize;
+        int offsetB = b * keySize;
+        for(int i = 0; i < keySize; i++){
+            int comparison = Long.compare(keys.get(offsetA + i), keys.get(offsetB + i));
+            if(comparison != 0)
+                return comparison;
+        }
+        return 0;
+    }
+
+    class Bucket extends RecursiveAction {
+        final int from;
+        final int to;
+        final int digit;
+
+        Bucket(int from, int to, int digit){
+            this.from = from;
+            this.to = to;
+            this.digit = digit;
+        }
+
+        @Override
+        protected void compute() {
+            sort(true);
+        }
+
+        void sort(boolean parallel){
+            if(digit == digits)
+                return;
+            if(to - from <= INSERTION_SORT_KEYS){
+                insertionSort();
+                return;
+            }
+            int[] ends = new int[256];
+            for(int k = from; k < to; k++){
+                ends[digit(k, digit)]++;
+            }
+            int[] heads = new int[256];
+            int position = from;
+            for(int b = 0; b < 256; b++){
+                heads[b] = position;
+                position += ends[b];
+                ends[b] = position;
+            }
+            for(int b = 0; b < 256; b++){
+                while(heads[b] < ends[b]){
+                    int d = digit(heads[b], digit);
+                    if(d == b){
+                        heads[b]++;
+                    }
+                    else{
+                        swap(heads[b], heads[d]++);
+                    }
+                }
+            }
+            int next = nextDigit(digit);
+            if(next == digits)
+                return;
+            ArrayList<Bucket> forked = new ArrayList<>();
+            int start = from;
+            for(int b = 0; b < 256; b++){
+                if(ends[b] - start > 1){
+                    Bucket bucket = new Bucket(start, ends[b], next);
+                    if(parallel && ends[b] - start > PARALLEL_KEYS){
+                        forked.add(bucket);
+                    }
+                    else{
+                        bucket.sort(false);
+                    }
+                }
+                start = ends[b];
+            }
+            if(!forked.isEmpty()){
+                invokeAll(forked);
+            }
+        }
+
+        private void insertionSort(){
+            for(int i = from + 1; i < to; i++){
+                for(int j = i; j > from && compare(j - 1, j) > 0; j--){
+                    swap(j - 1, j);
+                }
+            }
+        }
+    }
+}
@@ -2,21 +2,29 @@ package PageCacheSort;
 
 import bptree.PageProxyCursor;
 import bptree.impl.DiskCache;
+import bptree.impl.IndexTree;
 import bptree.impl.KeyImpl;
 import bptree.impl.NodeHeader;
+import bptree.impl.PipelinedIndexBuilder;
 import org.neo4j.io.pagecache.PagedFile;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.LongBuffer;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Main entry into the Sorter.
  */
 public class Sorter {
     public int FAN_IN = 64;
-    PageProxyCursor setIteratorCursor;
+    public int MERGE_THREADS = 1; //the groups of runs of a merge pass are merged on this many threads
+    public int RUN_BUFFER_MB = 0; //if set, unsorted keys are packed off-heap and radix sorted into runs of this size
+    public int RUN_SORT_THREADS = 1;
     DiskCache writeToDisk;
     DiskCache readFromDisk;
     PageProxyCursor writeToCursor;
@@ -31,6 +39,9 @@ public class Sorter {
     int byteRepSize = 0;
     PriorityQueue<long[]> bulkLoadedKeys = new PriorityQueue<>(KeyImpl.getComparator());
     ArrayList<long[]> sortedKeys = new ArrayList<>();
+    LongBuffer runBuffer;
+    int runBufferKeys;
+    int keysInRunBuffer = 0;
 
     public Sorter(int keySize) throws IOException {
         this.keySize = keySize;
@@ -40,6 +51,15 @@ public class Sorter {
         writeToCursor = writeToDisk.getCursor(0, PagedFile.PF_EXCLUSIVE_LOCK | PagedFile.PF_NO_FAULT);
     }
 
+    /**
+     * A run buffer size for each of the given number of sorters, so their run buffers together take at most a quarter
+     * of the direct memory, which unless MaxDirectMemorySize is set is as much as the maximum heap.
+     */
+    public static int runBufferMB(int sorters){
+        long directMB = Runtime.getRuntime().maxMemory() / (1024 * 1024);
+        return (int) Math.max(1, Math.min(256, directMB / 4 / sorters));
+    }
+
     public SetIterator finishWithoutSort() throws IOException {
         flushAfterSortedKey();
         writeToCursor.next(writeToCursor.getCurrentPageId() - 1);
@@ -47,7 +67,6 @@ public class Sorter {
         writeToCursor.close();
         readFromDisk.shutdown();
         readFromDisk.pageCacheFile.delete();
-        setIteratorCursor = null;
         postSortSet = new PageSet();
         for(PageSet pageSet : writePageSets){
             postSortSet.add(pageSet.pop());
@@ -57,24 +76,76 @@ public class Sorter {
     }
 
     public SetIterator sort() throws IOException {
-        flushBulkLoadedKeys(); //check the contents of last page
-        writeToCursor.next(writeToCursor.getCurrentPageId() - 1);
-        NodeHeader.setFollowingID(writeToCursor, -1);
-        writeToCursor.close();
-
-        sortHelper();
+        flushRuns();
+        if(writePageSets.size() > 1) {
+            sortHelper(1);
+        }
         readFromDisk.shutdown();
         readFromDisk.pageCacheFile.delete();
-        setIteratorCursor = null;
         postSortSet = writePageSets.pop();
         finalPage = postSortSet.pagesInSet.getLast();
         return getFinalIterator(writeToDisk);
     }
 
-    private void sortHelper() throws IOException {
+    /**
+     * Sorts the keys straight into an index. Merge passes run until no more than FAN_IN runs are left, then the
+     * final merge hands its keys to the builder rather than writing them as one more sorted run, so the sorted keys
+     * are written once, as the leaves of the index. The sort files are deleted.
+     */
+    public IndexTree sortInto(PipelinedIndexBuilder builder) throws IOException {
+        assert(builder.keySize == keySize);
+        flushRuns();
+        if(writePageSets.size() > FAN_IN) {
+            sortHelper(FAN_IN);
+        }
+        long[] key = new long[keySize];
+        try(PageProxyCursor readCursor = writeToDisk.getCursor(0, PagedFile.PF_SHARED_LOCK | PagedFile.PF_READ_AHEAD)){
+            ArrayList<SetIteratorImpl> runs = new ArrayList<>();
+            for(PageSet set : writePageSets){
+                if(!set.isEmpty()){
+                    runs.add(new SetIteratorImpl(set, readCursor));
+                }
+            }
+            if(!runs.isEmpty()){
+                LoserTree tree = new LoserTree(runs.toArray(new SetIteratorImpl[runs.size()]));
+                SetIteratorImpl run;
+                while((run = tree.winner()) != null){
+                    run.readNext(key);
+                    builder.addKey(key);
+                    tree.replay();
+                }
+            }
+        }
+        writePageSets.clear();
+        writeToDisk.shutdown();
+        writeToDisk.pageCacheFile.delete();
+        readFromDisk.shutdown();
+        readFromDisk.pageCacheFile.delete();
+        return builder.finish();
+    }
+
+    private void flushRuns() throws IOException {
+        if(runBuffer != null){
+            flushRunBuffer();
+            runBuffer = null;
+        }
+        else {
+            flushBulkLoadedKeys(); //check the contents of last page
+        }
+        writeToCursor.next(writeToCursor.getCurrentPageId() - 1);
+        NodeHeader.setFollowingID(writeToCursor, -1);
+        writeToCursor.close();
+    }
+
+    /**
+     * Merges the runs in groups of FAN_IN until no more than runsLeft remain. Each group is written to its own range of pages, as
+     * many as it read, so the groups of a pass are independent and are merged on a fork-join pool when MERGE_THREADS
+     * is more than one. The last pass merges a single group, written from page 0.
+     */
+    private void sortHelper(int runsLeft) throws IOException {
         swapPageSets();
-        setIteratorCursor = readFromDisk.getCursor(0, PagedFile.PF_SHARED_LOCK | PagedFile.PF_READ_AHEAD);
-        writeToCursor = writeToDisk.getCursor(0, PagedFile.PF_EXCLUSIVE_LOCK | PagedFile.PF_NO_FAULT);
+        ArrayList<RunMerge> merges = new ArrayList<>();
+        long outputPage = 0;
         while(!readPageSets.isEmpty()){
             int modifiedFanOut = Math.min(readPageSets.size(), FAN_IN);
             LinkedList<PageSet> pageSets = new LinkedList<>();
@@ -86,29 +157,105 @@ public class Sorter {
                 PageSet nextSet = readPageSets.pop();
                 pageSets.add(nextSet);
             }
-            mergeSets(pageSets);
+            RunMerge merge = new RunMerge(pageSets, outputPage);
+            outputPage += merge.inputPages;
+            merges.add(merge);
         }
-        flushAfterSortedKey();
-        setIteratorCursor.close();
-        writeToCursor.close();
-        if(writePageSets.size() > 1){
-            sortHelper();
+        if(MERGE_THREADS > 1 && merges.size() > 1){
+            ForkJoinPool pool = new ForkJoinPool(MERGE_THREADS);
+            try {
+                pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(merges)));
+            } catch (UncheckedIOException e){
+                throw e.getCause();
+            } finally {
+                pool.shutdown();
+            }
+        }
+        else{
+            for(RunMerge merge : merges){
+                merge.merge();
+            }
+        }
+        for(RunMerge merge : merges){
+            writePageSets.add(merge.output);
+        }
+        if(writePageSets.size() > runsLeft){
+            sortHelper(runsLeft);
         }
     }
 
-    private void mergeSets(LinkedList<PageSet> pageSets) throws IOException {
-        writePageSets.add(new PageSet(pageSets));
-        PriorityQueue<SetIterator> pQueue = new PriorityQueue<>();
-        for(PageSet set : pageSets){
-            pQueue.add(new SetIteratorImpl(set));
-        }
-        SetIterator curr;
-        while(pQueue.size() > 0){
-            curr = pQueue.poll();
-            addSortedKey(curr.getNext());
-            if(curr.hasNext()) {
-                pQueue.add(curr);
+    /**
+     * Merges a group of runs from readFromDisk into one run on writeToDisk, starting at firstOutputPage. Every merge
+     * reads and writes through its own cursors, so merges can run on separate threads. Keys are picked by a LoserTree
+     * and copied from the page buffer of their run straight to the output page.
+     */
+    class RunMerge extends RecursiveAction {
+        final LinkedList<PageSet> input;
+        final long firstOutputPage;
+        final int inputPages;
+        final PageSet output = new PageSet();
+        final int keysPerPage = (ALT_MAX_PAGE_SIZE - 1) / keyByteSize;
+        PageProxyCursor writeCursor;
+        int keysInPage = 0;
+
+        RunMerge(LinkedList<PageSet> input, long firstOutputPage){
+            this.input = input;
+            this.firstOutputPage = firstOutputPage;
+            int pages = 0;
+            for(PageSet set : input){
+                pages += set.pagesInSet.size();
+            }
+            this.inputPages = pages;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                merge();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void merge() throws IOException {
+            try(PageProxyCursor readCursor = readFromDisk.getCursor(0, PagedFile.PF_SHARED_LOCK | PagedFile.PF_READ_AHEAD);
+                PageProxyCursor writeCursor = writeToDisk.getCursor(firstOutputPage, PagedFile.PF_EXCLUSIVE_LOCK | PagedFile.PF_NO_FAULT)){
+                this.writeCursor = writeCursor;
+                SetIteratorImpl[] runs = new SetIteratorImpl[input.size()];
+                for(int i = 0; i < runs.length; i++){
+                    runs[i] = new SetIteratorImpl(input.get(i), readCursor);
+                }
+                LoserTree tree = new LoserTree(runs);
+                writeCursor.setOffset(NodeHeader.NODE_HEADER_LENGTH);
+                SetIteratorImpl run;
+                while((run = tree.winner()) != null){
+                    writeKey(run);
+                    tree.replay();
+                }
+                if(keysInPage > 0){
+                    finishPage();
+                }
+            }
+        }
+
+        private void writeKey(SetIteratorImpl run) throws IOException {
+            if(keysInPage == keysPerPage){
+                finishPage();
+                writeCursor.next(writeCursor.getCurrentPageId() + 1);
+                writeCursor.setOffset(NodeHeader.NODE_HEADER_LENGTH);
             }
+            run.writeNext(writeCursor);
+            keysInPage++;
+        }
+
+        private void finishPage(){
+            NodeHeader.setNodeTypeLeaf(writeCursor);
+            NodeHeader.setKeyLength(writeCursor, keySize);
+            NodeHeader.setNumberOfKeys(writeCursor, keysInPage);
+            NodeHeader.setPrecedingId(writeCursor, writeCursor.getCurrentPageId() - 1);
+            NodeHeader.setFollowingID(writeCursor, writeCursor.getCurrentPageId() + 1);
+            output.add(writeCursor.getCurrentPageId());
+            keysInPage = 0;
         }
     }
 
@@ -144,18 +291,55 @@ public class Sorter {
 
     public void addUnsortedKey(long[] key) throws IOException {
         assert(key.length == keySize);
+        if(RUN_BUFFER_MB > 0){
+            addToRunBuffer(key);
+            return;
+        }
         if(byteRepSize + (keySize * 8) >= ALT_MAX_PAGE_SIZE){
             flushBulkLoadedKeys();
         }
         byteRepSize += key.length * 8;
         bulkLoadedKeys.add(key);
     }
-    private void addSortedKey(long[] key) throws IOException {
-        if(byteRepSize + (keySize * 8) >= ALT_MAX_PAGE_SIZE){
-            flushAfterSortedKey();
+    /**
+     * Copies the key into the run buffer, which is sorted and written out as one run of many pages when full. The
+     * buffer is off-heap, so a run of millions of keys is neither millions of objects nor part of the heap.
+     */
+    private void addToRunBuffer(long[] key) throws IOException {
+        if(runBuffer == null){
+            runBufferKeys = (int) Math.min(((long) RUN_BUFFER_MB * 1024 * 1024) / keyByteSize, Integer.MAX_VALUE / keyByteSize);
+            runBuffer = ByteBuffer.allocateDirect(runBufferKeys * keyByteSize).asLongBuffer();
         }
-        byteRepSize += key.length * 8;
-        sortedKeys.add(key);
+        if(keysInRunBuffer == runBufferKeys){
+            flushRunBuffer();
+        }
+        int offset = keysInRunBuffer * keySize;
+        for(int i = 0; i < keySize; i++){
+            runBuffer.put(offset + i, key[i]);
+        }
+        keysInRunBuffer++;
+    }
+
+    private void flushRunBuffer() throws IOException {
+        new RadixSort(runBuffer, keySize, keysInRunBuffer).sort(RUN_SORT_THREADS);
+        int keysPerPage = (ALT_MAX_PAGE_SIZE - 1) / keyByteSize;
+        PageSet run = new PageSet();
+        for(int first = 0; first < keysInRunBuffer; first += keysPerPage){
+            int keys = Math.min(keysPerPage, keysInRunBuffer - first);
+            NodeHeader.setNodeTypeLeaf(writeToCursor);
+            NodeHeader.setKeyLength(writeToCursor, keySize);
+            NodeHeader.setNumberOfKeys(writeToCursor, keys);
+            NodeHeader.setPrecedingId(writeToCursor, writeToCursor.getCurrentPageId() - 1);
+            NodeHeader.setFollowingID(writeToCursor, writeToCursor.getCurrentPageId() + 1);
+            writeToCursor.setOffset(NodeHeader.NODE_HEADER_LENGTH);
+            for(int i = first * keySize; i < (first + keys) * keySize; i++){
+                writeToCursor.putLong(runBuffer.get(i));
+            }
+            run.add(writeToCursor.getCurrentPageId());
+            writeToCursor.next(writeToCursor.getCurrentPageId() + 1);
+        }
+        writePageSets.add(run);
+        keysInRunBuffer = 0;
     }
 
     /* Testing for compressed pages.
@@ -238,14 +422,24 @@ public class Sorter {
     }
 
 
-    public class SetIteratorImpl implements SetIterator, Comparable<SetIterator>{
+    public class SetIteratorImpl implements SetIterator{
         boolean setExhausted = false;
         PageSet set;
         byte[] byteRep = new byte[ALT_MAX_PAGE_SIZE];
         LongBuffer buffer = ByteBuffer.wrap(byteRep).asLongBuffer();
+        PageProxyCursor setIteratorCursor;
 
         public SetIteratorImpl(PageSet set) throws IOException {
+            this(set, null);
+        }
+
+        /**
+         * An iterator reading its pages through the given cursor, which may be shared with the other runs of a merge.
+         * If null, a cursor is opened on readFromDisk for each page.
+         */
+        public SetIteratorImpl(PageSet set, PageProxyCursor setIteratorCursor) throws IOException {
             this.set = set;
+            this.setIteratorCursor = setIteratorCursor;
             fillBuffer(set.pop());
         }
 
@@ -303,12 +497,35 @@ public class Sorter {
             return true;
         }
 
-        @Override
-        public int compareTo(SetIterator other) {
-            try {
-                return KeyImpl.getComparator().compare(peekNext(), other.peekNext());
-            } catch (IOException e) {
-                return 1;
+        /**
+         * Compares the next keys of the two runs where they lie in the page buffers. Both runs must have a next key.
+         */
+        int compareNext(SetIteratorImpl other){
+            int position = buffer.position();
+            int otherPosition = other.buffer.position();
+            for(int i = 0; i < keySize; i++){
+                int comparison = Long.compare(buffer.get(position + i), other.buffer.get(otherPosition + i));
+                if(comparison != 0)
+                    return comparison;
+            }
+            return 0;
+        }
+
+        /**
+         * Copies the next key into dest. The run must have a next key.
+         */
+        void readNext(long[] dest){
+            for(int i = 0; i < keySize; i++){
+                dest[i] = buffer.get();
+            }
+        }
+
+        /**
+         * Writes the next key to the cursor at its offset. The run must have a next key.
+         */
+        void writeNext(PageProxyCursor cursor){
+            for(int i = 0; i < keySize; i++){
+                cursor.putLong(buffer.get());
             }
         }
     }
@@ -0,0 +1,11 @@
+package bptree;
+
+/**
+ * Receives the keys found by IndexTree.findAll. The array passed in is reused for the next key, so it must be copied to be kept.
+ */
+public interface BatchVisitor {
+    /**
+     * @param probe the index of the prefix the key matches, in the array given to findAll.
+     */
+    void visit(int probe, long[] key);
+}
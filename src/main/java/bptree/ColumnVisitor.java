@@ -0,0 +1,11 @@
+package bptree;
+
+/**
+ * Receives one column of the keys found by IndexTree.findColumn, a value at a time.
+ */
+public interface ColumnVisitor {
+    /**
+     * @return false to stop the scan.
+     */
+    boolean visit(long value);
+}
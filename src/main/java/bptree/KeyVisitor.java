@@ -0,0 +1,11 @@
+package bptree;
+
+/**
+ * Receives the keys of a scan one at a time. The array passed in is reused for the next key, so it must be copied to be kept.
+ */
+public interface KeyVisitor {
+    /**
+     * @return false to stop the scan.
+     */
+    boolean visit(long[] key);
+}
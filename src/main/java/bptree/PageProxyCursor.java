@@ -1,5 +1,7 @@
 package bptree;
 
+import bptree.impl.DiskCache;
+
 import java.io.Closeable;
 import java.io.IOException;
 
@@ -14,6 +16,8 @@ public abstract class PageProxyCursor implements Closeable{
 
     abstract public long getCurrentPageId();
 
+    abstract public DiskCache getDisk();
+
     abstract public int capacity();
 
     abstract public  void setOffset(int offset);
@@ -54,4 +58,11 @@ public abstract class PageProxyCursor implements Closeable{
 
     abstract public void resumeWriting();
 
+    /**
+     * Shared lock cursors read pages optimistically. Returns true if the current page was changed by a writer since
+     * it was loaded, in which case everything read from it must be read again. Further reads of the page are then
+     * done under a read lock, so a retry only ever happens once per page.
+     */
+    abstract public boolean shouldRetry() throws IOException;
+
 }
\ No newline at end of file
@@ -11,15 +11,18 @@ import java.io.IOException;
 public class BasicPageCursor extends PageProxyCursor {
 
     PageCursor cursor;
+    DiskCache disk;
+    int lock;
 
     public BasicPageCursor(DiskCache disk, long pageId, int lock) throws IOException {
-        this.cursor = disk.pagedFile.io(pageId, lock);
-        cursor.next();
+        this.disk = disk;
+        this.lock = lock;
+        this.cursor = disk.openPageCursor(pageId, lock);
     }
 
     @Override
     public void next(long page) throws IOException {
-        cursor.next(page);
+        cursor = disk.movePageCursor(cursor, page, lock);
     }
 
     @Override
@@ -27,6 +30,11 @@ public class BasicPageCursor extends PageProxyCursor {
         return cursor.getCurrentPageId();
     }
 
+    @Override
+    public DiskCache getDisk(){
+        return disk;
+    }
+
     @Override
     public int capacity() {
         return DiskCache.PAGE_SIZE;
@@ -127,8 +135,13 @@ public class BasicPageCursor extends PageProxyCursor {
         return NodeSize.internalNodeContainsSpaceForNewKeyAndChild(this, newKey);
     }
 
+    @Override
+    public boolean shouldRetry() throws IOException {
+        return cursor.shouldRetry();
+    }
+
     @Override
     public void close() throws IOException {
-        this.cursor.close();
+        disk.closePageCursor(cursor, lock);
     }
 }
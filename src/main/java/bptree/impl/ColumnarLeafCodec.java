@@ -0,0 +1,88 @@
+package bptree.impl;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Stores the keys of a leaf column by column, all of the path ids, then all of the first nodes and so on, so one
+ * column can be decoded without the others. The path ids are stored as runs, as by PathRunLengthCodec, and each node
+ * column either frame of reference bit packed, as by FrameOfReferenceCodec, or as zig-zag varint differences from
+ * the key before, whichever is smaller for that column.
+ *
+ * [end of column 0]...[end of column keyLength - 1][runs of path ids][encoding, column 1]...[encoding, column keyLength - 1]
+ * The ends are unsigned shorts counted from the start of the encoded keys, so the last one is their length.
+ */
+public class ColumnarLeafCodec implements LeafCodec {
+    static final byte PACKED = 0;
+    static final byte DELTAS = 1;
+
+    @Override
+    public byte id() {
+        return Superblock.CODEC_COLUMNAR;
+    }
+
+    @Override
+    public int encodedLength(long[] keys, int numberOfKeys, int keyLength) {
+        int length = keyLength * Short.BYTES + PathRunLengthCodec.runsLength(keys, numberOfKeys, keyLength);
+        for(int column = 1; column < keyLength; column++){
+            length += 1 + Math.min(FrameOfReferenceCodec.columnLength(keys, numberOfKeys, keyLength, column),
+                    PathRunLengthCodec.deltasLength(keys, numberOfKeys, keyLength, column));
+        }
+        return length;
+    }
+
+    @Override
+    public void encode(long[] keys, int numberOfKeys, int keyLength, ByteBuffer dest) {
+        int start = dest.position();
+        dest.position(start + keyLength * Short.BYTES);
+        PathRunLengthCodec.encodeRuns(keys, numberOfKeys, keyLength, dest);
+        dest.putShort(start, (short) (dest.position() - start));
+        for(int column = 1; column < keyLength; column++){
+            if(FrameOfReferenceCodec.columnLength(keys, numberOfKeys, keyLength, column) <=
+                    PathRunLengthCodec.deltasLength(keys, numberOfKeys, keyLength, column)){
+                dest.put(PACKED);
+                FrameOfReferenceCodec.encodeColumn(keys, numberOfKeys, keyLength, column, dest);
+            }
+            else{
+                dest.put(DELTAS);
+                PathRunLengthCodec.encodeDeltas(keys, numberOfKeys, keyLength, column, dest);
+            }
+            dest.putShort(start + column * Short.BYTES, (short) (dest.position() - start));
+        }
+    }
+
+    @Override
+    public void decode(ByteBuffer src, int numberOfKeys, int keyLength, long[] keys) {
+        int start = src.position();
+        for(int column = 0; column < keyLength; column++){
+            decodeColumn(src, numberOfKeys, keyLength, column, keys);
+        }
+        src.position(start + length(src, keyLength));
+    }
+
+    /**
+     * Reads one column of the keys encoded from the position of src on into its places in keys, leaving the other
+     * columns of keys and the position of src unchanged.
+     */
+    public void decodeColumn(ByteBuffer src, int numberOfKeys, int keyLength, int column, long[] keys){
+        int start = src.position();
+        if(column == 0){
+            src.position(start + keyLength * Short.BYTES);
+            PathRunLengthCodec.decodeRuns(src, keyLength, keys);
+        }
+        else{
+            src.position(start + (src.getShort(start + (column - 1) * Short.BYTES) & 0xFFFF));
+            if(src.get() == PACKED)
+                FrameOfReferenceCodec.decodeColumn(src, numberOfKeys, keyLength, column, keys);
+            else
+                PathRunLengthCodec.decodeDeltas(src, numberOfKeys, keyLength, column, keys);
+        }
+        src.position(start);
+    }
+
+    /**
+     * The number of bytes of the keys encoded from the position of src on.
+     */
+    public static int length(ByteBuffer src, int keyLength){
+        return src.getShort(src.position() + (keyLength - 1) * Short.BYTES) & 0xFFFF;
+    }
+}
@@ -10,6 +10,8 @@ import java.util.Arrays;
 
 public class CompressedPageCursor extends PageProxyCursor{
     PageCursor cursor;
+    DiskCache disk;
+    int lock;
     int maxPageSize = DiskCache.PAGE_SIZE * 7;
     ByteBuffer dBuffer = ByteBuffer.allocate(maxPageSize);
     int mostRecentCompressedLeafSize = DiskCache.PAGE_SIZE;//the default value
@@ -17,15 +19,17 @@ public class CompressedPageCursor extends PageProxyCursor{
     int maxNumBytes;
 
     public CompressedPageCursor(DiskCache disk, long pageId, int lock) throws IOException {
+        this.disk = disk;
+        this.lock = lock;
         this.cursor = disk.pagedFile.io(pageId, lock);
         cursor.next();
-        loadCursorFromDisk();
+        loadValidatedFromDisk();
     }
 
     @Override
     public void next(long page) throws IOException {
-        cursor.next(page);
-        loadCursorFromDisk();
+        cursor = disk.movePageCursor(cursor, page, lock);
+        loadValidatedFromDisk();
         dBuffer.position(0);
     }
 
@@ -100,25 +104,25 @@ public class CompressedPageCursor extends PageProxyCursor{
     public static int numberOfBytes(long value){
         long abs = Math.abs(value);
         int minBytes = 8;
-        if(abs <= 127){
+        if(abs < 128){
             minBytes = 1;
         }
-        else if(abs <= 32768){
+        else if(abs < 32768){
             minBytes = 2;
         }
-        else if(abs <= 8388608){
+        else if(abs < 8388608){
             minBytes = 3;
         }
-        else if(abs <= 2147483648l){
+        else if(abs < 2147483648l){
             minBytes = 4;
         }
-        else if(abs <= 549755813888l){
+        else if(abs < 549755813888l){
             minBytes = 5;
         }
-        else if(abs <= 140737488355328l){
+        else if(abs < 140737488355328l){
             minBytes = 6;
         }
-        else if(abs <= 36028797018963968l){
+        else if(abs < 36028797018963968l){
             minBytes = 7;
         }
         return minBytes;
@@ -164,6 +168,21 @@ public class CompressedPageCursor extends PageProxyCursor{
             cursor.putByte(dBuffer.get(i));
     }
 
+    private void loadValidatedFromDisk() throws IOException {
+        boolean retry;
+        do {
+            try {
+                loadCursorFromDisk();
+                retry = cursor.shouldRetry();
+            }
+            catch(RuntimeException e){ //a concurrent write left the page in a state which could not be decoded
+                retry = cursor.shouldRetry();
+                if(!retry)
+                    throw e;
+            }
+        } while(retry);
+    }
+
     private void loadCursorFromDisk(){
         if (NodeHeader.isUninitializedNode(cursor)) {
             return;
@@ -215,6 +234,11 @@ public class CompressedPageCursor extends PageProxyCursor{
         return cursor.getCurrentPageId();
     }
 
+    @Override
+    public DiskCache getDisk(){
+        return disk;
+    }
+
     @Override
     public int capacity() {
         if(NodeHeader.isLeafNode(this))
@@ -329,6 +353,16 @@ public class CompressedPageCursor extends PageProxyCursor{
         return NodeSize.internalNodeContainsSpaceForNewKeyAndChild(this, newKey);
     }
 
+    @Override
+    public boolean shouldRetry() throws IOException {
+        if(cursor.shouldRetry()){
+            loadCursorFromDisk();
+            dBuffer.position(0);
+            return true;
+        }
+        return false;
+    }
+
     @Override
     public void close() throws IOException {
         this.cursor.close();
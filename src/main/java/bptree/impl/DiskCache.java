@@ -2,6 +2,9 @@ package bptree.impl;
 
 import bptree.PageProxyCursor;
 import org.neo4j.io.fs.DefaultFileSystemAbstraction;
+import org.neo4j.io.pagecache.PageCursor;
+import org.neo4j.io.pagecache.PageSwapper;
+import org.neo4j.io.pagecache.PageSwapperFactory;
 import org.neo4j.io.pagecache.PagedFile;
 import org.neo4j.io.pagecache.impl.SingleFilePageSwapperFactory;
 import org.neo4j.io.pagecache.impl.muninn.MuninnPageCache;
@@ -9,6 +12,9 @@ import org.neo4j.io.pagecache.tracing.PageCacheTracer;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.nio.ByteBuffer;
 
 
@@ -22,12 +28,21 @@ public class DiskCache {
     public transient PagedFile pagedFile;
     public File pageCacheFile;
     public boolean COMPRESSION = true;
+    public boolean STREAMING_DECODE = true; //decode compressed leaves key by key as they are read, instead of all at once.
+    public LeafCodec LEAF_CODEC = null; //the codec compressed leaves are written with, null for the delta encoding.
+    public FreePageManager freePages;
+    public Superblock superblock; //as read when the file was opened, null if it had none
+    public IndexTree index; //the one index of the disk, whose superblock is written on shutdown
+    public WriteAheadLog wal; //logs the mutations of index once it is opened, null until then
+    private final boolean persistent;
 
-    private DiskCache(File pageCacheFile, boolean compression) {
+    private DiskCache(File pageCacheFile, boolean compression, boolean persistent) {
         this.COMPRESSION = compression;
         this.pageCacheFile = pageCacheFile;
+        this.persistent = persistent;
         try {
             initializePageCache();
+            initializeFreePages();
         }
         catch (IOException e){
             e.printStackTrace();
@@ -36,11 +51,68 @@ public class DiskCache {
 
     private void initializePageCache() throws IOException {
         fs = new DefaultFileSystemAbstraction();
-        SingleFilePageSwapperFactory factory = new SingleFilePageSwapperFactory(fs);
+        PageSwapperFactory factory = forcingLogBeforeWrites(new SingleFilePageSwapperFactory(fs));
         pageCache = new MuninnPageCache(factory, maxPages, PAGE_SIZE, PageCacheTracer.NULL);
         pagedFile = pageCache.map(this.pageCacheFile, PAGE_SIZE);
     }
 
+    /*
+    The page cache writes pages to the file through the swappers of its factory, when it evicts or flushes them. Each
+    swapper is wrapped to force the write-ahead log before it writes, so no page reaches the file before the records
+    of its changes, however long ago they were appended. While the log is durable this costs nothing.
+     */
+    private PageSwapperFactory forcingLogBeforeWrites(PageSwapperFactory factory){
+        return (PageSwapperFactory) Proxy.newProxyInstance(PageSwapperFactory.class.getClassLoader(),
+                new Class<?>[]{PageSwapperFactory.class}, (proxy, method, args) -> {
+            Object result = invoke(factory, proxy, method, args);
+            if(!(result instanceof PageSwapper)){
+                return result;
+            }
+            PageSwapper swapper = (PageSwapper) result;
+            return Proxy.newProxyInstance(PageSwapper.class.getClassLoader(), new Class<?>[]{PageSwapper.class},
+                    (swapperProxy, swapperMethod, swapperArgs) -> {
+                WriteAheadLog wal = this.wal;
+                if(wal != null && swapperMethod.getName().equals("write")){
+                    wal.forceAppended();
+                }
+                return invoke(swapper, swapperProxy, swapperMethod, swapperArgs);
+            });
+        });
+    }
+
+    private static Object invoke(Object target, Object proxy, Method method, Object[] args) throws Throwable {
+        if(method.getName().equals("equals") && args != null && args.length == 1){
+            return proxy == args[0];
+        }
+        if(method.getName().equals("hashCode") && args == null){
+            return System.identityHashCode(proxy);
+        }
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * A temporary cache starts with no pages in use. A persistent cache reloads the free pages listed by its superblock,
+     * or if it has none, takes every page of the file to be in use. A write-ahead log left by a crash is then replayed.
+     */
+    private void initializeFreePages() throws IOException {
+        if(!persistent){
+            freePages = new FreePageManager(0);
+            return;
+        }
+        superblock = Superblock.read(this);
+        if(superblock != null){
+            freePages = superblock.readFreePages(this);
+        }
+        else{
+            freePages = new FreePageManager(pagedFile.getLastPageId() + 1);
+        }
+        superblock = WriteAheadLog.recover(this, superblock);
+    }
+
     public static DiskCache temporaryDiskCache(boolean compression){
         return temporaryDiskCache(DEFAULT_CACHE_FILE_NAME, compression);
     }
@@ -48,7 +120,7 @@ public class DiskCache {
     public static DiskCache temporaryDiskCache(String filename, boolean compression){
         File cache_file = new File(filename);
         cache_file.deleteOnExit();
-        return new DiskCache(cache_file, compression);
+        return new DiskCache(cache_file, compression, false);
     }
 
     public static DiskCache persistentDiskCache(boolean compression){
@@ -56,13 +128,46 @@ public class DiskCache {
     }
 
     public static DiskCache persistentDiskCache(String filename, boolean compression){
-        return new DiskCache(new File(filename), compression);
+        return new DiskCache(new File(filename), compression, true);
     }
 
+    /**
+     * Opens the index stored in the file from its superblock alone, with the key length, root and codec it records.
+     */
+    public static IndexTree openIndex(String filename) throws IOException {
+        DiskCache disk = persistentDiskCache(filename, false);
+        if(disk.superblock == null){
+            disk.shutdown();
+            throw new IllegalStateException(filename + " has no superblock");
+        }
+        disk.setLeafCodecId(disk.superblock.codec);
+        IndexTree index = new IndexTree(disk.superblock.keyLength, disk.superblock.rootId, disk);
+        if(disk.superblock.firstLeaf == -1){
+            disk.superblock = Superblock.describe(index); //recovered from the log, which does not track the leaf range
+        }
+        return index;
+    }
+
+    /**
+     * The codec byte recorded in the superblock, CODEC_NONE for an uncompressed index.
+     */
+    public byte leafCodecId(){
+        if(!COMPRESSION)
+            return Superblock.CODEC_NONE;
+        return LEAF_CODEC == null ? Superblock.CODEC_SUPER_COMPRESSED : LEAF_CODEC.id();
+    }
+
+    public void setLeafCodecId(byte codec){
+        COMPRESSION = codec != Superblock.CODEC_NONE;
+        LEAF_CODEC = COMPRESSION ? LeafCodec.forId(codec) : null;
+    }
+
+    /**
+     * Compressed leaves are read through SuperCompressedPageCursor whichever codec wrote them, and written with
+     * LEAF_CODEC.
+     */
     public PageProxyCursor getCursor(long id, int lockType) throws IOException {
         if(COMPRESSION){
-            //return new LZ4PageCursor(this, id, lockType);
-            //return new CompressedPageCursor(this, id, lockType);
             return new SuperCompressedPageCursor(this, id, lockType);
         }
         else{
@@ -70,6 +175,52 @@ public class DiskCache {
         }
     }
 
+    /**
+     * Opens a page cursor on the page. The page cursors of the tree's cursors are opened, moved and closed through
+     * here, so the write-ahead log sees every page a logged mutation locks exclusively, and logs it on release.
+     */
+    public PageCursor openPageCursor(long page, int lockType) throws IOException {
+        PageCursor cursor = pagedFile.io(page, lockType);
+        cursor.next();
+        WriteAheadLog wal = this.wal;
+        if(wal != null && (lockType & PagedFile.PF_EXCLUSIVE_LOCK) != 0){
+            wal.pinned(cursor);
+        }
+        return cursor;
+    }
+
+    /**
+     * Moves a page cursor to the page. A shared lock cursor cannot move past the last page the file had when it was
+     * opened, so it is reopened to reach pages which writers have added since.
+     */
+    public PageCursor movePageCursor(PageCursor cursor, long page, int lockType) throws IOException {
+        WriteAheadLog wal = this.wal;
+        boolean logged = wal != null && (lockType & PagedFile.PF_EXCLUSIVE_LOCK) != 0;
+        if(logged){
+            wal.unpinned(cursor);
+        }
+        if(!cursor.next(page)){
+            cursor.close();
+            cursor = pagedFile.io(page, lockType);
+            cursor.next();
+        }
+        if(logged){
+            wal.pinned(cursor);
+        }
+        return cursor;
+    }
+
+    public void closePageCursor(PageCursor cursor, int lockType) throws IOException {
+        try {
+            WriteAheadLog wal = this.wal;
+            if(wal != null && (lockType & PagedFile.PF_EXCLUSIVE_LOCK) != 0){
+                wal.unpinned(cursor);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
     public ByteBuffer readPage(IndexTree tree, long id) {
         byte[] byteArray = new byte[0];
         try (PageProxyCursor cursor = getCursor(tree.rootNodeId, PagedFile.PF_EXCLUSIVE_LOCK)) {
@@ -112,7 +263,18 @@ public class DiskCache {
 
     public void shutdown() throws IOException {
         //System.out.println(this.pageCacheFile);
+        if(persistent && index != null){
+            superblock = Superblock.describe(index);
+            superblock.write(this);
+        }
         pagedFile.close();
         pageCache.close();
+        if(wal != null){
+            wal.close();
+            wal = null;
+        }
+        if(persistent && index != null){
+            WriteAheadLog.logFile(pageCacheFile).delete(); //the superblock now describes every logged mutation
+        }
     }
 }
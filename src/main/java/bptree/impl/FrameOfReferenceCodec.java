@@ -0,0 +1,202 @@
+package bptree.impl;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Stores each column of a leaf, the path ids, the first nodes and so on, as its smallest value and the differences
+ * of the column from it, bit packed at the width which makes the column smallest. Differences wider than that width
+ * are patched in as exceptions after the packed bits, so a few outliers do not widen the whole column.
+ *
+ * Column: [base][width][number of exceptions][packed differences][exception key index, difference]...
+ * Differences are packed low bits first, in big endian longs followed by the bytes of the last partial long.
+ */
+public class FrameOfReferenceCodec implements LeafCodec {
+    static final int COLUMN_HEADER_LENGTH = 8 + 1 + 2;
+    static final int EXCEPTION_LENGTH = 2 + 8;
+
+    @Override
+    public byte id() {
+        return Superblock.CODEC_FRAME_OF_REFERENCE;
+    }
+
+    @Override
+    public int encodedLength(long[] keys, int numberOfKeys, int keyLength) {
+        int length = 0;
+        for(int column = 0; column < keyLength; column++){
+            length += columnLength(keys, numberOfKeys, keyLength, column);
+        }
+        return length;
+    }
+
+    @Override
+    public void encode(long[] keys, int numberOfKeys, int keyLength, ByteBuffer dest) {
+        for(int column = 0; column < keyLength; column++){
+            encodeColumn(keys, numberOfKeys, keyLength, column, dest);
+        }
+    }
+
+    @Override
+    public void decode(ByteBuffer src, int numberOfKeys, int keyLength, long[] keys) {
+        for(int column = 0; column < keyLength; column++){
+            decodeColumn(src, numberOfKeys, keyLength, column, keys);
+        }
+    }
+
+    static int columnLength(long[] keys, int numberOfKeys, int keyLength, int column){
+        long base = base(keys, numberOfKeys, keyLength, column);
+        int width = width(keys, numberOfKeys, keyLength, column, base);
+        return COLUMN_HEADER_LENGTH + packedLength(numberOfKeys, width) +
+                exceptions(keys, numberOfKeys, keyLength, column, base, width) * EXCEPTION_LENGTH;
+    }
+
+    static void encodeColumn(long[] keys, int numberOfKeys, int keyLength, int column, ByteBuffer dest){
+        long base = base(keys, numberOfKeys, keyLength, column);
+        int width = width(keys, numberOfKeys, keyLength, column, base);
+        dest.putLong(base);
+        dest.put((byte) width);
+        dest.putShort((short) exceptions(keys, numberOfKeys, keyLength, column, base, width));
+        pack(keys, numberOfKeys, keyLength, column, base, width, dest);
+        for(int i = 0; i < numberOfKeys; i++){
+            long difference = keys[i * keyLength + column] - base;
+            if(bitsOf(difference) > width){
+                dest.putShort((short) i);
+                dest.putLong(difference);
+            }
+        }
+    }
+
+    static void decodeColumn(ByteBuffer src, int numberOfKeys, int keyLength, int column, long[] keys){
+        long base = src.getLong();
+        int width = src.get() & 0xFF;
+        int exceptions = src.getShort() & 0xFFFF;
+        unpack(src, numberOfKeys, keyLength, column, base, width, keys);
+        for(int i = 0; i < exceptions; i++){
+            int key = src.getShort() & 0xFFFF;
+            keys[key * keyLength + column] = base + src.getLong();
+        }
+    }
+
+    private static long base(long[] keys, int numberOfKeys, int keyLength, int column){
+        long base = Long.MAX_VALUE;
+        for(int i = column; i < numberOfKeys * keyLength; i += keyLength){
+            base = Math.min(base, keys[i]);
+        }
+        return base;
+    }
+
+    /**
+     * The width at which the packed differences and the exceptions of the column take the fewest bytes. The
+     * differences are unsigned, a column can span the whole range of a long.
+     */
+    private static int width(long[] keys, int numberOfKeys, int keyLength, int column, long base){
+        int[] keysOfWidth = new int[Long.SIZE + 1];
+        for(int i = column; i < numberOfKeys * keyLength; i += keyLength){
+            keysOfWidth[bitsOf(keys[i] - base)]++;
+        }
+        int best = Long.SIZE;
+        int bestLength = Integer.MAX_VALUE;
+        int wider = 0; //the differences wider than the width, which would be exceptions
+        for(int width = Long.SIZE; width >= 0; width--){
+            int length = packedLength(numberOfKeys, width) + wider * EXCEPTION_LENGTH;
+            if(length <= bestLength){
+                bestLength = length;
+                best = width;
+            }
+            wider += keysOfWidth[width];
+        }
+        return best;
+    }
+
+    private static int exceptions(long[] keys, int numberOfKeys, int keyLength, int column, long base, int width){
+        int exceptions = 0;
+        for(int i = column; i < numberOfKeys * keyLength; i += keyLength){
+            if(bitsOf(keys[i] - base) > width){
+                exceptions++;
+            }
+        }
+        return exceptions;
+    }
+
+    static int bitsOf(long difference){
+        return Long.SIZE - Long.numberOfLeadingZeros(difference);
+    }
+
+    static int packedLength(int numberOfKeys, int width){
+        return (int) (((long) numberOfKeys * width + 7) / 8);
+    }
+
+    /**
+     * Packs the differences of the column, writing exceptions as zero.
+     */
+    private static void pack(long[] keys, int numberOfKeys, int keyLength, int column, long base, int width, ByteBuffer dest){
+        if(width == 0){
+            return;
+        }
+        long word = 0;
+        int filled = 0;
+        for(int i = 0; i < numberOfKeys; i++){
+            long value = keys[i * keyLength + column] - base;
+            if(bitsOf(value) > width){
+                value = 0;
+            }
+            int remaining = width;
+            while(remaining > 0){
+                int bits = Math.min(remaining, Long.SIZE - filled);
+                word |= (bits == Long.SIZE ? value : value & ((1l << bits) - 1)) << filled;
+                value = bits == Long.SIZE ? 0 : value >>> bits;
+                filled += bits;
+                remaining -= bits;
+                if(filled == Long.SIZE){
+                    dest.putLong(word);
+                    word = 0;
+                    filled = 0;
+                }
+            }
+        }
+        for(; filled > 0; filled -= 8){
+            dest.put((byte) word);
+            word >>>= 8;
+        }
+    }
+
+    private static void unpack(ByteBuffer src, int numberOfKeys, int keyLength, int column, long base, int width, long[] keys){
+        if(width == 0){
+            for(int i = 0; i < numberOfKeys; i++){
+                keys[i * keyLength + column] = base;
+            }
+            return;
+        }
+        long totalBits = (long) numberOfKeys * width;
+        long fullWords = totalBits / Long.SIZE;
+        int lastWordBits = (int) (totalBits % Long.SIZE);
+        long wordsRead = 0;
+        long word = 0;
+        int available = 0;
+        for(int i = 0; i < numberOfKeys; i++){
+            long value = 0;
+            int read = 0;
+            while(read < width){
+                if(available == 0){
+                    if(wordsRead < fullWords){
+                        word = src.getLong();
+                        available = Long.SIZE;
+                    }
+                    else{
+                        word = 0;
+                        for(int b = 0; b * 8 < lastWordBits; b++){
+                            word |= (src.get() & 0xFFl) << (b * 8);
+                        }
+                        available = lastWordBits;
+                    }
+                    wordsRead++;
+                }
+                int bits = Math.min(width - read, available);
+                value |= (bits == Long.SIZE ? word : word & ((1l << bits) - 1)) << read;
+                word = bits == Long.SIZE ? 0 : word >>> bits;
+                read += bits;
+                available -= bits;
+            }
+            keys[i * keyLength + column] = base + value;
+        }
+    }
+}
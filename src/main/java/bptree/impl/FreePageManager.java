@@ -0,0 +1,233 @@
+package bptree.impl;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out the page ids of one DiskCache. Pages at and after nextNewPage have never been used, so acquiring one of
+ * them is an increment. Released pages are kept in a bitmap, one bit per page, held off-heap in segments of
+ * SEGMENT_PAGES pages. Each segment has its own lock, so threads releasing and reusing pages in different parts of the
+ * file do not contend, and its count of free pages, so a segment with none is skipped without reading its bitmap.
+ *
+ * Free pages are reused lowest first, so pages freed next to each other are handed out next to each other again and
+ * the leaves of a scan stay close together on disk. Bulk loaders take whole extents of fresh pages with acquireExtent.
+ */
+public class FreePageManager {
+    public static final int SEGMENT_SHIFT = 15;
+    public static final int SEGMENT_PAGES = 1 << SEGMENT_SHIFT;
+    private static final int WORDS_PER_SEGMENT = SEGMENT_PAGES / Long.SIZE;
+    private final AtomicLong nextNewPage;
+    private final AtomicLong freePages = new AtomicLong();
+    private volatile Segment[] segments = new Segment[0];
+    private volatile int lowestFreeSegment = 0; //no segment below this one has a free page
+
+    /**
+     * A manager for a file whose pages before firstNewPage are all in use.
+     */
+    public FreePageManager(long firstNewPage){
+        nextNewPage = new AtomicLong(firstNewPage);
+    }
+
+    /**
+     * Acquires the lowest free page, or a new one if none is free. A release racing with the hint moving past its
+     * segment can hide a free page from the first scan, so a second scan starts from the first segment.
+     */
+    public long acquire(){
+        for(int scan = 0; scan < 2 && freePages.get() > 0; scan++){
+            Segment[] segments = this.segments;
+            for(int i = scan == 0 ? lowestFreeSegment : 0; i < segments.length; i++){
+                long page = segments[i].acquire();
+                if(page != -1){
+                    freePages.decrementAndGet();
+                    return page;
+                }
+                if(i == lowestFreeSegment){
+                    lowestFreeSegment = i + 1;
+                }
+            }
+        }
+        return nextNewPage.getAndIncrement();
+    }
+
+    /**
+     * Acquires count pages with consecutive ids, never used before, and returns the first of them.
+     */
+    public long acquireExtent(long count){
+        return nextNewPage.getAndAdd(count);
+    }
+
+    public void release(long page){
+        assert(page < nextNewPage.get());
+        int index = (int) (page >>> SEGMENT_SHIFT);
+        if(segment(index).release(page)){
+            freePages.incrementAndGet();
+            if(index < lowestFreeSegment){
+                lowestFreeSegment = index;
+            }
+        }
+    }
+
+    /**
+     * Marks a page as in use if it is free, for recovery replaying a mutation which acquired it.
+     */
+    public void claim(long page){
+        reserveUpTo(page + 1);
+        Segment[] segments = this.segments;
+        int index = (int) (page >>> SEGMENT_SHIFT);
+        if(index < segments.length && segments[index].claim(page)){
+            freePages.decrementAndGet();
+        }
+    }
+
+    public boolean isFree(long page){
+        Segment[] segments = this.segments;
+        int index = (int) (page >>> SEGMENT_SHIFT);
+        return index < segments.length && segments[index].isFree(page);
+    }
+
+    /**
+     * Marks every page before the given one as in use, for a loader which has written them directly.
+     */
+    public void reserveUpTo(long page){
+        long next;
+        while((next = nextNewPage.get()) < page){
+            if(nextNewPage.compareAndSet(next, page)){
+                return;
+            }
+        }
+    }
+
+    /**
+     * Forgets every page, so they are handed out again from page 0, for a builder which overwrites the file.
+     */
+    public synchronized void clear(){
+        segments = new Segment[0];
+        freePages.set(0);
+        lowestFreeSegment = 0;
+        nextNewPage.set(0);
+    }
+
+    /**
+     * The first page which has never been handed out, the end of the used part of the file.
+     */
+    public long nextNewPage(){
+        return nextNewPage.get();
+    }
+
+    public long numberOfFreePages(){
+        return freePages.get();
+    }
+
+    private Segment segment(int index){
+        Segment[] segments = this.segments;
+        if(index < segments.length){
+            return segments[index];
+        }
+        synchronized (this){
+            segments = this.segments;
+            if(index >= segments.length){
+                Segment[] grown = new Segment[index + 1];
+                System.arraycopy(segments, 0, grown, 0, segments.length);
+                for(int i = segments.length; i < grown.length; i++){
+                    grown[i] = new Segment((long) i << SEGMENT_SHIFT);
+                }
+                this.segments = segments = grown;
+            }
+            return segments[index];
+        }
+    }
+
+    /**
+     * The free pages, in ascending order.
+     */
+    public synchronized long[] freePageIds(){
+        long[] ids = new long[(int) freePages.get()];
+        int found = 0;
+        for(Segment segment : segments){
+            found = segment.collectFree(ids, found);
+        }
+        return found == ids.length ? ids : Arrays.copyOf(ids, found);
+    }
+
+    private static class Segment {
+        final long firstPage;
+        final LongBuffer bits = ByteBuffer.allocateDirect(WORDS_PER_SEGMENT * Long.BYTES).asLongBuffer();
+        int free = 0;
+        int lowestFreeWord = 0; //no word below this one has a free page
+
+        Segment(long firstPage){
+            this.firstPage = firstPage;
+        }
+
+        synchronized long acquire(){
+            if(free == 0){
+                return -1;
+            }
+            for(int word = lowestFreeWord; word < WORDS_PER_SEGMENT; word++){
+                long bitsInWord = bits.get(word);
+                if(bitsInWord != 0){
+                    int bit = Long.numberOfTrailingZeros(bitsInWord);
+                    bits.put(word, bitsInWord & ~(1l << bit));
+                    free--;
+                    lowestFreeWord = word;
+                    return firstPage + (word * Long.SIZE) + bit;
+                }
+            }
+            throw new IllegalStateException("Free page count of segment at " + firstPage + " is " + free + " but no page is free");
+        }
+
+        /**
+         * Frees the page, returning false if it was free already.
+         */
+        synchronized boolean release(long page){
+            int offset = (int) (page - firstPage);
+            int word = offset / Long.SIZE;
+            long bitsInWord = bits.get(word);
+            long bit = 1l << (offset % Long.SIZE);
+            if((bitsInWord & bit) != 0){
+                return false;
+            }
+            bits.put(word, bitsInWord | bit);
+            free++;
+            if(word < lowestFreeWord){
+                lowestFreeWord = word;
+            }
+            return true;
+        }
+
+        /**
+         * Takes the page out of the free pages, returning false if it was not free.
+         */
+        synchronized boolean claim(long page){
+            int offset = (int) (page - firstPage);
+            int word = offset / Long.SIZE;
+            long bitsInWord = bits.get(word);
+            long bit = 1l << (offset % Long.SIZE);
+            if((bitsInWord & bit) == 0){
+                return false;
+            }
+            bits.put(word, bitsInWord & ~bit);
+            free--;
+            return true;
+        }
+
+        synchronized boolean isFree(long page){
+            int offset = (int) (page - firstPage);
+            return (bits.get(offset / Long.SIZE) & (1l << (offset % Long.SIZE))) != 0;
+        }
+
+        synchronized int collectFree(long[] ids, int found){
+            for(int word = 0; word < WORDS_PER_SEGMENT && found < ids.length; word++){
+                long bitsInWord = bits.get(word);
+                while(bitsInWord != 0 && found < ids.length){
+                    int bit = Long.numberOfTrailingZeros(bitsInWord);
+                    ids[found++] = firstPage + (word * Long.SIZE) + bit;
+                    bitsInWord &= bitsInWord - 1;
+                }
+            }
+            return found;
+        }
+    }
+}
@@ -26,12 +26,21 @@ public class IndexBulkLoader {
     public IndexTree tree;
 
     public IndexBulkLoader(DiskCache disk, long finalPage, int keySize) throws IOException {
+        this(disk, finalPage, keySize, 1.0);
+    }
+
+    /**
+     * A loader which fills the internal nodes it builds to the given fraction of a page. The leaves must already be
+     * filled no further, see NodeSize.checkBulkLoadedLeaves.
+     */
+    public IndexBulkLoader(DiskCache disk, long finalPage, int keySize, double fillFactor) throws IOException {
+        NodeSize.checkBulkLoadedLeaves(disk, finalPage, fillFactor);
         this.disk = disk;
         this.finalLeafPage = finalPage;
-        AvailablePageIdPool.currentID = finalLeafPage + 1;
+        disk.freePages.reserveUpTo(finalLeafPage + 1);
         this.tree = new IndexTree(keySize, 0, this.disk);
         this.keySize = keySize;
-        this.MAX_PAIRS = ((DiskCache.PAGE_SIZE - NodeHeader.NODE_HEADER_LENGTH) / ((keySize + 1)*8) ) - 1;
+        this.MAX_PAIRS = NodeSize.bulkLoadedInternalNodeKeys(keySize, fillFactor);
         this.RESERVED_CHILDREN_SPACE  = (MAX_PAIRS + 1) * 8;
         parentWriter = new ParentBufferWriter();
     }
@@ -10,8 +10,6 @@ import java.io.IOException;
  * Created by max on 5/8/15.
  */
 public class IndexDeletion {
-    public static PageProxyCursor cursor;
-    public static DiskCache disk;
     public IndexTree tree;
 
     public IndexDeletion(IndexTree tree){
@@ -127,6 +125,9 @@ public class IndexDeletion {
             IndexTree.updateSiblingAndFollowingIdsDeletion(cursor, nodeId);
         }
         else{
+            if(cursor.getDisk().wal != null){
+                cursor.getDisk().wal.removingKey(cursor, key);
+            }
             int[] searchResult = IndexSearch.search(cursor, key);
             removeKeyAtOffset(cursor, searchResult[1], key);
         }
@@ -136,7 +137,7 @@ public class IndexDeletion {
     private static void removeKeyAtOffset(PageProxyCursor cursor, int offset, long[] key){
         byte[] tmp_bytes;
 
-        tmp_bytes = new byte[cursor.capacity()- offset - key.length * 8];
+        tmp_bytes = new byte[NodeHeader.getNodeLength(cursor) - offset - key.length * 8];
         cursor.setOffset(offset + (key.length * 8));
 
 
@@ -144,6 +145,7 @@ public class IndexDeletion {
         cursor.setOffset(offset);
 
         cursor.putBytes(tmp_bytes);
+        cursor.putBytes(new byte[key.length * 8]); //the bytes after the node stay zeroed
 
         NodeHeader.setNumberOfKeys(cursor, NodeHeader.getNumberOfKeys(cursor) - 1);
 
@@ -176,13 +178,16 @@ public class IndexDeletion {
     public static void removeChildAtIndex(PageProxyCursor cursor, int index){
         byte[] tmp_bytes;
         int offset = NodeHeader.NODE_HEADER_LENGTH + (index * 8);
-        tmp_bytes = new byte[cursor.capacity() - offset - 8];
+        //a key removed before the child is no longer counted, so the length is taken as up to one child longer
+        int nodeLength = Math.min(NodeHeader.getNodeLength(cursor) + 8, cursor.capacity());
+        tmp_bytes = new byte[nodeLength - offset - 8];
         cursor.setOffset(offset + 8);
 
         cursor.getBytes(tmp_bytes);
         cursor.setOffset(offset);
 
         cursor.putBytes(tmp_bytes);
+        cursor.putBytes(new byte[8]); //the bytes after the node stay zeroed
     }
 
     /*public static void addChildToSiblingNode(PageCursor cursor, RemoveResultProxy result, long childId) throws IOException {
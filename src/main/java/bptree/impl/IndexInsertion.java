@@ -10,54 +10,118 @@ import java.nio.LongBuffer;
 
 public class IndexInsertion {
 
-    private static PrimitiveLongArray arrayUtil = new PrimitiveLongArray();
-    public static PageProxyCursor cursor;
-    public static DiskCache disk;
     public IndexTree tree;
 
     public IndexInsertion(IndexTree tree){
         this.tree = tree;
     }
 
-    public SplitResult insert(long[] key){
-        SplitResult result = null;
-        try (PageProxyCursor cursor = tree.disk.getCursor(tree.rootNodeId, PagedFile.PF_EXCLUSIVE_LOCK)) {
-                    if(NodeHeader.isLeafNode(cursor)){
-                        result = addKeyToLeafNode(cursor, key);
-                    } else{
-                        int index = IndexSearch.search(cursor, key)[0];
-                        long child = tree.getChildIdAtIndex(cursor, index);
-                        long id = cursor.getCurrentPageId();
-                        cursor.next(child);
-                        result = insert(cursor, key);
-                        if(result != null){
-                            cursor.next(id);
-                            result = addKeyAndChildToInternalNode(cursor, id, result.primkey, result.right);
-                        }
-                    }
+    /**
+     * Finds the leaf for the key without latching anything, then latches only the node being changed. A split node
+     * is released before its separator is added to the parent, concurrent writers and readers which reach a node
+     * after it was split follow its right link.
+     */
+    public void insert(long[] key){
+        long[] path = new long[IndexSearch.MAX_DEPTH];
+        try {
+            int depth;
+            long leaf;
+            try (PageProxyCursor cursor = tree.disk.getCursor(tree.rootNodeId, PagedFile.PF_SHARED_LOCK)) {
+                depth = tree.nodeSearch.descend(cursor, key, path);
+                leaf = cursor.getCurrentPageId();
+            }
+            SplitResult result = insertIntoNode(leaf, key, null);
+            int height = 0;
+            while(result != null){
+                height++;
+                long parent = depth - height >= 0 ? path[depth - height] : tree.parentForSplit(result, height);
+                if(parent == -1){
+                    break; //the root was split and replaced by a new root
+                }
+                result = insertIntoNode(parent, result.primkey, result);
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
-        return result;
     }
-    private SplitResult insert(PageProxyCursor cursor, long[] key) throws IOException {
-        SplitResult result = null;
-        if(NodeHeader.isLeafNode(cursor)){
-            result = addKeyToLeafNode(cursor, key);
+
+    /**
+     * Latches the node, moving right past nodes which were split since it was found, and adds the key to it. A node
+     * which is split has its right sibling latched too, as the split changes the sibling's preceding id and a
+     * compressed page is written back whole. If the sibling's latch is taken, the node is released and both are
+     * latched in stripe order, then the node is read again. No page is held while waiting for a latch, as the writer
+     * holding the latch may be waiting for the page.
+     * @param childSplit null when adding to a leaf node, otherwise the split whose right node is added with the key.
+     */
+    private SplitResult insertIntoNode(long nodeId, long[] key, SplitResult childSplit) throws IOException {
+        tree.latchNode(nodeId);
+        long latchedSibling = -1;
+        PageProxyCursor cursor = tree.disk.getCursor(nodeId, PagedFile.PF_EXCLUSIVE_LOCK);
+        try {
+            while(true){
+                long sibling = NodeHeader.getSiblingID(cursor);
+                if(IndexSearch.keyIsPastHighKey(cursor, key)){
+                    tree.unlatchNode(nodeId);
+                    nodeId = sibling;
+                    if(tree.tryLatchNode(nodeId)){
+                        cursor.next(nodeId);
+                    }
+                    else{
+                        cursor = reopenAfterLatching(cursor, nodeId, nodeId);
+                    }
+                    continue;
+                }
+                boolean fits = childSplit == null ? cursor.leafNodeContainsSpaceForNewKey(key) :
+                        cursor.internalNodeContainsSpaceForNewKeyAndChild(key);
+                if(fits || sibling == -1){
+                    break;
+                }
+                if(!tree.tryLatchNode(sibling)){
+                    tree.unlatchNode(nodeId);
+                    cursor = reopenAfterLatching(cursor, nodeId, sibling);
+                    if(NodeHeader.getSiblingID(cursor) != sibling){
+                        tree.unlatchNode(sibling);
+                        continue;
+                    }
+                }
+                latchedSibling = sibling;
+                if(!IndexSearch.keyIsPastHighKey(cursor, key)){
+                    break;
+                }
+                tree.unlatchNode(sibling);
+                latchedSibling = -1;
+            }
+            if(childSplit == null){
+                if(tree.disk.wal != null){
+                    tree.disk.wal.insertingKey(cursor, key);
+                }
+                return addKeyToLeafNode(cursor, key);
+            }
+            return addKeyAndChildToInternalNode(cursor, nodeId, key, childSplit.right);
+        } finally {
+            cursor.close();
+            if(latchedSibling != -1){
+                tree.unlatchNode(latchedSibling);
+            }
+            tree.unlatchNode(nodeId);
+        }
+    }
+
+    /*
+    Closes the cursor, latches the nodes, both in stripe order or the one if they are the same, and opens a cursor on
+    the first of them again.
+     */
+    private PageProxyCursor reopenAfterLatching(PageProxyCursor cursor, long nodeId, long sibling) throws IOException {
+        cursor.close();
+        if(nodeId == sibling){
+            tree.latchNode(nodeId);
         }
         else{
-            int index = IndexSearch.search(cursor, key)[0];
-            long child = tree.getChildIdAtIndex(cursor, index);
-            long id = cursor.getCurrentPageId();
-            cursor.next(child);
-            result = insert(cursor, key);
-            if(result != null){
-                cursor.next(id);
-                result = addKeyAndChildToInternalNode(cursor, id, result.primkey, result.right);
-            }
+            tree.latchNodes(nodeId, sibling);
         }
-        return result;
+        return tree.disk.getCursor(nodeId, PagedFile.PF_EXCLUSIVE_LOCK);
     }
+
     public SplitResult addKeyAndChildToInternalNode(long nodeId, long[] key, long child){
         SplitResult result = null;
         try (PageProxyCursor cursor = tree.disk.getCursor(nodeId, PagedFile.PF_EXCLUSIVE_LOCK)) {
@@ -71,15 +135,7 @@ public class IndexInsertion {
     public static SplitResult addKeyAndChildToInternalNode(PageProxyCursor cursor, long nodeId, long[] key, long child) throws IOException {
         SplitResult result = null;
         if(!cursor.internalNodeContainsSpaceForNewKeyAndChild(key)){
-            long newInternalNodeId = IndexTree.acquireNewInternalNode(cursor);
-            result = new SplitResult();
-            result.left = nodeId;
-            result.right = newInternalNodeId;
-            IndexTree.updateSiblingAndFollowingIdsInsertion(cursor, nodeId, newInternalNodeId);
-            result.primkey = insertAndBalanceKeysBetweenInternalNodes(cursor, nodeId, newInternalNodeId, key, child);
-            if(!newKeyBelongsInNewNode(cursor, key)){
-                cursor.next(nodeId);
-            }
+            result = splitInternalNode(cursor, key, child);
         }
         else{
             int[] searchResult = IndexSearch.search(cursor, key);
@@ -103,12 +159,7 @@ public class IndexInsertion {
     public static SplitResult addKeyToLeafNode(PageProxyCursor cursor, long[] key) throws IOException {
         SplitResult result = null;
         if(!cursor.leafNodeContainsSpaceForNewKey(key)){
-            result = new SplitResult();
-            result.left = cursor.getCurrentPageId();
-            long newLeafNodeId = IndexTree.acquireNewLeafNode(cursor);
-            result.right = newLeafNodeId;
-            IndexTree.updateSiblingAndFollowingIdsInsertion(cursor, result.left, newLeafNodeId);
-            result.primkey = insertAndBalanceKeysBetweenLeafNodes(cursor, result.left, result.right, key);
+            result = splitLeafNode(cursor, key);
         }
         else{
             int[] searchResult = IndexSearch.search(cursor, key);
@@ -116,103 +167,148 @@ public class IndexInsertion {
         }
         return result;
     }
-    private static long[] insertAndBalanceKeysBetweenLeafNodes(PageProxyCursor cursor, long fullNode, long emptyNode, long[] newKey) throws IOException {
-        //grab half of the keys from the first node, dump into the new node.
-        cursor.next(fullNode);
-        long[] returnedKey = null;
-        byte[] keysA = null;
-        byte[] keysB = null;
+
+    /*
+    Splits are written in the order of Lehman and Yao. The new right node is complete, with the old high key and
+    sibling of the left node, before the left node is rewritten with the separator as its high key and a link to it.
+    The separator of a leaf split is the shortest one between the halves, see SeparatorTruncation.
+     */
+    private static SplitResult splitLeafNode(PageProxyCursor cursor, long[] newKey) throws IOException {
+        SplitResult result = new SplitResult();
+        result.left = cursor.getCurrentPageId();
 
         int[] searchResults = IndexSearch.search(cursor, newKey);
         int keyLength = NodeHeader.getKeyLength(cursor);
         int originalNumberOfKeys = NodeHeader.getNumberOfKeys(cursor);
         int keysInclInsert = originalNumberOfKeys + 1;
+        long oldSibling = NodeHeader.getSiblingID(cursor);
+        long[] highKey = readHighKey(cursor);
 
-        returnedKey = new long[keyLength];
+        result.primkey = new long[keyLength];
         byte[] keys = new byte[originalNumberOfKeys * keyLength * Long.BYTES];
         cursor.setOffset(NodeHeader.NODE_HEADER_LENGTH);
         cursor.getBytes(keys);
-        keys = insertKeyAtIndex(keys, newKey, searchResults[0], returnedKey);//TODO there is something wrong here in this function and splitting
-        keysA = new byte[((keysInclInsert/2) * keyLength) * Long.BYTES];
-        keysB = new byte[(((keysInclInsert + 1) /2 ) * keyLength) * Long.BYTES];
-        int middle = (keys.length / 2);
+        keys = insertKeyAtIndex(keys, newKey, searchResults[0], keysInclInsert / 2, result.primkey);
+        byte[] keysA = new byte[((keysInclInsert/2) * keyLength) * Long.BYTES];
+        byte[] keysB = new byte[(((keysInclInsert + 1) /2 ) * keyLength) * Long.BYTES];
         System.arraycopy(keys, 0, keysA, 0, keysA.length);
         System.arraycopy(keys, keysA.length, keysB, 0, keysB.length);
+        long[] lastKeyOfA = new long[keyLength];
+        ByteBuffer.wrap(keysA, keysA.length - (keyLength * Long.BYTES), keyLength * Long.BYTES).asLongBuffer().get(lastKeyOfA);
+        result.primkey = SeparatorTruncation.shortestSeparator(lastKeyOfA, result.primkey);
 
+        result.right = IndexTree.acquireNewLeafNode(cursor);
+        cursor.deferWriting();
+        NodeHeader.setKeyLength(cursor, keyLength);
+        NodeHeader.setNumberOfKeys(cursor, (keysInclInsert + 1) / 2);
+        NodeHeader.setFollowingID(cursor, oldSibling);
+        NodeHeader.setPrecedingId(cursor, result.left);
+        cursor.setOffset(NodeHeader.NODE_HEADER_LENGTH);
+        cursor.putBytes(keysB);
+        writeHighKey(cursor, highKey);
+        cursor.resumeWriting();
 
+        cursor.next(result.left);
+        cursor.deferWriting();
         NodeHeader.setNumberOfKeys(cursor, keysInclInsert / 2);
+        NodeHeader.setFollowingID(cursor, result.right);
         cursor.setOffset(NodeHeader.NODE_HEADER_LENGTH);
         cursor.putBytes(keysA);
+        writeHighKey(cursor, result.primkey);
+        cursor.resumeWriting();
 
-        cursor.next(emptyNode);
-        NodeHeader.setNumberOfKeys(cursor, (keysInclInsert + 1) / 2);
-        NodeHeader.setKeyLength(cursor, keyLength);
-        cursor.setOffset(NodeHeader.NODE_HEADER_LENGTH);
-        cursor.putBytes(keysB);
-
-        return returnedKey;
+        updatePrecedingIdOfFollowingNode(cursor, oldSibling, result.right);
+        return result;
     }
 
-    private static long[] insertAndBalanceKeysBetweenInternalNodes(PageProxyCursor cursor, long fullNode, long emptyNode, long[] newKey, long newChild) throws IOException {
-        //grab half of the keys from the first node, dump into the new node.
-        cursor.next(fullNode);
-        long[] returnedKey = null;
-        byte[] childrenA = null;
-        byte[] childrenB = null;
-        byte[] keysA = null;
-        byte[] keysB = null;
-
-        cursor.setOffset(NodeHeader.NODE_HEADER_LENGTH);
+    private static SplitResult splitInternalNode(PageProxyCursor cursor, long[] newKey, long newChild) throws IOException {
+        SplitResult result = new SplitResult();
+        result.left = cursor.getCurrentPageId();
 
         int[] searchResults = IndexSearch.search(cursor, newKey);
         int keyLength = NodeHeader.getKeyLength(cursor);
         int originalNumberOfKeys = NodeHeader.getNumberOfKeys(cursor);
         int keysInclInsert = originalNumberOfKeys + 1;
+        long oldSibling = NodeHeader.getSiblingID(cursor);
+        long[] highKey = readHighKey(cursor);
 
-        returnedKey = new long[keyLength];
+        result.primkey = new long[keyLength];
         byte[] keys = new byte[originalNumberOfKeys * keyLength * Long.BYTES];
         byte[] children = new byte[(originalNumberOfKeys + 1) * Long.BYTES];
         cursor.setOffset(NodeHeader.NODE_HEADER_LENGTH);
         cursor.getBytes(children);
         cursor.getBytes(keys);
-        keys = insertKeyAtIndex(keys, newKey, searchResults[0], returnedKey);
-        children = insertChildAtIndex(children, newChild, searchResults[0] + 1);//TODO there is something wrong here in this function and splitting
-
-        childrenA = new byte[ ( (int) Math.ceil( (keysInclInsert + 1 ) / 2.0) ) * Long.BYTES];
-        childrenB = new byte[ ( (int) Math.floor((keysInclInsert + 1 ) / 2.0) ) * Long.BYTES];
-
-        keysA = new byte[ ( (int) Math.floor( (keysInclInsert + 1) / 2.0) ) * keyLength * Long.BYTES];
+        int childrenInA = (keysInclInsert + 2) / 2;
+        int childrenInB = keysInclInsert + 1 - childrenInA;
+        keys = insertKeyAtIndex(keys, newKey, searchResults[0], childrenInA - 1, result.primkey);
+        children = insertChildAtIndex(children, newChild, searchResults[0] + 1);
+
+        //the key between the two halves of the children moves up to the parent.
+        byte[] childrenA = new byte[childrenInA * Long.BYTES];
+        byte[] childrenB = new byte[childrenInB * Long.BYTES];
+        byte[] keysA = new byte[(childrenInA - 1) * keyLength * Long.BYTES];
         int middleAfterDroppedKey = keysA.length + keyLength * Long.BYTES;
-        keysB = new byte[keysInclInsert % 2 == 0 ? keysA.length - (keyLength * Long.BYTES) : keys.length];
+        byte[] keysB = new byte[(childrenInB - 1) * keyLength * Long.BYTES];
 
         System.arraycopy(keys, 0, keysA, 0, keysA.length);
         System.arraycopy(keys, middleAfterDroppedKey, keysB, 0, keysB.length);
         System.arraycopy(children, 0, childrenA, 0, childrenA.length);
         System.arraycopy(children,  childrenA.length, childrenB, 0, childrenB.length);
 
+        result.right = IndexTree.acquireNewInternalNode(cursor);
         cursor.deferWriting();
-        NodeHeader.setNumberOfKeys(cursor, keysInclInsert / 2);
+        NodeHeader.setKeyLength(cursor, keyLength);
+        NodeHeader.setNumberOfKeys(cursor, childrenInB - 1);
+        NodeHeader.setFollowingID(cursor, oldSibling);
+        NodeHeader.setPrecedingId(cursor, result.left);
         cursor.setOffset(NodeHeader.NODE_HEADER_LENGTH);
-        cursor.putBytes(childrenA);
-        cursor.putBytes(keysA);
+        cursor.putBytes(childrenB);
+        cursor.putBytes(keysB);
+        writeHighKey(cursor, highKey);
         cursor.resumeWriting();
 
-        cursor.next(emptyNode);
+        cursor.next(result.left);
         cursor.deferWriting();
-        NodeHeader.setNumberOfKeys(cursor, originalNumberOfKeys / 2);
-        NodeHeader.setKeyLength(cursor, keyLength);
+        NodeHeader.setNumberOfKeys(cursor, childrenInA - 1);
+        NodeHeader.setFollowingID(cursor, result.right);
         cursor.setOffset(NodeHeader.NODE_HEADER_LENGTH);
-        cursor.putBytes(childrenB);
-        cursor.putBytes(keysB);
+        cursor.putBytes(childrenA);
+        cursor.putBytes(keysA);
+        writeHighKey(cursor, result.primkey);
         cursor.resumeWriting();
 
-        return returnedKey;
+        updatePrecedingIdOfFollowingNode(cursor, oldSibling, result.right);
+        return result;
     }
 
-    private static boolean newKeyBelongsInNewNode(PageProxyCursor cursor, long[] newKey){
-        return IndexTree.comparator.prefixCompare(newKey, getFirstKeyInNode(cursor)) > 0;
+    private static void updatePrecedingIdOfFollowingNode(PageProxyCursor cursor, long followingNode, long newPrecedingId) throws IOException {
+        if(followingNode != -1l) {
+            cursor.next(followingNode);
+            NodeHeader.setPrecedingId(cursor, newPrecedingId);
+        }
+    }
 
+    private static long[] readHighKey(PageProxyCursor cursor){
+        if(!NodeHeader.hasHighKey(cursor))
+            return null;
+        long[] highKey = new long[NodeHeader.getKeyLength(cursor)];
+        int offset = NodeHeader.getHighKeyOffset(cursor);
+        for(int i = 0; i < highKey.length; i++){
+            highKey[i] = cursor.getLong(offset + (i * Long.BYTES));
+        }
+        return highKey;
     }
+
+    private static void writeHighKey(PageProxyCursor cursor, long[] highKey){
+        NodeHeader.setHighKeyFlag(cursor, highKey != null);
+        if(highKey != null){
+            cursor.setOffset(NodeHeader.getHighKeyOffset(cursor));
+            for(long item : highKey){
+                cursor.putLong(item);
+            }
+        }
+    }
+
     public static long[] getFirstKeyInNode(PageProxyCursor cursor){
         long[] firstKey;
         if(NodeHeader.isLeafNode(cursor)){
@@ -269,15 +365,16 @@ public class IndexInsertion {
 
     private static void insertKeyAtIndex(PageProxyCursor cursor, int offset, long[] key){
         byte[] tmp_bytes;
+        cursor.deferWriting(); //the key count must not be written before the key is, a compressed leaf would encode a key which is not there
+        int nodeLength = NodeHeader.getNodeLength(cursor);
         NodeHeader.setNumberOfKeys(cursor, NodeHeader.getNumberOfKeys(cursor) + 1);
 
-        tmp_bytes = new byte[cursor.capacity() - offset - (key.length * Long.BYTES)];
+        tmp_bytes = new byte[nodeLength - offset];
 
 
         cursor.setOffset(offset);
         cursor.getBytes(tmp_bytes);
         cursor.setOffset(offset);
-        cursor.deferWriting();
         for(long item : key){
             cursor.putLong(item);
         }
@@ -290,7 +387,8 @@ public class IndexInsertion {
     private static void insertChildAtIndex(PageProxyCursor cursor, int index, long child){
         cursor.deferWriting();
         int childInsertionOffset = NodeHeader.NODE_HEADER_LENGTH + (index * Long.BYTES);
-        byte[] shiftDownBytes = new byte[DiskCache.PAGE_SIZE - childInsertionOffset - Long.BYTES];
+        int nodeLength = NodeHeader.getNodeLength(cursor) - Long.BYTES; //the key count already counts the key inserted before the child
+        byte[] shiftDownBytes = new byte[nodeLength - childInsertionOffset];
         cursor.setOffset(childInsertionOffset);
         cursor.getBytes(shiftDownBytes);
         cursor.setOffset(childInsertionOffset);
@@ -299,7 +397,7 @@ public class IndexInsertion {
         cursor.resumeWriting();
     }
 
-    private static byte[] insertKeyAtIndex(byte[] keys, long[] newKey, int index, long[] returnedKey){
+    private static byte[] insertKeyAtIndex(byte[] keys, long[] newKey, int index, int returnedKeyIndex, long[] returnedKey){
         LongBuffer keyB = ByteBuffer.wrap(keys).asLongBuffer();
         byte[] updatedKeys = new byte[keys.length + (newKey.length * Long.BYTES)];
         ByteBuffer updatedKeysBB = ByteBuffer.wrap(updatedKeys);
@@ -315,9 +413,8 @@ public class IndexInsertion {
             updatedKeysLB.put(keyB.get());
         }
 
-        int middle = updatedKeysLB.capacity()/2;
         for(int i = 0; i < returnedKey.length; i++){
-            returnedKey[i] = updatedKeysLB.get(middle + i);
+            returnedKey[i] = updatedKeysLB.get((returnedKeyIndex * newKey.length) + i);
         }
 
         return updatedKeysBB.array();
@@ -1,33 +1,28 @@
 package bptree.impl;
 
+import bptree.BatchVisitor;
+import bptree.ColumnVisitor;
 import bptree.PageProxyCursor;
 import org.neo4j.io.pagecache.PagedFile;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 
 public class IndexSearch {
-    private static PrimitiveLongArray arrayUtil = new PrimitiveLongArray();
-    public  PageProxyCursor cursor;
+    public static final int MAX_DEPTH = 64;
+    public static final int BATCH_SIBLING_HOPS = 4;
     public IndexTree tree;
 
     public IndexSearch(IndexTree tree){
         this.tree = tree;
     }
     public SearchCursor find(long[] key){
-        long[] entry = null;
         SearchCursor resultsCursor = null;
-        int[] searchResult;
         try (PageProxyCursor cursor = tree.disk.getCursor(tree.rootNodeId, PagedFile.PF_SHARED_LOCK)) {
-                    searchResult = find(cursor, key);
-                    long currentNode = cursor.getCurrentPageId();
-                    if(searchResult[0] == 0) {
-                        int[] altResult = moveCursorBackIfPreviousNodeContainsValidKeys(cursor, key);
-                        if (currentNode != cursor.getCurrentPageId()) {
-                            searchResult = altResult;
-                        }
-                    }
-                    resultsCursor = new SearchCursor(cursor.getCurrentPageId(), NodeHeader.getSiblingID(cursor), searchResult[0], key, NodeHeader.getKeyLength(cursor), NodeHeader.getNumberOfKeys(cursor));
+                    descend(cursor, key, null);
+                    resultsCursor = new SearchCursor();
+                    searchLeafNode(cursor, key, resultsCursor);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -35,37 +30,262 @@ public class IndexSearch {
     }
 
     public SearchCursor findWithCursor(PageProxyCursor cursor, long[] key){
-        SearchCursor resultsCursor = null;
-        int[] searchResult;
+        return findWithCursor(cursor, key, null);
+    }
+
+    /**
+     * Positions the given results cursor, rather than a new one, at the first key matching the prefix.
+     * @param resultsCursor if null, a new results cursor is returned.
+     */
+    public SearchCursor findWithCursor(PageProxyCursor cursor, long[] key, SearchCursor resultsCursor){
         try {
             cursor.next(tree.rootNodeId);
-            searchResult = find(cursor, key);
-            long currentNode = cursor.getCurrentPageId();
-            if(searchResult[0] == 0) {
-                int[] altResult = moveCursorBackIfPreviousNodeContainsValidKeys(cursor, key);
-                if (currentNode != cursor.getCurrentPageId()) {
-                    searchResult = altResult;
+            descend(cursor, key, null);
+            if(resultsCursor == null)
+                resultsCursor = new SearchCursor();
+            searchLeafNode(cursor, key, resultsCursor);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return resultsCursor;
+    }
+
+    /**
+     * Finds the keys matching each prefix, visiting the prefixes in sorted order. Each search starts from the leaf
+     * the previous prefix was found in and moves right through up to BATCH_SIBLING_HOPS siblings, only descending
+     * from the root when the prefix is further away than that.
+     * @return the number of keys visited.
+     */
+    public long findAll(PageProxyCursor cursor, long[][] prefixes, BatchVisitor visitor){
+        Integer[] order = new Integer[prefixes.length];
+        for(int i = 0; i < order.length; i++){
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> comparePrefixes(prefixes[a], prefixes[b]));
+        SearchCursor resultsCursor = new SearchCursor();
+        long[] key = new long[0];
+        long lastLeaf = -1;
+        long visited = 0;
+        try {
+            for (int probe : order) {
+                long[] prefix = prefixes[probe];
+                if(lastLeaf == -1 || !searchForward(cursor, prefix, lastLeaf, resultsCursor)){
+                    cursor.next(tree.rootNodeId);
+                    descend(cursor, prefix, null);
+                    searchLeafNode(cursor, prefix, resultsCursor);
+                }
+                lastLeaf = resultsCursor.pageID;
+                if(key.length != resultsCursor.keyLength){
+                    key = new long[resultsCursor.keyLength];
+                }
+                while(resultsCursor.next(cursor, key)){
+                    visitor.visit(probe, key);
+                    visited++;
                 }
             }
-            resultsCursor = new SearchCursor(cursor.getCurrentPageId(), NodeHeader.getSiblingID(cursor), searchResult[0], key, NodeHeader.getKeyLength(cursor), NodeHeader.getNumberOfKeys(cursor));
         } catch (IOException e) {
             e.printStackTrace();
         }
-        return resultsCursor;
+        return visited;
     }
 
-    public int[] find(PageProxyCursor cursor, long[] key) throws IOException {
-        int[] searchResult;
-        if(NodeHeader.isLeafNode(cursor)){
-            searchResult = search(cursor, key);
+    /**
+     * Passes one column of each key matching the prefix to the visitor, reading only that column and the columns of
+     * the prefix. Each leaf is read whole before its values are visited, and read again if a writer changed it
+     * meanwhile. Splits only move keys to the right, into siblings not yet read, so unlike SearchCursor no key has to
+     * be read whole to skip those already visited, and on columnar leaves only the columns read are decoded.
+     * @return the number of keys visited.
+     */
+    public long findColumn(PageProxyCursor cursor, long[] prefix, int column, ColumnVisitor visitor){
+        SearchCursor position = findWithCursor(cursor, prefix, null);
+        long[] values = new long[0];
+        long visited = 0;
+        int from = position.currentKeyIndex;
+        try {
+            while(true){
+                int found;
+                boolean nextLeaf;
+                long sibling;
+                while(true){
+                    try {
+                        int keyLength = NodeHeader.getKeyLength(cursor);
+                        int numberOfKeys = NodeHeader.getNumberOfKeys(cursor);
+                        sibling = NodeHeader.getSiblingID(cursor);
+                        if(values.length < numberOfKeys){
+                            values = new long[numberOfKeys];
+                        }
+                        found = 0;
+                        int index = from;
+                        for(; index < numberOfKeys; index++){
+                            int offset = NodeHeader.NODE_HEADER_LENGTH + (index * keyLength * 8);
+                            if(!matchesPrefix(cursor, prefix, offset)){
+                                break;
+                            }
+                            values[found++] = cursor.getLong(offset + (column * 8));
+                        }
+                        nextLeaf = index == numberOfKeys && sibling != -1;
+                    } catch (RuntimeException e) {
+                        if (!cursor.shouldRetry())
+                            throw e;
+                        from = retryIndex(cursor, prefix, position);
+                        continue;
+                    }
+                    if(!cursor.shouldRetry())
+                        break;
+                    from = retryIndex(cursor, prefix, position);
+                }
+                for(int i = 0; i < found; i++){
+                    visited++;
+                    if(!visitor.visit(values[i])){
+                        return visited;
+                    }
+                }
+                if(!nextLeaf){
+                    return visited;
+                }
+                cursor.next(sibling);
+                from = 0;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
         }
-        else{
-            int index = search(cursor, key)[0];
-            long child = tree.getChildIdAtIndex(cursor, index);
-            cursor.next(child);
-            searchResult = find(cursor, key);
+        return visited;
+    }
+
+    /**
+     * Where to read the leaf from once a writer changed it. In the leaf the prefix was found in, inserts may have
+     * moved the first matching key, later leaves are read from their first key.
+     */
+    private static int retryIndex(PageProxyCursor cursor, long[] prefix, SearchCursor position) throws IOException {
+        if(cursor.getCurrentPageId() != position.pageID){
+            return 0;
+        }
+        validatedSearchCursor(cursor, prefix, position);
+        return position.currentKeyIndex;
+    }
+
+    private static boolean matchesPrefix(PageProxyCursor cursor, long[] prefix, int offset){
+        for(int i = 0; i < prefix.length; i++){
+            if(cursor.getLong(offset + (i * 8)) != prefix[i]){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Orders prefixes as the keys they match are ordered, a prefix before any longer prefix it is the start of.
+     */
+    private static int comparePrefixes(long[] a, long[] b){
+        for(int i = 0; i < a.length && i < b.length; i++){
+            if(a[i] != b[i]){
+                return Long.compare(a[i], b[i]);
+            }
+        }
+        return a.length - b.length;
+    }
+
+    /**
+     * Searches for the prefix starting at the given leaf, which must not be to the right of where the prefix belongs.
+     * @return false if the prefix is not within BATCH_SIBLING_HOPS siblings of the leaf.
+     */
+    private static boolean searchForward(PageProxyCursor cursor, long[] prefix, long leaf, SearchCursor resultsCursor) throws IOException {
+        cursor.next(leaf);
+        for(int hop = 0; hop <= BATCH_SIBLING_HOPS; hop++){
+            validatedSearchCursor(cursor, prefix, resultsCursor);
+            if(resultsCursor.currentKeyIndex < resultsCursor.keysInNode || resultsCursor.siblingNode == -1){
+                return true;
+            }
+            cursor.next(resultsCursor.siblingNode);
+        }
+        return false;
+    }
+
+    /**
+     * Descends from the node the cursor is on to the leaf node which would contain the key, following right links
+     * past nodes which were split since their parent was read. Every node is validated before a child or sibling
+     * pointer is followed, a node changed by a concurrent writer is read again.
+     * @param path if not null, the internal nodes descended through are recorded here, from the top down.
+     * @return the number of internal nodes descended through.
+     */
+    public int descend(PageProxyCursor cursor, long[] key, long[] path) throws IOException {
+        int depth = 0;
+        while(true){
+            boolean leaf = false;
+            boolean moveRight;
+            long next = -1;
+            try {
+                moveRight = keyIsPastHighKey(cursor, key);
+                if(moveRight){
+                    next = NodeHeader.getSiblingID(cursor);
+                }
+                else {
+                    leaf = NodeHeader.isLeafNode(cursor);
+                    if (!leaf) {
+                        next = tree.getChildIdAtIndex(cursor, searchIndex(cursor, key));
+                    }
+                }
+            } catch (RuntimeException e) {
+                if (!cursor.shouldRetry())
+                    throw e;
+                continue;
+            }
+            if(cursor.shouldRetry())
+                continue;
+            if(leaf)
+                return depth;
+            if(!moveRight) {
+                if (depth == MAX_DEPTH)
+                    throw new IllegalStateException("Descended through more than " + MAX_DEPTH + " internal nodes, the tree is being restructured");
+                if (path != null)
+                    path[depth] = cursor.getCurrentPageId();
+                depth++;
+            }
+            cursor.next(next);
+        }
+    }
+
+    /**
+     * True if the node the cursor is on has a high key, and the key is not smaller than it.
+     */
+    public static boolean keyIsPastHighKey(PageProxyCursor cursor, long[] key){
+        if(!NodeHeader.hasHighKey(cursor))
+            return false;
+        return compareToKeyAt(cursor, key, NodeHeader.getHighKeyOffset(cursor), NodeHeader.getKeyLength(cursor)) >= 0;
+    }
+
+    /**
+     * Builds the result cursor for the leaf node the cursor is on. Keys matching a prefix may begin in the preceding
+     * leaf, in which case the result starts there. The result keeps this tree, for seekTo to search it again.
+     */
+    private void searchLeafNode(PageProxyCursor cursor, long[] key, SearchCursor resultsCursor) throws IOException {
+        resultsCursor.tree = tree;
+        validatedSearchCursor(cursor, key, resultsCursor);
+        if(resultsCursor.currentKeyIndex == 0 && resultsCursor.precedingNode != -1){
+            long currentNode = cursor.getCurrentPageId();
+            cursor.next(resultsCursor.precedingNode);
+            validatedSearchCursor(cursor, key, resultsCursor);
+            if(resultsCursor.currentKeyIndex < resultsCursor.keysInNode){
+                return;
+            }
+            cursor.next(currentNode);
+            validatedSearchCursor(cursor, key, resultsCursor);
+        }
+    }
+
+    private static void validatedSearchCursor(PageProxyCursor cursor, long[] key, SearchCursor resultsCursor) throws IOException {
+        while(true){
+            try {
+                resultsCursor.reposition(cursor.getCurrentPageId(), NodeHeader.getSiblingID(cursor), searchIndex(cursor, key), key, NodeHeader.getKeyLength(cursor), NodeHeader.getNumberOfKeys(cursor));
+                resultsCursor.precedingNode = NodeHeader.getPrecedingID(cursor);
+            } catch (RuntimeException e) {
+                if (!cursor.shouldRetry())
+                    throw e;
+                continue;
+            }
+            if(!cursor.shouldRetry())
+                return;
         }
-        return searchResult;
     }
 
     public int[] search(long nodeId, long[] key) {
@@ -81,6 +301,30 @@ public class IndexSearch {
 
 
     public static int[] search(PageProxyCursor cursor, long[] key){
+        SearchResult result = search(cursor, key, new SearchResult());
+        return new int[]{result.index, result.offset};
+    }
+
+    /**
+     * As search, but the index and offset of the key are written to the given result instead of a new array.
+     */
+    public static SearchResult search(PageProxyCursor cursor, long[] key, SearchResult result){
+        result.index = searchIndex(cursor, key);
+        int keyLength = NodeHeader.getKeyLength(cursor);
+        if(NodeHeader.isLeafNode(cursor)){
+            result.offset = NodeHeader.NODE_HEADER_LENGTH + (result.index * keyLength * 8);
+        }
+        else{
+            int numberOfKeys = NodeHeader.getNumberOfKeys(cursor);
+            result.offset = numberOfKeys == 0 ? NodeHeader.NODE_HEADER_LENGTH : NodeHeader.NODE_HEADER_LENGTH + ((numberOfKeys + 1) * 8) + (result.index * keyLength * 8);
+        }
+        return result;
+    }
+
+    /**
+     * The index of the key in a leaf node, or of the child to follow in an internal node.
+     */
+    public static int searchIndex(PageProxyCursor cursor, long[] key){
         if(NodeHeader.isLeafNode(cursor)){
             return searchLeafNodeSameLengthKeys(cursor, key);
         }
@@ -89,69 +333,59 @@ public class IndexSearch {
         }
     }
 
-    private static int[] searchInternalNodeSameLengthKeys(PageProxyCursor cursor, long[] key){
-        int index = -1;
-        int offset = -1;
+    /*
+    Keys in a node all have the same length, so the key at any index is found by its offset and the nodes are
+    searched by bisection. Keys are compared in place, without copying them out of the page.
+     */
+    private static int searchInternalNodeSameLengthKeys(PageProxyCursor cursor, long[] key){
         int numberOfKeys = NodeHeader.getNumberOfKeys(cursor);
         if(numberOfKeys == 0){
-            return new int[]{0, NodeHeader.NODE_HEADER_LENGTH};
+            return 0;
         }
         int keyLength = NodeHeader.getKeyLength(cursor);
-        cursor.setOffset(NodeHeader.NODE_HEADER_LENGTH + ((numberOfKeys + 1) * 8)); //header + children
-        long[] currKey = new long[keyLength];
-        for(int i = 0; i < numberOfKeys; i++){
-            for(int j = 0; j < keyLength; j++) {
-                currKey[j] = cursor.getLong();
+        int firstKeyOffset = NodeHeader.NODE_HEADER_LENGTH + ((numberOfKeys + 1) * 8); //header + children
+        int low = 0;
+        int high = numberOfKeys;
+        while(low < high){ //the first key greater than the search key
+            int mid = (low + high) >>> 1;
+            if(compareToKeyAt(cursor, key, firstKeyOffset + (mid * keyLength * 8), keyLength) < 0){
+                high = mid;
             }
-            if(IndexTree.comparator.prefixCompare(key, currKey) < 0){
-                index = i;
-                offset = cursor.getOffset() - (8 * keyLength);
-                break;
+            else{
+                low = mid + 1;
             }
         }
-        if(index == -1){ //Didn't find anything
-            index = numberOfKeys;
-            offset = cursor.getOffset();
-        }
-        return new int[]{index, offset};
+        return low;
     }
 
 
-    private static int[] searchLeafNodeSameLengthKeys(PageProxyCursor cursor, long[] key){
-        int index = -1;
-        int offset = -1;
+    private static int searchLeafNodeSameLengthKeys(PageProxyCursor cursor, long[] key){
         int numberOfKeys = cursor.getInt(NodeHeader.BYTE_POSITION_KEY_COUNT);
         int keyLength = NodeHeader.getKeyLength(cursor);
-        cursor.setOffset(NodeHeader.NODE_HEADER_LENGTH);
-        long[] currKey = new long[keyLength];
-        for(int i = 0; i < numberOfKeys; i++){
-            for(int j = 0; j < keyLength; j++) {
-                currKey[j] = cursor.getLong();
+        int low = 0;
+        int high = numberOfKeys;
+        while(low < high){ //the first key not smaller than the search key
+            int mid = (low + high) >>> 1;
+            if(compareToKeyAt(cursor, key, NodeHeader.NODE_HEADER_LENGTH + (mid * keyLength * 8), keyLength) <= 0){
+                high = mid;
             }
-            if(IndexTree.comparator.prefixCompare(key, currKey) <= 0){
-                index = i;
-                offset = cursor.getOffset() - (8 * keyLength);
-                break;
+            else{
+                low = mid + 1;
             }
         }
-        if(index == -1){ //Didn't find anything
-            index = numberOfKeys;
-            offset = cursor.getOffset();
-        }
-        return new int[]{index, offset};
+        return low;
     }
 
-
-    private static int[] moveCursorBackIfPreviousNodeContainsValidKeys(PageProxyCursor cursor, long[] key) throws IOException {
-        long currentNode = cursor.getCurrentPageId();
-        long previousNode = NodeHeader.getPrecedingID(cursor);
-        if(previousNode != -1){
-            cursor.next(previousNode);
-        }
-        int[] result = search(cursor, key);
-        if(result[0] == NodeHeader.getNumberOfKeys(cursor)){
-            cursor.next(currentNode);
+    /**
+     * Compares the search key to the key stored at the offset, with the semantics of KeyImpl.prefixCompare.
+     */
+    public static int compareToKeyAt(PageProxyCursor cursor, long[] key, int offset, int keyLength){
+        for(int i = 0; i < key.length && i < keyLength; i++){
+            long value = cursor.getLong(offset + (i * 8));
+            if(key[i] != value){
+                return Long.compare(key[i], value);
+            }
         }
-        return result;
+        return key.length - keyLength;
     }
 }
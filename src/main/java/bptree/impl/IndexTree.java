@@ -1,29 +1,49 @@
 package bptree.impl;
 
+import bptree.BatchVisitor;
+import bptree.ColumnVisitor;
 import bptree.PageProxyCursor;
 import org.neo4j.io.pagecache.PagedFile;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
 
 /**
  * Static class for manipulating nodes without doing any object instantiation.
+ *
+ * Finds and inserts may run on any number of threads. Pages are read optimistically and validated, and nodes are
+ * linked to the right in the manner of a B-link tree, so an insert only latches the node it is changing, and the
+ * node's right sibling if it splits it.
+ * Removals merge nodes away and hold the structure lock, which finds validate against and retry on.
+ *
+ * Once openWriteAheadLog is called, each insert and remove is logged before it returns. Writers log the pages they
+ * change as they release them, without waiting for each other, and share the forces of the log. Finds are not affected.
  */
 public class IndexTree {
+    public static final int OPTIMISTIC_FIND_ATTEMPTS = 8;
+    public static final int NODE_LATCH_STRIPES = 1024;
 
     public PagedFile pagedFile;
     public DiskCache disk;
     public static KeyImpl comparator = new KeyImpl();
-    public long rootNodeId = 0;
+    public volatile long rootNodeId = 0;
     public int keySize;
     public PageProxyCursor cursor;
     public IndexSearch nodeSearch;
     public IndexInsertion nodeInsertion;
     public IndexDeletion nodeDeletion;
+    private final StampedLock structureLock = new StampedLock();
+    private final ReentrantLock rootLock = new ReentrantLock();
+    private final ReentrantLock[] nodeLatches = new ReentrantLock[NODE_LATCH_STRIPES];
 
     public IndexTree(int keySize, long rootNodeId, DiskCache disk){
         this.rootNodeId = rootNodeId;
+        initializeNodeLatches();
         pagedFile = disk.pagedFile;
         this.disk = disk;
+        attachTo(disk);
         this.keySize = keySize;
         this.nodeSearch = new IndexSearch(this);
         this.nodeInsertion = new IndexInsertion(this);
@@ -31,8 +51,10 @@ public class IndexTree {
     }
 
     public IndexTree(int keySize, DiskCache disk) throws IOException {
+        initializeNodeLatches();
         pagedFile = disk.pagedFile;
         this.disk = disk;
+        attachTo(disk);
         this.keySize = keySize;
         rootNodeId = acquireNewLeafNode();
         this.nodeSearch = new IndexSearch(this);
@@ -41,10 +63,23 @@ public class IndexTree {
     }
 
 
+    /*
+    A disk has one superblock, so it holds one index. Keys of several lengths can share a disk in a MixedLengthIndex.
+     */
+    private void attachTo(DiskCache disk){
+        if(disk.index != null)
+            throw new IllegalStateException(disk.pageCacheFile + " already holds an index");
+        disk.index = this;
+    }
+
+    /**
+     * Makes a root over the two children, which is only published once its page is written.
+     */
     public void newRoot(long childA, long childB, long[] key){
+        long newRootId;
         try (PageProxyCursor cursor = disk.getCursor(rootNodeId, PagedFile.PF_EXCLUSIVE_LOCK)) {
-            rootNodeId = acquireNewInternalNode(cursor);
-            cursor.next(rootNodeId);
+            newRootId = acquireNewInternalNode(cursor);
+            cursor.next(newRootId);
             cursor.setOffset(NodeHeader.NODE_HEADER_LENGTH);
             cursor.putLong(childA);
             cursor.putLong(childB);
@@ -55,34 +90,240 @@ public class IndexTree {
             NodeHeader.setNumberOfKeys(cursor, 1);
         } catch (IOException e) {
             e.printStackTrace();
+            return;
+        }
+        rootNodeId = newRootId;
+        if(disk.wal != null){
+            try {
+                disk.wal.rootChanged(newRootId);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
         }
     }
 
 
     public SearchCursor find(long[] key) throws IOException {
-        return nodeSearch.find(key);
+        return find(null, key);
     }
 
     public SearchCursor find(PageProxyCursor cursor, long[] key) throws IOException {
-        return nodeSearch.findWithCursor(cursor, key);
+        return find(cursor, key, null);
     }
 
-    public void insert(long[] key){
-        SplitResult result = nodeInsertion.insert(key);
+    /**
+     * Finds the first key matching the prefix, positioning the given results cursor rather than allocating a new one.
+     * With SearchCursor.next(cursor, dest) this lets a lookup and scan run without producing garbage.
+     */
+    public SearchCursor find(PageProxyCursor cursor, long[] key, SearchCursor resultsCursor) throws IOException {
+        return seek(cursor, key, key, resultsCursor);
+    }
+
+    /**
+     * Positions the results cursor at the first key not smaller than from, and returns only the keys matching the
+     * prefix from there on. From must begin with the prefix.
+     */
+    public SearchCursor seek(PageProxyCursor cursor, long[] prefix, long[] from, SearchCursor resultsCursor) throws IOException {
+        for(int attempt = 0; attempt < OPTIMISTIC_FIND_ATTEMPTS; attempt++){
+            long stamp = structureLock.tryOptimisticRead();
+            if(stamp == 0){
+                Thread.yield();
+                continue;
+            }
+            try {
+                SearchCursor result = findWithoutLocking(cursor, prefix, from, resultsCursor);
+                if (structureLock.validate(stamp))
+                    return result;
+            } catch (RuntimeException e) {
+                if (structureLock.validate(stamp))
+                    throw e;
+            }
+        }
+        long stamp = structureLock.readLock();
+        try {
+            return findWithoutLocking(cursor, prefix, from, resultsCursor);
+        } finally {
+            structureLock.unlockRead(stamp);
+        }
+    }
+
+    private SearchCursor findWithoutLocking(PageProxyCursor cursor, long[] prefix, long[] from, SearchCursor resultsCursor){
+        SearchCursor result = cursor == null ? nodeSearch.find(from) : nodeSearch.findWithCursor(cursor, from, resultsCursor);
+        if(result != null) {
+            result.searchKey = prefix;
+        }
+        return result;
+    }
 
-        if(result != null){
-           newRoot(result.left, result.right, result.primkey);
+    /**
+     * Finds the keys matching each of the prefixes, walking the leaves in order rather than descending from the root
+     * for every prefix. The structure lock is held throughout, so the visitor must not remove from this tree.
+     * @return the number of keys visited.
+     */
+    public long findAll(PageProxyCursor cursor, long[][] prefixes, BatchVisitor visitor){
+        long stamp = structureLock.readLock();
+        try {
+            return nodeSearch.findAll(cursor, prefixes, visitor);
+        } finally {
+            structureLock.unlockRead(stamp);
         }
     }
 
+    /**
+     * Passes one column of each key matching the prefix to the visitor, such as the end nodes of the paths with a
+     * path id. On leaves written with the ColumnarLeafCodec only that column and those of the prefix are decoded.
+     * As for findAll the structure lock is held throughout, so the visitor must not remove from this tree.
+     * @return the number of keys visited.
+     */
+    public long findColumn(PageProxyCursor cursor, long[] prefix, int column, ColumnVisitor visitor){
+        long stamp = structureLock.readLock();
+        try {
+            return nodeSearch.findColumn(cursor, prefix, column, visitor);
+        } finally {
+            structureLock.unlockRead(stamp);
+        }
+    }
+
+    public void insert(long[] key){
+        WriteAheadLog wal = beginMutation();
+        long commit;
+        long stamp = structureLock.readLock();
+        try {
+            nodeInsertion.insert(key);
+        } finally {
+            structureLock.unlockRead(stamp);
+            commit = endMutation(wal);
+        }
+        awaitDurable(wal, commit);
+    }
+
     public void remove(long[] key){
-        nodeDeletion.remove(key);
+        WriteAheadLog wal = beginMutation();
+        long commit;
+        long stamp = structureLock.writeLock();
+        try {
+            nodeDeletion.remove(key);
+        } finally {
+            structureLock.unlockWrite(stamp);
+            commit = endMutation(wal);
+        }
+        awaitDurable(wal, commit);
     }
 
+    /**
+     * Logs every later insert and remove to the write-ahead log beside the file, starting from a checkpoint of the
+     * index as it is now, so the file can be recovered after a crash by DiskCache.openIndex. Only indexes on a
+     * persistent DiskCache can be logged, and pages written by bulk loaders are not logged, so a bulk loaded index is
+     * opened for logging after it is built.
+     */
+    public void openWriteAheadLog() throws IOException {
+        if(disk.wal == null){
+            disk.wal = new WriteAheadLog(disk, WriteAheadLog.logFile(disk.pageCacheFile));
+        }
+        disk.wal.checkpoint(this);
+    }
 
+    /**
+     * Forces the pages of every logged mutation to the file, so the log can start again. The log is also checkpointed
+     * whenever it grows past WriteAheadLog.CHECKPOINT_BYTES.
+     */
+    public void checkpoint() throws IOException {
+        if(disk.wal != null){
+            disk.wal.checkpoint(this);
+        }
+    }
+
+    private WriteAheadLog beginMutation(){
+        WriteAheadLog wal = disk.wal;
+        if(wal != null){
+            wal.begin();
+        }
+        return wal;
+    }
+
+    /**
+     * Ends the mutation, also when it failed part way, returning the log position its pages were logged up to.
+     */
+    private static long endMutation(WriteAheadLog wal){
+        return wal == null ? 0 : wal.end();
+    }
+
+    /**
+     * Waits for the mutation's records to be forced, then checkpoints the log if it has grown too long. Neither
+     * holds the structure lock or any latch.
+     */
+    private void awaitDurable(WriteAheadLog wal, long commit){
+        if(wal == null){
+            return;
+        }
+        try {
+            wal.awaitDurable(commit);
+            wal.checkpointIfFull(this);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Returns the node at the given height which should hold the separator of a split node, when that node was at
+     * the top of the path its writer descended. If the split node is still the root, a new root is made and -1 returned.
+     */
+    public long parentForSplit(SplitResult split, int height) throws IOException {
+        long[] path = new long[IndexSearch.MAX_DEPTH];
+        while(true){
+            rootLock.lock();
+            try {
+                if (rootNodeId == split.left) {
+                    newRoot(split.left, split.right, split.primkey);
+                    return -1;
+                }
+            } finally {
+                rootLock.unlock();
+            }
+            int depth;
+            try (PageProxyCursor cursor = disk.getCursor(rootNodeId, PagedFile.PF_SHARED_LOCK)) {
+                depth = nodeSearch.descend(cursor, split.primkey, path);
+            }
+            if(depth - height >= 0)
+                return path[depth - height];
+            Thread.yield(); //the root was split by another writer, which has not made the new root yet.
+        }
+    }
+
+    private void initializeNodeLatches(){
+        for(int i = 0; i < nodeLatches.length; i++){
+            nodeLatches[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Moving right releases a node before latching its sibling. A writer splitting a node also latches its old right
+     * sibling, whose preceding id it changes, but only ever waits for two latches taken together in stripe order, see
+     * latchNodes, so writers cannot deadlock on the stripes.
+     */
+    public void latchNode(long nodeId){
+        nodeLatches[(int) (nodeId % NODE_LATCH_STRIPES)].lock();
+    }
+
+    public boolean tryLatchNode(long nodeId){
+        return nodeLatches[(int) (nodeId % NODE_LATCH_STRIPES)].tryLock();
+    }
+
+    /**
+     * Latches both nodes, the lower stripe first.
+     */
+    public void latchNodes(long nodeA, long nodeB){
+        boolean aFirst = (nodeA % NODE_LATCH_STRIPES) <= (nodeB % NODE_LATCH_STRIPES);
+        latchNode(aFirst ? nodeA : nodeB);
+        latchNode(aFirst ? nodeB : nodeA);
+    }
+
+    public void unlatchNode(long nodeId){
+        nodeLatches[(int) (nodeId % NODE_LATCH_STRIPES)].unlock();
+    }
 
     public void setPrecedingId(long nodeId, long newPrecedingId){
-        try (PageProxyCursor cursor = disk.getCursor(rootNodeId, PagedFile.PF_EXCLUSIVE_LOCK)) {
+        try (PageProxyCursor cursor = disk.getCursor(nodeId, PagedFile.PF_EXCLUSIVE_LOCK)) {
                 NodeHeader.setPrecedingId(cursor, newPrecedingId);
 
         } catch (IOException e) {
@@ -91,7 +332,7 @@ public class IndexTree {
     }
 
     public void setFollowingId(long nodeId, long newFollowingId){
-        try (PageProxyCursor cursor = disk.getCursor(rootNodeId, PagedFile.PF_EXCLUSIVE_LOCK)) {
+        try (PageProxyCursor cursor = disk.getCursor(nodeId, PagedFile.PF_EXCLUSIVE_LOCK)) {
                     NodeHeader.setFollowingID(cursor, newFollowingId);
         } catch (IOException e) {
             e.printStackTrace();
@@ -106,7 +347,7 @@ public class IndexTree {
 
     public long getChildIdAtIndex(long nodeId, int indexOfChild){
         long childId = 0;
-        try (PageProxyCursor cursor = disk.getCursor(rootNodeId, PagedFile.PF_EXCLUSIVE_LOCK)) {
+        try (PageProxyCursor cursor = disk.getCursor(nodeId, PagedFile.PF_SHARED_LOCK)) {
                     childId = getChildIdAtIndex(cursor, indexOfChild);
         } catch (IOException e) {
             e.printStackTrace();
@@ -117,7 +358,7 @@ public class IndexTree {
 
     public int getIndexOfChild(long nodeId, long childId){
         int childIndex = -1;
-        try (PageProxyCursor cursor = disk.getCursor(rootNodeId, PagedFile.PF_EXCLUSIVE_LOCK)) {
+        try (PageProxyCursor cursor = disk.getCursor(nodeId, PagedFile.PF_SHARED_LOCK)) {
                     childIndex = getIndexOfChild(cursor, childId);
 
         } catch (IOException e) {
@@ -165,13 +406,13 @@ public class IndexTree {
     }
 
     public static long acquireNewLeafNode(PageProxyCursor cursor) throws IOException {
-        long newNodeId = AvailablePageIdPool.acquireId();
+        long newNodeId = cursor.getDisk().freePages.acquire();
         cursor.next(newNodeId);
         NodeHeader.initializeLeafNode(cursor);
         return newNodeId;
     }
     public long acquireNewLeafNode() throws IOException {
-        long newNodeId = AvailablePageIdPool.acquireId();
+        long newNodeId = disk.freePages.acquire();
         try(PageProxyCursor cursor = disk.getCursor(newNodeId, PagedFile.PF_EXCLUSIVE_LOCK)) {
             NodeHeader.initializeLeafNode(cursor, this.keySize);
         }
@@ -182,18 +423,26 @@ public class IndexTree {
     }
 
     public static long acquireNewInternalNode(PageProxyCursor cursor) throws IOException {
-        long newNodeId = AvailablePageIdPool.acquireId();
+        long newNodeId = cursor.getDisk().freePages.acquire();
         cursor.next(newNodeId);
         NodeHeader.initializeInternalNode(cursor);
         return newNodeId;
     }
 
-    public static void releaseNode(long nodeId){
-        AvailablePageIdPool.releaseId(nodeId);
+    public void releaseNode(long nodeId){
+        disk.freePages.release(nodeId);
+        if(disk.wal != null){
+            try {
+                disk.wal.release(nodeId);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
     }
 
     public static void removeFirstKeyInInternalNode(PageProxyCursor cursor){
-        byte[] compactionBytes = new byte[DiskCache.PAGE_SIZE - NodeHeader.NODE_HEADER_LENGTH - 8]; //removing child
+        int nodeLength = NodeHeader.getNodeLength(cursor);
+        byte[] compactionBytes = new byte[nodeLength - NodeHeader.NODE_HEADER_LENGTH - 8]; //removing child
         cursor.setOffset(NodeHeader.NODE_HEADER_LENGTH + 8);
         cursor.getBytes(compactionBytes);
         cursor.setOffset(NodeHeader.NODE_HEADER_LENGTH);
@@ -202,11 +451,12 @@ public class IndexTree {
         int numberOfKeys = NodeHeader.getNumberOfKeys(cursor);
 
         int keyLength = NodeHeader.getKeyLength(cursor);
-        compactionBytes = new byte[DiskCache.PAGE_SIZE - NodeHeader.NODE_HEADER_LENGTH - (numberOfKeys * 8) - (8 * keyLength)];
+        compactionBytes = new byte[nodeLength - 8 - NodeHeader.NODE_HEADER_LENGTH - (numberOfKeys * 8) - (8 * keyLength)];
         cursor.setOffset(NodeHeader.NODE_HEADER_LENGTH + (numberOfKeys * 8) + (8 * keyLength));
         cursor.getBytes(compactionBytes);
         cursor.setOffset(NodeHeader.NODE_HEADER_LENGTH + (numberOfKeys * 8));
         cursor.putBytes(compactionBytes);
+        cursor.putBytes(new byte[8 + (8 * keyLength)]); //the bytes after the node stay zeroed
 
         NodeHeader.setNumberOfKeys(cursor, numberOfKeys - 1);
     }
@@ -84,8 +84,8 @@ public class KeyImpl implements Comparator<long[]> {
     }
     public int prefixCompare(long[] search_key, long[] key) {
         for (int i = 0; i < search_key.length; i++) {
-            if (search_key[i] - key[i] != 0) {
-                return (int) (search_key[i] - (key[i]));
+            if (search_key[i] != key[i]) {
+                return Long.compare(search_key[i], key[i]);
             }
         }
         return search_key.length - key.length;
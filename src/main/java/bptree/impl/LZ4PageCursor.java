@@ -19,21 +19,25 @@ public class LZ4PageCursor extends PageProxyCursor{
     LZ4Compressor compressor = factory.fastCompressor();
     LZ4FastDecompressor decompressor = factory.fastDecompressor();
     PageCursor cursor;
+    DiskCache disk;
+    int lock;
     int maxPageSize = DiskCache.PAGE_SIZE * 15;
     ByteBuffer dBuffer = ByteBuffer.allocate(maxPageSize);
     int mostRecentCompressedLeafSize = NodeHeader.NODE_HEADER_LENGTH;//the default value
     boolean deferWriting = false;
 
     public LZ4PageCursor(DiskCache disk, long pageId, int lock) throws IOException {
+        this.disk = disk;
+        this.lock = lock;
         this.cursor = disk.pagedFile.io(pageId, lock);
         cursor.next();
-        loadCursorFromDisk();
+        loadValidatedFromDisk();
     }
 
     @Override
     public void next(long page) throws IOException {
-        cursor.next(page);
-        loadCursorFromDisk();
+        cursor = disk.movePageCursor(cursor, page, lock);
+        loadValidatedFromDisk();
         dBuffer.position(0);
     }
 
@@ -108,6 +112,21 @@ public class LZ4PageCursor extends PageProxyCursor{
             cursor.putByte(dBuffer.get(i));
     }
 
+    private void loadValidatedFromDisk() throws IOException {
+        boolean retry;
+        do {
+            try {
+                loadCursorFromDisk();
+                retry = cursor.shouldRetry();
+            }
+            catch(RuntimeException e){ //a concurrent write left the page in a state which could not be decoded
+                retry = cursor.shouldRetry();
+                if(!retry)
+                    throw e;
+            }
+        } while(retry);
+    }
+
     private void loadCursorFromDisk(){
 
         if (NodeHeader.isUninitializedNode(cursor)) {
@@ -151,6 +170,11 @@ public class LZ4PageCursor extends PageProxyCursor{
         return cursor.getCurrentPageId();
     }
 
+    @Override
+    public DiskCache getDisk(){
+        return disk;
+    }
+
     @Override
     public int capacity() {
         if(NodeHeader.isLeafNode(this))
@@ -265,6 +289,16 @@ public class LZ4PageCursor extends PageProxyCursor{
         return NodeSize.internalNodeContainsSpaceForNewKeyAndChild(this, newKey);
     }
 
+    @Override
+    public boolean shouldRetry() throws IOException {
+        if(cursor.shouldRetry()){
+            loadCursorFromDisk();
+            dBuffer.position(0);
+            return true;
+        }
+        return false;
+    }
+
     @Override
     public void close() throws IOException {
         this.cursor.close();
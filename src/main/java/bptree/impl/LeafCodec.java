@@ -0,0 +1,56 @@
+package bptree.impl;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An encoding of the keys of a compressed leaf, other than the delta encoding SuperCompressedPageCursor writes by
+ * default. A leaf written with a codec has CODEC_FLAG set in its header and the codec's id in the byte after the
+ * header, so leaves written with different codecs can be read from the same file. The codec new leaves are written
+ * with is chosen per index through DiskCache.LEAF_CODEC, and recorded in its superblock.
+ *
+ * Keys are handed to a codec in one array, keyLength longs per key. Codecs keep no state between calls, the same
+ * instance is used by every cursor.
+ */
+public interface LeafCodec {
+    LeafCodec FRAME_OF_REFERENCE = new FrameOfReferenceCodec();
+    LeafCodec PATH_RUN_LENGTH = new PathRunLengthCodec();
+    ColumnarLeafCodec COLUMNAR = new ColumnarLeafCodec();
+
+    /**
+     * The id stored in the leaves and superblocks written with this codec.
+     */
+    byte id();
+
+    /**
+     * The number of bytes encode would write for the keys.
+     */
+    int encodedLength(long[] keys, int numberOfKeys, int keyLength);
+
+    /**
+     * Writes the keys from the position of dest on, which must have encodedLength bytes remaining.
+     */
+    void encode(long[] keys, int numberOfKeys, int keyLength, ByteBuffer dest);
+
+    /**
+     * Reads the keys from the position of src on into keys, leaving src positioned after them.
+     */
+    void decode(ByteBuffer src, int numberOfKeys, int keyLength, long[] keys);
+
+    /**
+     * The codec with the given id, or null for the default delta encoding of SuperCompressedPageCursor.
+     */
+    static LeafCodec forId(byte id){
+        switch (id){
+            case Superblock.CODEC_SUPER_COMPRESSED:
+                return null;
+            case Superblock.CODEC_FRAME_OF_REFERENCE:
+                return FRAME_OF_REFERENCE;
+            case Superblock.CODEC_PATH_RUN_LENGTH:
+                return PATH_RUN_LENGTH;
+            case Superblock.CODEC_COLUMNAR:
+                return COLUMNAR;
+            default:
+                throw new IllegalArgumentException("Unknown leaf codec " + id);
+        }
+    }
+}
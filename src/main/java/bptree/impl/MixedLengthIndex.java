@@ -0,0 +1,122 @@
+package bptree.impl;
+
+import bptree.ColumnVisitor;
+import bptree.KeyVisitor;
+import bptree.PageProxyCursor;
+
+import java.io.IOException;
+
+/**
+ * Keys of different lengths, such as the K1, K2 and K3 paths of a workload, kept in one IndexTree, and so in one file
+ * and one page cache. Each key is stored behind its length and padded with zeros up to the longest length, so the keys
+ * of one length are a contiguous range of the tree, in the order they would have in a tree of their own.
+ *
+ * What the length and padding cost each key depends on how the disk stores its pages:
+ * - Delta encoded compressed leaves leave out up to three leading columns equal to the key before, and up to three
+ *   trailing zero columns, see SuperCompressedPageCursor. The length is one of the leading columns, so a key costs
+ *   what it would in a tree of its own, with three exceptions. A key sharing three or more columns with the key
+ *   before writes one column more, as the length takes one of the three left out. A key at a restart point writes
+ *   the delta of its length from zero. Padding columns past the third are written, at the key's delta width.
+ * - Leaves written with a LeafCodec store the length column as runs and each padding column as a column which is
+ *   constant across the keys of one length, at the cost the codec gives such columns.
+ * - Compressed internal nodes store the length once per node in the prefix of their separators, and leave out the
+ *   zeros each separator ends with, see SeparatorTruncation.
+ * - Uncompressed pages pay in full, every key taking eight bytes for its length and for each padding column, so keys
+ *   of mixed lengths should share a compressed disk.
+ */
+public class MixedLengthIndex {
+    public final IndexTree tree;
+    public final int maxKeyLength;
+
+    /**
+     * A new index, on a new tree on the disk.
+     */
+    public MixedLengthIndex(DiskCache disk, int maxKeyLength) throws IOException {
+        this(new IndexTree(maxKeyLength + 1, disk));
+    }
+
+    /**
+     * An index on a tree this class wrote before, such as one reopened with DiskCache.openIndex.
+     */
+    public MixedLengthIndex(IndexTree tree){
+        this.tree = tree;
+        this.maxKeyLength = tree.keySize - 1;
+    }
+
+    /**
+     * The key as it is stored in the tree.
+     */
+    public long[] storedKey(long[] key){
+        return storedPrefix(maxKeyLength, key.length, key);
+    }
+
+    /**
+     * The key as it is stored in an index of keys up to the given length, such as for sorting keys to build one.
+     */
+    public static long[] storedKey(long[] key, int maxKeyLength){
+        return storedPrefix(maxKeyLength, key.length, key);
+    }
+
+    /**
+     * The prefix of the keys of the given length which start with the given prefix, as it is stored in the tree.
+     */
+    public long[] storedPrefix(int keyLength, long[] prefix){
+        return storedPrefix(maxKeyLength, keyLength, prefix);
+    }
+
+    private static long[] storedPrefix(int maxKeyLength, int keyLength, long[] prefix){
+        if(keyLength > maxKeyLength || prefix.length > keyLength)
+            throw new IllegalArgumentException("Keys of length " + keyLength + " with a prefix of " + prefix.length + " in an index of keys up to length " + maxKeyLength);
+        long[] stored = new long[prefix.length == keyLength ? maxKeyLength + 1 : prefix.length + 1];
+        stored[0] = keyLength;
+        System.arraycopy(prefix, 0, stored, 1, prefix.length);
+        return stored;
+    }
+
+    public void insert(long[] key){
+        tree.insert(storedKey(key));
+    }
+
+    public void remove(long[] key){
+        tree.remove(storedKey(key));
+    }
+
+    /**
+     * Finds the first key of the given length starting with the prefix. The keys the search cursor returns are stored
+     * keys, next reads them back at their own length.
+     */
+    public SearchCursor find(PageProxyCursor cursor, int keyLength, long[] prefix) throws IOException {
+        return tree.find(cursor, storedPrefix(keyLength, prefix));
+    }
+
+    /**
+     * Copies the next key found into dest, which is as long as the keys searched for.
+     * @return false if there are no more keys matching the search, dest is then unchanged.
+     */
+    public boolean next(SearchCursor results, PageProxyCursor cursor, long[] dest) throws IOException {
+        long[] stored = results.next(cursor);
+        if(stored == null)
+            return false;
+        System.arraycopy(stored, 1, dest, 0, dest.length);
+        return true;
+    }
+
+    /**
+     * Passes each key of the given length starting with the prefix to the visitor, until it returns false.
+     * @return the number of keys visited.
+     */
+    public int forEach(PageProxyCursor cursor, int keyLength, long[] prefix, KeyVisitor visitor) throws IOException {
+        long[] key = new long[keyLength];
+        return find(cursor, keyLength, prefix).forEach(cursor, stored -> {
+            System.arraycopy(stored, 1, key, 0, keyLength);
+            return visitor.visit(key);
+        });
+    }
+
+    /**
+     * As IndexTree.findColumn, with the column counted in the keys of the given length.
+     */
+    public long findColumn(PageProxyCursor cursor, int keyLength, long[] prefix, int column, ColumnVisitor visitor){
+        return tree.findColumn(cursor, storedPrefix(keyLength, prefix), column + 1, visitor);
+    }
+}
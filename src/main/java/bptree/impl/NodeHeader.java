@@ -13,6 +13,14 @@ The Header of the block when stored as bytes is:
 (4) int - the number of keys in this node. A slightly delicate topic in the internal nodes, since they also contain child node ids and not just keys.
 (8) long - the id to the next node, the sibling node.
 (8) long - the id to the previous node, the preceding node.
+
+The high bits of the first byte are flags. A node split by IndexInsertion has HIGH_KEY_FLAG set and stores a high key
+directly after its last key. Every key in the node is smaller than the high key, keys which are not belong to a sibling
+to the right. Nodes without the flag have no upper bound.
+RESTART_POINTS_FLAG is only set on pages written by SuperCompressedPageCursor, it is never seen through the cursor.
+CODEC_FLAG is set on leaves SuperCompressedPageCursor wrote with a LeafCodec, whose id is the byte after the header.
+TRUNCATED_KEYS_FLAG is set on internal nodes SuperCompressedPageCursor wrote with their separators truncated, as
+described in SeparatorTruncation. Like RESTART_POINTS_FLAG it is never seen through the cursor.
  */
     public static final int BYTE_POSITION_NODE_TYPE = 0;
     public static final int BYTE_POSITION_KEY_LENGTH = 1;
@@ -20,20 +28,69 @@ The Header of the block when stored as bytes is:
     public static final int BYTE_POSITION_SIBLING_ID = 9;
     public static final int BYTE_POSITION_PRECEDING_ID = 17;
     public static final int LEAF_FLAG = 1;
+    public static final int INTERNAL_FLAG = 2;
+    public static final int NODE_TYPE_MASK = 15;
+    public static final int HIGH_KEY_FLAG = 16;
+    public static final int RESTART_POINTS_FLAG = 32;
+    public static final int CODEC_FLAG = 64;
+    public static final int TRUNCATED_KEYS_FLAG = 128;
     public static final int NODE_HEADER_LENGTH = 1 + 4 + 4 + 8 + 8;
 
     public static boolean isLeafNode(ByteBuffer buffer){
-        return buffer.get(BYTE_POSITION_NODE_TYPE) == LEAF_FLAG;
+        return (buffer.get(BYTE_POSITION_NODE_TYPE) & NODE_TYPE_MASK) == LEAF_FLAG;
     }
     public static boolean isLeafNode(PageCursor cursor){
-        return cursor.getByte(BYTE_POSITION_NODE_TYPE) == LEAF_FLAG;
+        return (cursor.getByte(BYTE_POSITION_NODE_TYPE) & NODE_TYPE_MASK) == LEAF_FLAG;
     }
     public static boolean isLeafNode(PageProxyCursor cursor){
-        return cursor.getByte(BYTE_POSITION_NODE_TYPE) == LEAF_FLAG;
+        return (cursor.getByte(BYTE_POSITION_NODE_TYPE) & NODE_TYPE_MASK) == LEAF_FLAG;
+    }
+    public static boolean isInternalNode(ByteBuffer buffer){
+        return (buffer.get(BYTE_POSITION_NODE_TYPE) & NODE_TYPE_MASK) == INTERNAL_FLAG;
     }
     public static boolean isUninitializedNode(PageCursor cursor){return cursor.getByte(BYTE_POSITION_NODE_TYPE) == 0;}
 
 
+    public static boolean hasHighKey(ByteBuffer buffer){
+        return (buffer.get(BYTE_POSITION_NODE_TYPE) & HIGH_KEY_FLAG) == HIGH_KEY_FLAG;
+    }
+    public static boolean hasHighKey(PageCursor cursor){
+        return (cursor.getByte(BYTE_POSITION_NODE_TYPE) & HIGH_KEY_FLAG) == HIGH_KEY_FLAG;
+    }
+    public static boolean hasHighKey(PageProxyCursor cursor){
+        return (cursor.getByte(BYTE_POSITION_NODE_TYPE) & HIGH_KEY_FLAG) == HIGH_KEY_FLAG;
+    }
+
+    public static boolean hasRestartPoints(PageCursor cursor){
+        return (cursor.getByte(BYTE_POSITION_NODE_TYPE) & RESTART_POINTS_FLAG) == RESTART_POINTS_FLAG;
+    }
+
+    public static boolean hasCodec(PageCursor cursor){
+        return (cursor.getByte(BYTE_POSITION_NODE_TYPE) & CODEC_FLAG) == CODEC_FLAG;
+    }
+
+    public static boolean hasTruncatedKeys(ByteBuffer buffer){
+        return (buffer.get(BYTE_POSITION_NODE_TYPE) & TRUNCATED_KEYS_FLAG) == TRUNCATED_KEYS_FLAG;
+    }
+
+    public static void setHighKeyFlag(PageProxyCursor cursor, boolean hasHighKey){
+        byte type = cursor.getByte(BYTE_POSITION_NODE_TYPE);
+        cursor.putByte(BYTE_POSITION_NODE_TYPE, (byte) (hasHighKey ? type | HIGH_KEY_FLAG : type & NODE_TYPE_MASK));
+    }
+
+    public static int getHighKeyOffset(PageProxyCursor cursor){
+        int numberOfKeys = getNumberOfKeys(cursor);
+        int children = isLeafNode(cursor) ? 0 : (numberOfKeys + 1) * 8;
+        return NODE_HEADER_LENGTH + children + (numberOfKeys * getKeyLength(cursor) * 8);
+    }
+
+    /**
+     * The number of bytes the node takes, from the start of its header to the end of its high key or last key.
+     */
+    public static int getNodeLength(PageProxyCursor cursor){
+        return getHighKeyOffset(cursor) + (hasHighKey(cursor) ? getKeyLength(cursor) * 8 : 0);
+    }
+
     public static int getNumberOfKeys(ByteBuffer buffer){
         return buffer.getInt(BYTE_POSITION_KEY_COUNT);
     }
@@ -10,8 +10,6 @@ import java.io.IOException;
  */
 public class NodeSize {
 
-    public static PageProxyCursor cursor;
-
     //public static boolean leafNodeContainsSpaceForNewKey(long nodeId, long[] newKey){
 //        return leafNodeByteSize(nodeId, newKey) < DiskCache.PAGE_SIZE;
   //  }
@@ -37,6 +35,8 @@ public class NodeSize {
 
         int keyLength = NodeHeader.getKeyLength(cursor);
         byteSize += ((numberOfKeys + 1) * keyLength * 8);
+        if(NodeHeader.hasHighKey(cursor))
+            byteSize += keyLength * 8;
 
         return byteSize;
     }
@@ -63,7 +63,49 @@ public class NodeSize {
 
         int keyLength = NodeHeader.getKeyLength(cursor);
         byteSize += ((numberOfKeys + 1) * keyLength * 8);
+        if(NodeHeader.hasHighKey(cursor))
+            byteSize += keyLength * 8;
 
         return byteSize;
     }
+
+    /**
+     * The bytes of a page a bulk loader fills, header included, at the given fill factor. The rest of the page is left
+     * free, so that the first inserts into a freshly loaded node do not split it.
+     */
+    public static int bulkLoadedPageBytes(double fillFactor){
+        checkFillFactor(fillFactor);
+        return NodeHeader.NODE_HEADER_LENGTH + (int) ((DiskCache.PAGE_SIZE - NodeHeader.NODE_HEADER_LENGTH) * fillFactor);
+    }
+
+    /**
+     * The number of keys a bulk loader puts in an internal node at the given fill factor, one fewer than its children.
+     */
+    public static int bulkLoadedInternalNodeKeys(int keyLength, double fillFactor){
+        checkFillFactor(fillFactor);
+        int maxPairs = ((DiskCache.PAGE_SIZE - NodeHeader.NODE_HEADER_LENGTH) / ((keyLength + 1) * 8)) - 1;
+        return Math.max(1, (int) ((maxPairs + 1) * fillFactor) - 1);
+    }
+
+    /**
+     * Checks that the leaves a bulk loader is given, pages 0 to finalLeafPage - 1, leave the space a fill factor below
+     * one is meant to leave. The first leaf is checked, the last may be short. Sorter packs its leaves full, so a
+     * sorted index with free space is built through Sorter.sortInto and a PipelinedIndexBuilder instead.
+     */
+    public static void checkBulkLoadedLeaves(DiskCache disk, long finalLeafPage, double fillFactor) throws IOException {
+        checkFillFactor(fillFactor);
+        if(fillFactor == 1 || finalLeafPage < 2)
+            return;
+        try (PageProxyCursor cursor = disk.getCursor(0, PagedFile.PF_SHARED_LOCK)) {
+            int leafBytes = NodeHeader.NODE_HEADER_LENGTH + (NodeHeader.getNumberOfKeys(cursor) * NodeHeader.getKeyLength(cursor) * 8);
+            if(leafBytes > bulkLoadedPageBytes(fillFactor))
+                throw new IllegalArgumentException("The leaves hold " + leafBytes + " bytes, more than a fill factor of " +
+                        fillFactor + " allows. Build through Sorter.sortInto with a PipelinedIndexBuilder to fill leaves partly.");
+        }
+    }
+
+    private static void checkFillFactor(double fillFactor){
+        if(fillFactor <= 0 || fillFactor > 1)
+            throw new IllegalArgumentException("Fill factor must be in (0, 1], was " + fillFactor);
+    }
 }
@@ -0,0 +1,174 @@
+package bptree.impl;
+
+import bptree.PageProxyCursor;
+import org.neo4j.io.pagecache.PagedFile;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Builds the internal levels of an index over sorted leaves, as IndexBulkLoader does, but a level at a time with the
+ * nodes of a level split into chunks which are written on a fork-join pool when THREADS is more than one.
+ *
+ * The nodes of a level take a contiguous extent of new pages, acquired before the level is written, so a node's id,
+ * children and siblings are known without walking the sibling pointers of the level below. The first key under every
+ * node is kept as the level is built, so the separators of the next level are copied from it rather than found by
+ * descending to the leftmost leaf of each child. Only the leaves are read, once, for their first keys.
+ *
+ * As with IndexBulkLoader, the leaves are pages 0 to finalLeafPage - 1.
+ */
+public class ParallelIndexBulkLoader {
+    public int THREADS = Runtime.getRuntime().availableProcessors();
+    public int NODES_PER_CHUNK = 64; //internal nodes written by one task
+    private final DiskCache disk;
+    public final int keySize;
+    public final long finalLeafPage;
+    public final int MAX_PAIRS;
+
+    public ParallelIndexBulkLoader(DiskCache disk, long finalPage, int keySize) throws IOException {
+        this(disk, finalPage, keySize, 1.0);
+    }
+
+    /**
+     * A loader which fills the internal nodes it builds to the given fraction of a page. The leaves must already be
+     * filled no further, see NodeSize.checkBulkLoadedLeaves.
+     */
+    public ParallelIndexBulkLoader(DiskCache disk, long finalPage, int keySize, double fillFactor) throws IOException {
+        NodeSize.checkBulkLoadedLeaves(disk, finalPage, fillFactor);
+        this.disk = disk;
+        this.finalLeafPage = finalPage;
+        this.keySize = keySize;
+        this.MAX_PAIRS = NodeSize.bulkLoadedInternalNodeKeys(keySize, fillFactor);
+        disk.freePages.reserveUpTo(finalLeafPage + 1);
+    }
+
+    public IndexTree run() throws IOException {
+        ForkJoinPool pool = THREADS > 1 ? new ForkJoinPool(THREADS) : null;
+        try {
+            long firstChild = 0;
+            long children = finalLeafPage;
+            long[] firstKeys = null; //null while the children are leaves
+            do {
+                long nodes = (children + MAX_PAIRS) / (MAX_PAIRS + 1);
+                long firstNode = disk.freePages.acquireExtent(nodes);
+                long[] nodeFirstKeys = new long[(int) nodes * keySize];
+                ArrayList<LevelChunk> chunks = new ArrayList<>();
+                for(long node = 0; node < nodes; node += NODES_PER_CHUNK){
+                    chunks.add(new LevelChunk(firstChild, children, firstKeys, firstNode, nodes, nodeFirstKeys,
+                            (int) node, (int) Math.min(node + NODES_PER_CHUNK, nodes)));
+                }
+                if(pool != null && chunks.size() > 1){
+                    try {
+                        pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(chunks)));
+                    } catch (UncheckedIOException e){
+                        throw e.getCause();
+                    }
+                }
+                else{
+                    for(LevelChunk chunk : chunks){
+                        chunk.build();
+                    }
+                }
+                firstChild = firstNode;
+                children = nodes;
+                firstKeys = nodeFirstKeys;
+            } while(children > 1);
+            return new IndexTree(keySize, firstChild, disk);
+        } finally {
+            if(pool != null){
+                pool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Writes a range of the nodes of one level. Node i of the level has the children from firstChild + i * (MAX_PAIRS + 1)
+     * on, and its first key is stored at i * keySize of nodeFirstKeys. Chunks write disjoint pages and disjoint parts of
+     * nodeFirstKeys, so they need no locking.
+     */
+    private class LevelChunk extends RecursiveAction {
+        final long firstChild;
+        final long children;
+        final long[] childFirstKeys;
+        final long firstNode;
+        final long nodes;
+        final long[] nodeFirstKeys;
+        final int from;
+        final int to;
+        final long[] separators = new long[(MAX_PAIRS + 1) * keySize];
+
+        LevelChunk(long firstChild, long children, long[] childFirstKeys, long firstNode, long nodes,
+                   long[] nodeFirstKeys, int from, int to){
+            this.firstChild = firstChild;
+            this.children = children;
+            this.childFirstKeys = childFirstKeys;
+            this.firstNode = firstNode;
+            this.nodes = nodes;
+            this.nodeFirstKeys = nodeFirstKeys;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                build();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void build() throws IOException {
+            try(PageProxyCursor cursor = disk.getCursor(firstNode + from, PagedFile.PF_EXCLUSIVE_LOCK)){
+                for(int node = from; node < to; node++){
+                    long first = (long) node * (MAX_PAIRS + 1);
+                    int count = (int) Math.min(MAX_PAIRS + 1, children - first);
+                    readSeparators(cursor, first, count);
+                    System.arraycopy(separators, 0, nodeFirstKeys, node * keySize, keySize);
+                    writeNode(cursor, node, first, count);
+                }
+            }
+        }
+
+        /**
+         * Fills separators with the first key under each of the given children, read from the leaves if the children
+         * are leaves.
+         */
+        private void readSeparators(PageProxyCursor cursor, long first, int count) throws IOException {
+            if(childFirstKeys != null){
+                System.arraycopy(childFirstKeys, (int) first * keySize, separators, 0, count * keySize);
+                return;
+            }
+            for(int i = 0; i < count; i++){
+                cursor.next(firstChild + first + i);
+                cursor.setOffset(NodeHeader.NODE_HEADER_LENGTH);
+                for(int k = 0; k < keySize; k++){
+                    separators[i * keySize + k] = cursor.getLong();
+                }
+            }
+        }
+
+        private void writeNode(PageProxyCursor cursor, int node, long first, int count) throws IOException {
+            long nodeId = firstNode + node;
+            cursor.next(nodeId);
+            NodeHeader.initializeInternalNode(cursor);
+            cursor.deferWriting();
+            NodeHeader.setKeyLength(cursor, keySize);
+            NodeHeader.setNumberOfKeys(cursor, count - 1);
+            NodeHeader.setPrecedingId(cursor, node == 0 ? -1 : nodeId - 1);
+            NodeHeader.setFollowingID(cursor, node == nodes - 1 ? -1 : nodeId + 1);
+            cursor.setOffset(NodeHeader.NODE_HEADER_LENGTH);
+            for(int i = 0; i < count; i++){
+                cursor.putLong(firstChild + first + i);
+            }
+            for(int i = keySize; i < count * keySize; i++){
+                cursor.putLong(separators[i]);
+            }
+            cursor.resumeWriting();
+        }
+    }
+}
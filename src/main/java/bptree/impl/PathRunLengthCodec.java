@@ -0,0 +1,142 @@
+package bptree.impl;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Stores the path id column of a leaf as runs of equal ids, and each other column as the zig-zag varints of its
+ * differences from the same column of the key before. The keys of a leaf are sorted, so its path ids are usually one
+ * or two runs, and the differences of the first node column are small.
+ *
+ * [number of runs][path id, run length]...[differences of column 1]...[differences of column keyLength - 1]
+ */
+public class PathRunLengthCodec implements LeafCodec {
+    static final int RUN_LENGTH = 8 + 2;
+
+    @Override
+    public byte id() {
+        return Superblock.CODEC_PATH_RUN_LENGTH;
+    }
+
+    @Override
+    public int encodedLength(long[] keys, int numberOfKeys, int keyLength) {
+        int length = runsLength(keys, numberOfKeys, keyLength);
+        for(int column = 1; column < keyLength; column++){
+            length += deltasLength(keys, numberOfKeys, keyLength, column);
+        }
+        return length;
+    }
+
+    @Override
+    public void encode(long[] keys, int numberOfKeys, int keyLength, ByteBuffer dest) {
+        encodeRuns(keys, numberOfKeys, keyLength, dest);
+        for(int column = 1; column < keyLength; column++){
+            encodeDeltas(keys, numberOfKeys, keyLength, column, dest);
+        }
+    }
+
+    @Override
+    public void decode(ByteBuffer src, int numberOfKeys, int keyLength, long[] keys) {
+        decodeRuns(src, keyLength, keys);
+        for(int column = 1; column < keyLength; column++){
+            decodeDeltas(src, numberOfKeys, keyLength, column, keys);
+        }
+    }
+
+    static int runsLength(long[] keys, int numberOfKeys, int keyLength){
+        return 2 + runs(keys, numberOfKeys, keyLength) * RUN_LENGTH;
+    }
+
+    static void encodeRuns(long[] keys, int numberOfKeys, int keyLength, ByteBuffer dest){
+        dest.putShort((short) runs(keys, numberOfKeys, keyLength));
+        for(int i = 0; i < numberOfKeys; ){
+            long pathId = keys[i * keyLength];
+            int run = 1;
+            while(i + run < numberOfKeys && keys[(i + run) * keyLength] == pathId){
+                run++;
+            }
+            dest.putLong(pathId);
+            dest.putShort((short) run);
+            i += run;
+        }
+    }
+
+    static void decodeRuns(ByteBuffer src, int keyLength, long[] keys){
+        int runs = src.getShort() & 0xFFFF;
+        int key = 0;
+        for(int r = 0; r < runs; r++){
+            long pathId = src.getLong();
+            int run = src.getShort() & 0xFFFF;
+            for(int i = 0; i < run; i++){
+                keys[(key++) * keyLength] = pathId;
+            }
+        }
+    }
+
+    static int deltasLength(long[] keys, int numberOfKeys, int keyLength, int column){
+        int length = 0;
+        long previous = 0;
+        for(int i = column; i < numberOfKeys * keyLength; i += keyLength){
+            length += varintLength(zigZag(keys[i] - previous));
+            previous = keys[i];
+        }
+        return length;
+    }
+
+    static void encodeDeltas(long[] keys, int numberOfKeys, int keyLength, int column, ByteBuffer dest){
+        long previous = 0;
+        for(int i = column; i < numberOfKeys * keyLength; i += keyLength){
+            putVarint(dest, zigZag(keys[i] - previous));
+            previous = keys[i];
+        }
+    }
+
+    static void decodeDeltas(ByteBuffer src, int numberOfKeys, int keyLength, int column, long[] keys){
+        long previous = 0;
+        for(int i = column; i < numberOfKeys * keyLength; i += keyLength){
+            previous += unZigZag(getVarint(src));
+            keys[i] = previous;
+        }
+    }
+
+    private static int runs(long[] keys, int numberOfKeys, int keyLength){
+        int runs = numberOfKeys == 0 ? 0 : 1;
+        for(int i = 1; i < numberOfKeys; i++){
+            if(keys[i * keyLength] != keys[(i - 1) * keyLength]){
+                runs++;
+            }
+        }
+        return runs;
+    }
+
+    static long zigZag(long value){
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unZigZag(long value){
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static int varintLength(long value){
+        return Math.max(1, (Long.SIZE - Long.numberOfLeadingZeros(value) + 6) / 7);
+    }
+
+    static void putVarint(ByteBuffer dest, long value){
+        while((value & ~0x7Fl) != 0){
+            dest.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        dest.put((byte) value);
+    }
+
+    static long getVarint(ByteBuffer src){
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = src.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while(b < 0);
+        return value;
+    }
+}
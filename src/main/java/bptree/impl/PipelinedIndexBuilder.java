@@ -0,0 +1,246 @@
+package bptree.impl;
+
+import bptree.PageProxyCursor;
+import org.neo4j.io.pagecache.PagedFile;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Builds an index from keys handed to it in sorted order, in a single pass. Keys are packed into a leaf until the
+ * next one would not fit, then the leaf is written, once, and its id and first key are added to the internal node
+ * being filled on the level above, which is written the same way when full. Nothing is read back from the disk, so
+ * unlike IndexBulkLoader the keys are never re-read to find the separators or to walk the levels.
+ *
+ * The disk is overwritten, as the page ids are taken from page 0 on.
+ *
+ * Leaves of a disk with a LeafCodec are sized by encoding them, as adding a key can change the encoding of the whole
+ * leaf. The leaf is encoded when its size, estimated from the bytes per key the last time it was encoded, reaches the
+ * page. If it no longer fits, the most keys which do fit are written and the rest begin the next leaf.
+ */
+public class PipelinedIndexBuilder {
+    final DiskCache disk;
+    public final int keySize;
+    final int maxPairs;
+    final int maxLeafKeys;
+    final int leafBytes; //the bytes of a leaf which are filled, the rest is left free for inserts
+    final LeafCodec codec;
+    PageProxyCursor cursor;
+    long[] leafKeys;
+    int keysInLeaf = 0;
+    int leafSize = NodeHeader.NODE_HEADER_LENGTH; //the size the leaf will be written at, compressed or not
+    long leafId = -1;
+    long previousLeafId = -1;
+    long[] lastKey;
+    long[] zeros;
+    ArrayList<Level> levels = new ArrayList<>();
+    public long numberOfKeys = 0;
+
+    public PipelinedIndexBuilder(DiskCache disk, int keySize) throws IOException {
+        this(disk, keySize, 1.0);
+    }
+
+    /**
+     * A builder which fills leaves and internal nodes to the given fraction of a page.
+     */
+    public PipelinedIndexBuilder(DiskCache disk, int keySize, double fillFactor) throws IOException {
+        this.disk = disk;
+        this.keySize = keySize;
+        disk.freePages.clear();
+        this.maxPairs = NodeSize.bulkLoadedInternalNodeKeys(keySize, fillFactor);
+        this.leafBytes = NodeSize.bulkLoadedPageBytes(fillFactor);
+        this.codec = disk.COMPRESSION ? disk.LEAF_CODEC : null;
+        if(disk.COMPRESSION){
+            this.maxLeafKeys = (SuperCompressedPageCursor.MAX_DECODED_PAGE_SIZE - NodeHeader.NODE_HEADER_LENGTH) / (keySize * 8);
+        }
+        else{
+            this.maxLeafKeys = (DiskCache.PAGE_SIZE - NodeHeader.NODE_HEADER_LENGTH - 1) / (keySize * 8);
+        }
+        leafKeys = new long[maxLeafKeys * keySize];
+        lastKey = new long[keySize];
+        zeros = new long[keySize];
+        cursor = disk.getCursor(0, PagedFile.PF_EXCLUSIVE_LOCK);
+    }
+
+    /**
+     * Adds the next key of the index. Keys must be added in sorted order, the key is copied.
+     */
+    public void addKey(long[] key) throws IOException {
+        assert(key.length == keySize);
+        if(codec != null){
+            addKeyToCodecLeaf(key);
+            return;
+        }
+        int size = sizeInLeaf(key);
+        if(keysInLeaf == maxLeafKeys || leafSize + size > leafBytes){
+            long nextLeafId = disk.freePages.acquire();
+            writeLeaf(nextLeafId);
+            previousLeafId = leafId;
+            leafId = nextLeafId;
+            keysInLeaf = 0;
+            leafSize = NodeHeader.NODE_HEADER_LENGTH;
+            size = sizeInLeaf(key);
+        }
+        System.arraycopy(key, 0, leafKeys, keysInLeaf * keySize, keySize);
+        System.arraycopy(key, 0, lastKey, 0, keySize);
+        leafSize += size;
+        keysInLeaf++;
+        numberOfKeys++;
+    }
+
+    private void addKeyToCodecLeaf(long[] key) throws IOException {
+        if(keysInLeaf == maxLeafKeys){
+            writeFittingCodecKeys();
+        }
+        System.arraycopy(key, 0, leafKeys, keysInLeaf * keySize, keySize);
+        keysInLeaf++;
+        numberOfKeys++;
+        leafSize += Math.max(1, (leafSize - NodeHeader.NODE_HEADER_LENGTH) / Math.max(1, keysInLeaf - 1));
+        if(leafSize > leafBytes){
+            leafSize = codecLeafSize(keysInLeaf);
+            if(leafSize > leafBytes){
+                writeFittingCodecKeys();
+            }
+        }
+    }
+
+    private int codecLeafSize(int keys){
+        return NodeHeader.NODE_HEADER_LENGTH + 1 + codec.encodedLength(leafKeys, keys, keySize);
+    }
+
+    /**
+     * Writes the most keys from the start of the leaf which fit, and moves the rest to the start of the next leaf.
+     * A leaf only grows as keys are added, so the number which fit is found by bisection.
+     */
+    private void writeFittingCodecKeys() throws IOException {
+        int fitting = 1;
+        int tooMany = keysInLeaf + 1;
+        while(tooMany - fitting > 1){
+            int keys = (fitting + tooMany) / 2;
+            if(codecLeafSize(keys) <= leafBytes)
+                fitting = keys;
+            else
+                tooMany = keys;
+        }
+        int carried = keysInLeaf - fitting;
+        keysInLeaf = fitting;
+        long nextLeafId = disk.freePages.acquire();
+        writeLeaf(nextLeafId);
+        previousLeafId = leafId;
+        leafId = nextLeafId;
+        System.arraycopy(leafKeys, fitting * keySize, leafKeys, 0, carried * keySize);
+        keysInLeaf = carried;
+        leafSize = codecLeafSize(carried);
+    }
+
+    /**
+     * The bytes the key adds to the current leaf. Compressed leaves are delta encoded against the key before, or
+     * against zero with a restart point every RESTART_INTERVAL keys, as SuperCompressedPageCursor.compress writes them.
+     */
+    private int sizeInLeaf(long[] key){
+        if(!disk.COMPRESSION)
+            return keySize * 8;
+        if(keysInLeaf % SuperCompressedPageCursor.RESTART_INTERVAL == 0)
+            return Short.BYTES + SuperCompressedPageCursor.encodedLength(key, zeros);
+        return SuperCompressedPageCursor.encodedLength(key, lastKey);
+    }
+
+    /**
+     * Writes the last leaf and the internal nodes still being filled, and returns the index.
+     */
+    public IndexTree finish() throws IOException {
+        while(codec != null && codecLeafSize(keysInLeaf) > leafBytes){
+            writeFittingCodecKeys();
+        }
+        writeLeaf(-1);
+        long root = leafId;
+        for(int height = 0; height < levels.size(); height++){
+            Level level = levels.get(height);
+            if(height == levels.size() - 1 && level.previousNodeId == -1 && level.children == 1){
+                break; //the only node of the top level would have a single child, the root.
+            }
+            writeInternalNode(height, -1);
+            root = level.nodeId;
+        }
+        cursor.close();
+        return new IndexTree(keySize, root, disk);
+    }
+
+    private void writeLeaf(long followingId) throws IOException {
+        if(leafId == -1){
+            leafId = disk.freePages.acquire();
+        }
+        cursor.next(leafId);
+        NodeHeader.initializeLeafNode(cursor, keySize);
+        cursor.deferWriting();
+        NodeHeader.setNumberOfKeys(cursor, keysInLeaf);
+        NodeHeader.setPrecedingId(cursor, previousLeafId);
+        NodeHeader.setFollowingID(cursor, followingId);
+        cursor.setOffset(NodeHeader.NODE_HEADER_LENGTH);
+        for(int i = 0; i < keysInLeaf * keySize; i++){
+            cursor.putLong(leafKeys[i]);
+        }
+        cursor.resumeWriting();
+        addChild(0, leafId, leafKeys);
+    }
+
+    /**
+     * Adds a node and the first key under it to the internal node being filled at the given height, writing that
+     * node first if it is full.
+     */
+    private void addChild(int height, long child, long[] firstKey) throws IOException {
+        if(height == levels.size()){
+            levels.add(new Level());
+        }
+        Level level = levels.get(height);
+        if(level.children == maxPairs + 1){
+            long nextNodeId = disk.freePages.acquire();
+            writeInternalNode(height, nextNodeId);
+            level.previousNodeId = level.nodeId;
+            level.nodeId = nextNodeId;
+            level.children = 0;
+        }
+        if(level.children == 0){
+            System.arraycopy(firstKey, 0, level.firstKey, 0, keySize);
+        }
+        else{
+            System.arraycopy(firstKey, 0, level.keys, (level.children - 1) * keySize, keySize);
+        }
+        level.childIds[level.children++] = child;
+    }
+
+    private void writeInternalNode(int height, long followingId) throws IOException {
+        Level level = levels.get(height);
+        if(level.nodeId == -1){
+            level.nodeId = disk.freePages.acquire();
+        }
+        cursor.next(level.nodeId);
+        NodeHeader.initializeInternalNode(cursor);
+        cursor.deferWriting();
+        NodeHeader.setKeyLength(cursor, keySize);
+        NodeHeader.setNumberOfKeys(cursor, level.children - 1);
+        NodeHeader.setPrecedingId(cursor, level.previousNodeId);
+        NodeHeader.setFollowingID(cursor, followingId);
+        cursor.setOffset(NodeHeader.NODE_HEADER_LENGTH);
+        for(int i = 0; i < level.children; i++){
+            cursor.putLong(level.childIds[i]);
+        }
+        for(int i = 0; i < (level.children - 1) * keySize; i++){
+            cursor.putLong(level.keys[i]);
+        }
+        cursor.resumeWriting();
+        addChild(height + 1, level.nodeId, level.firstKey);
+    }
+
+    /**
+     * The internal node being filled at one height of the tree.
+     */
+    private class Level {
+        long nodeId = -1;
+        long previousNodeId = -1;
+        long[] childIds = new long[maxPairs + 1];
+        long[] keys = new long[maxPairs * keySize];
+        long[] firstKey = new long[keySize]; //the first key under the node, its separator in the node above
+        int children = 0;
+    }
+}
@@ -1,5 +1,6 @@
 package bptree.impl;
 
+import bptree.KeyVisitor;
 import bptree.PageProxyCursor;
 
 import java.io.IOException;
@@ -8,58 +9,256 @@ import java.io.IOException;
  * Created by max on 5/6/15.
  */
 public class SearchCursor {
+    public static int SEEK_SIBLING_HOPS = 4;
+    IndexTree tree; //set by IndexSearch when it positions this cursor, for seekTo to search from the root
     long siblingNode;
     int currentKeyIndex;
     int keyLength;
     long[] searchKey;
+    long[] startKey; //keys before this are skipped, it differs from the search key after IndexTree.seek
     public long pageID;
     int keysInNode;
+    long precedingNode = -1;
+    long[] lastReturned = new long[0];
+    boolean hasReturned = false;
+    long[] currentKey = new long[0];
+    boolean positionMayHaveMoved = true;
+    long[] seekKey = new long[0];
 
+    /**
+     * An unpositioned cursor, to be passed to IndexTree.find and reused for every search.
+     */
+    public SearchCursor(){
+    }
 
     public SearchCursor(long pageID, long siblingNode, int position, long[] searchKey, int keyLength, int keysInNode){
+        reposition(pageID, siblingNode, position, searchKey, keyLength, keysInNode);
+    }
+
+    void reposition(long pageID, long siblingNode, int position, long[] searchKey, int keyLength, int keysInNode){
         this.siblingNode = siblingNode;
         this.searchKey = searchKey;
+        this.startKey = searchKey;
         this.keyLength = keyLength;
         this.currentKeyIndex = position;
         this.pageID = pageID;
         this.keysInNode = keysInNode;
+        this.precedingNode = -1;
+        this.hasReturned = false;
+        this.positionMayHaveMoved = true;
+        if(currentKey.length != keyLength){
+            currentKey = new long[keyLength];
+            lastReturned = new long[keyLength];
+        }
     }
 
     public long[] next(PageProxyCursor cursor) throws IOException {
-        long[] next = getNext(cursor);
-        if(next != null){
-            currentKeyIndex++;
+        if(!advance(cursor)){
+            return null;
+        }
+        return currentKey.clone();
+    }
+
+    /**
+     * As next, but the key is copied into dest rather than a new array.
+     * @return false if there are no more keys matching the search key, dest is then unchanged.
+     */
+    public boolean next(PageProxyCursor cursor, long[] dest) throws IOException {
+        if(!advance(cursor)){
+            return false;
         }
-        return next;
+        System.arraycopy(currentKey, 0, dest, 0, keyLength);
+        return true;
     }
 
-    private long[] getNext(PageProxyCursor cursor) throws IOException {
+    /**
+     * Passes each remaining key matching the search key to the visitor, until it returns false.
+     * @return the number of keys visited.
+     */
+    public int forEach(PageProxyCursor cursor, KeyVisitor visitor) throws IOException {
+        int visited = 0;
+        while(advance(cursor)){
+            visited++;
+            if(!visitor.visit(currentKey)){
+                break;
+            }
+        }
+        return visited;
+    }
+
+    /**
+     * Moves forward so that the next key returned is the first one not smaller than the given key, which may be a
+     * prefix. The key is galloped to from the current index, doubling the step until a key not smaller is passed and
+     * then bisecting. If every key of the node is smaller, the gallop goes on from the start of the next sibling, for
+     * up to SEEK_SIBLING_HOPS siblings, before the tree is searched again from the root. A cursor built without a
+     * tree, by the public constructor, gallops on through the siblings instead. Keys before the current position are
+     * never returned again, so seeking backwards does nothing.
+     */
+    public void seekTo(PageProxyCursor cursor, long[] key) throws IOException {
+        if(notAfter(key, hasReturned ? lastReturned : startKey))
+            return;
+        if(seekKey.length != key.length)
+            seekKey = new long[key.length];
+        System.arraycopy(key, 0, seekKey, 0, key.length);
         if(cursor.getCurrentPageId() != pageID)
             cursor.next(pageID);
-        long[] currentKey = new long[keyLength];
-        if(currentKeyIndex < keysInNode){
-            for(int i = 0; i < keyLength; i++){
-                int bytePosition = NodeHeader.NODE_HEADER_LENGTH + (currentKeyIndex * keyLength * 8) + (i * 8);
-                currentKey[i] = cursor.getLong(bytePosition);
+        int from = currentKeyIndex;
+        for(int hop = 0; hop <= SEEK_SIBLING_HOPS || tree == null; hop++){
+            int index = seekInNode(cursor, seekKey, from);
+            if(index < keysInNode || siblingNode == -1){
+                currentKeyIndex = index;
+                startKey = seekKey;
+                hasReturned = false;
+                positionMayHaveMoved = true;
+                return;
+            }
+            loadSiblingNode(cursor);
+            from = 0;
+        }
+        long[] prefix = searchKey;
+        tree.seek(cursor, prefix, seekKey, this);
+    }
+
+    /**
+     * The index of the first key of this node not smaller than the given key, searching from the given index by
+     * doubling steps and then bisection. Returns the number of keys in the node if there is no such key.
+     */
+    private int seekInNode(PageProxyCursor cursor, long[] key, int from) throws IOException {
+        while(true) {
+            int low;
+            try {
+                reloadNodeInfo(cursor);
+                int keyLength = NodeHeader.getKeyLength(cursor);
+                low = Math.min(from, keysInNode);
+                int high = low;
+                int step = 1;
+                while(high < keysInNode && IndexSearch.compareToKeyAt(cursor, key, keyOffset(high, keyLength), keyLength) > 0){
+                    low = high + 1;
+                    high += step;
+                    step <<= 1;
+                }
+                high = Math.min(high, keysInNode);
+                while(low < high){
+                    int mid = (low + high) >>> 1;
+                    if(IndexSearch.compareToKeyAt(cursor, key, keyOffset(mid, keyLength), keyLength) <= 0){
+                        high = mid;
+                    }
+                    else{
+                        low = mid + 1;
+                    }
+                }
+            } catch (RuntimeException e) {
+                if (!cursor.shouldRetry())
+                    throw e;
+                continue;
             }
+            if (!cursor.shouldRetry())
+                return low;
+        }
+    }
+
+    /**
+     * True if the first key not smaller than key is also the first not smaller than bound. A prefix comes before
+     * the keys it starts.
+     */
+    private static boolean notAfter(long[] key, long[] bound){
+        for(int i = 0; i < key.length && i < bound.length; i++){
+            if(key[i] != bound[i])
+                return key[i] < bound[i];
+        }
+        return key.length <= bound.length;
+    }
+
+    private static int keyOffset(int index, int keyLength){
+        return NodeHeader.NODE_HEADER_LENGTH + (index * keyLength * 8);
+    }
+
+    private boolean advance(PageProxyCursor cursor) throws IOException {
+        if(!getNext(cursor)){
+            return false;
+        }
+        currentKeyIndex++;
+        System.arraycopy(currentKey, 0, lastReturned, 0, keyLength);
+        hasReturned = true;
+        return true;
+    }
+
+    /**
+     * Reads the next key into currentKey, returns false if it does not match the search key.
+     */
+    private boolean getNext(PageProxyCursor cursor) throws IOException {
+        if(cursor.getCurrentPageId() != pageID) {
+            cursor.next(pageID);
+            positionMayHaveMoved = true;
         }
-        else{
-            if(siblingNode != -1) {
-                loadSiblingNode(cursor);
-                return getNext(cursor);
+        if(positionMayHaveMoved){
+            reloadNodeInfo(cursor);
+        }
+        while(true){
+            if(!readCurrentKey(cursor, currentKey)){
+                if(siblingNode != -1) {
+                    loadSiblingNode(cursor);
+                }
+                else{
+                    return false;
+                }
+            }
+            else if(positionMayHaveMoved && alreadyPassed(currentKey)){
+                currentKeyIndex++;
             }
             else{
-                return null;
+                break;
             }
         }
-        if(KeyImpl.getComparator().validPrefix(searchKey, currentKey)){
-            return currentKey;
+        positionMayHaveMoved = false;
+        return KeyImpl.getComparator().validPrefix(searchKey, currentKey);
+    }
+
+    /**
+     * The node may have been changed by a writer since this cursor was positioned. Inserts shift keys to the right,
+     * and splits move them to a new sibling, so keys this cursor has already passed are skipped over.
+     */
+    private boolean alreadyPassed(long[] key){
+        if(!hasReturned)
+            return KeyImpl.getComparator().prefixCompare(startKey, key) > 0;
+        return KeyImpl.getComparator().compare(key, lastReturned) <= 0;
+    }
+
+    /**
+     * Reads the key at the current index into dest, returns false if the node has no key at this index.
+     * If a concurrent writer changed the node, its key count and sibling are read again along with the key.
+     */
+    private boolean readCurrentKey(PageProxyCursor cursor, long[] dest) throws IOException {
+        while(true) {
+            boolean hasKey = currentKeyIndex < keysInNode;
+            try {
+                if (hasKey) {
+                    for (int i = 0; i < keyLength; i++) {
+                        int bytePosition = NodeHeader.NODE_HEADER_LENGTH + (currentKeyIndex * keyLength * 8) + (i * 8);
+                        dest[i] = cursor.getLong(bytePosition);
+                    }
+                }
+            } catch (RuntimeException e) {
+                if (!cursor.shouldRetry())
+                    throw e;
+                reloadNodeInfo(cursor);
+                positionMayHaveMoved = true;
+                continue;
+            }
+            if (!cursor.shouldRetry())
+                return hasKey;
+            reloadNodeInfo(cursor);
+            positionMayHaveMoved = true;
         }
-        return null;
+    }
+
+    private void reloadNodeInfo(PageProxyCursor cursor){
+        this.keysInNode = NodeHeader.getNumberOfKeys(cursor);
+        this.siblingNode = NodeHeader.getSiblingID(cursor);
     }
 
     public boolean hasNext(PageProxyCursor cursor) throws IOException {
-        return getNext(cursor) != null;
+        return getNext(cursor);
     }
 
 
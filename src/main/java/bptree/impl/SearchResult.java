@@ -0,0 +1,9 @@
+package bptree.impl;
+
+/**
+ * The position of a key within a node, as found by IndexSearch. Reused between searches to avoid allocating.
+ */
+public class SearchResult {
+    public int index;
+    public int offset;
+}
@@ -0,0 +1,184 @@
+package bptree.impl;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Suffix and prefix truncation of the separator keys of internal nodes.
+ *
+ * A split leaf is separated from its new sibling by the shortest prefix of the sibling's first key which is greater
+ * than the last key left behind, its other columns set to PADDING, so it sorts before every key it is a prefix of.
+ * When SuperCompressedPageCursor writes an internal node, the columns every separator of the node starts with are
+ * stored once, and the padding columns each separator ends with are left out of it, so more separators fit in a page.
+ *
+ * Truncated node: [header][children][prefix length][prefix]...[stored columns][separator columns]...[high key]
+ * The header and children are where they are in a whole node. Each separator is stored behind the number of its
+ * columns after the prefix, up to its last which is not padding, so one separator kept whole does not widen the
+ * others. A separator ending in zeros instead, such as one of the shorter keys of a MixedLengthIndex, is stored up to
+ * its last column which is not zero, with ZERO_FILLED set on its count. The prefix length is an unsigned byte, the
+ * high key is stored whole.
+ *
+ * Only the compressed cursor truncates, as it decodes each page into a buffer before it is read. BasicPageCursor
+ * reads and writes separators in place in the page, so the internal nodes of an uncompressed disk keep their
+ * separators whole and gain no fan-out from this.
+ */
+public final class SeparatorTruncation {
+    public static final long PADDING = Long.MIN_VALUE;
+    static final int ZERO_FILLED = 0x80; //set on the column count of a separator whose columns left out are zeros
+
+    private SeparatorTruncation(){
+    }
+
+    /**
+     * The shortest separator which is greater than the left key and not greater than the right key.
+     */
+    public static long[] shortestSeparator(long[] left, long[] right){
+        long[] separator = right.clone();
+        int column = 0;
+        while(column < separator.length - 1 && left[column] == right[column]){
+            column++;
+        }
+        Arrays.fill(separator, column + 1, separator.length, PADDING);
+        return separator;
+    }
+
+    /**
+     * The number of bytes the internal node in the buffer takes whole, with the key added if it is not null.
+     */
+    static int wholeLength(ByteBuffer node, long[] newKey){
+        int keyLength = NodeHeader.getKeyLength(node);
+        int separators = NodeHeader.getNumberOfKeys(node) + (newKey == null ? 0 : 1);
+        return NodeHeader.NODE_HEADER_LENGTH + ((separators + 1) * 8) + (separators * keyLength * 8) +
+                (NodeHeader.hasHighKey(node) ? keyLength * 8 : 0);
+    }
+
+    /**
+     * The number of bytes the internal node in the buffer takes truncated, with the key added if it is not null.
+     */
+    static int truncatedLength(ByteBuffer node, long[] newKey){
+        int keyLength = NodeHeader.getKeyLength(node);
+        int separators = NodeHeader.getNumberOfKeys(node) + (newKey == null ? 0 : 1);
+        int keysOffset = NodeHeader.NODE_HEADER_LENGTH + ((NodeHeader.getNumberOfKeys(node) + 1) * 8);
+        int prefix = prefixLength(node, newKey);
+        int length = NodeHeader.NODE_HEADER_LENGTH + ((separators + 1) * 8) + 1 + (prefix * 8) +
+                (NodeHeader.hasHighKey(node) ? keyLength * 8 : 0);
+        for(int i = 0; i < separators; i++){
+            length += 1 + ((storedColumns(node, keysOffset, newKey, i, prefix) & ~ZERO_FILLED) * 8);
+        }
+        return length;
+    }
+
+    /**
+     * Writes the whole internal node in the buffer to the page truncated, setting TRUNCATED_KEYS_FLAG.
+     */
+    static void truncate(ByteBuffer node, ByteBuffer page){
+        int keyLength = NodeHeader.getKeyLength(node);
+        int separators = NodeHeader.getNumberOfKeys(node);
+        int keysOffset = NodeHeader.NODE_HEADER_LENGTH + ((separators + 1) * 8);
+        int prefix = prefixLength(node, null);
+        page.clear();
+        page.put(node.array(), 0, keysOffset);
+        page.put(NodeHeader.BYTE_POSITION_NODE_TYPE, (byte) (page.get(NodeHeader.BYTE_POSITION_NODE_TYPE) | NodeHeader.TRUNCATED_KEYS_FLAG));
+        page.put((byte) prefix);
+        for(int column = 0; column < prefix; column++){
+            page.putLong(node.getLong(keysOffset + (column * 8)));
+        }
+        for(int i = 0; i < separators; i++){
+            int stored = storedColumns(node, keysOffset, null, i, prefix);
+            page.put((byte) stored);
+            for(int column = prefix; column < prefix + (stored & ~ZERO_FILLED); column++){
+                page.putLong(node.getLong(keysOffset + (((i * keyLength) + column) * 8)));
+            }
+        }
+        if(NodeHeader.hasHighKey(node)){
+            int highKeyOffset = keysOffset + (separators * keyLength * 8);
+            for(int column = 0; column < keyLength; column++){
+                page.putLong(node.getLong(highKeyOffset + (column * 8)));
+            }
+        }
+    }
+
+    /**
+     * Writes the truncated internal node in the page to the buffer whole, clearing TRUNCATED_KEYS_FLAG.
+     */
+    static void restore(ByteBuffer page, ByteBuffer node){
+        int keyLength = NodeHeader.getKeyLength(page);
+        int separators = NodeHeader.getNumberOfKeys(page);
+        int keysOffset = NodeHeader.NODE_HEADER_LENGTH + ((separators + 1) * 8);
+        node.clear();
+        node.put(page.array(), 0, keysOffset);
+        node.put(NodeHeader.BYTE_POSITION_NODE_TYPE, (byte) (node.get(NodeHeader.BYTE_POSITION_NODE_TYPE) & ~NodeHeader.TRUNCATED_KEYS_FLAG));
+        page.position(keysOffset);
+        int prefix = page.get() & 0xFF;
+        for(int column = 0; column < prefix; column++){
+            long value = page.getLong();
+            for(int i = 0; i < separators; i++){
+                node.putLong(keysOffset + (((i * keyLength) + column) * 8), value);
+            }
+        }
+        for(int i = 0; i < separators; i++){
+            int stored = page.get() & 0xFF;
+            long fill = (stored & ZERO_FILLED) != 0 ? 0 : PADDING;
+            int column = prefix;
+            for(; column < prefix + (stored & ~ZERO_FILLED); column++){
+                node.putLong(keysOffset + (((i * keyLength) + column) * 8), page.getLong());
+            }
+            for(; column < keyLength; column++){
+                node.putLong(keysOffset + (((i * keyLength) + column) * 8), fill);
+            }
+        }
+        if(NodeHeader.hasHighKey(page)){
+            int highKeyOffset = keysOffset + (separators * keyLength * 8);
+            for(int column = 0; column < keyLength; column++){
+                node.putLong(highKeyOffset + (column * 8), page.getLong());
+            }
+        }
+    }
+
+    /**
+     * The number of columns every separator of the node, and the new key if it is not null, starts with.
+     */
+    private static int prefixLength(ByteBuffer node, long[] newKey){
+        int keyLength = NodeHeader.getKeyLength(node);
+        int numberOfKeys = NodeHeader.getNumberOfKeys(node);
+        int separators = numberOfKeys + (newKey == null ? 0 : 1);
+        if(separators == 0)
+            return 0;
+        int keysOffset = NodeHeader.NODE_HEADER_LENGTH + ((numberOfKeys + 1) * 8);
+        int prefix = keyLength;
+        for(int i = 1; i < separators; i++){
+            for(int column = 0; column < prefix; column++){
+                if(separatorColumn(node, keysOffset, newKey, i, column) != separatorColumn(node, keysOffset, newKey, 0, column)){
+                    prefix = column;
+                    break;
+                }
+            }
+        }
+        return prefix;
+    }
+
+    /**
+     * The number of columns of the separator after the prefix, up to its last column which is not padding, or if it
+     * ends in zeros, up to its last which is not zero with ZERO_FILLED set.
+     */
+    private static int storedColumns(ByteBuffer node, int keysOffset, long[] newKey, int separator, int prefix){
+        int column = NodeHeader.getKeyLength(node) - 1;
+        long fill = separatorColumn(node, keysOffset, newKey, separator, column);
+        if(fill != PADDING && fill != 0)
+            return column + 1 - prefix;
+        while(column >= prefix && separatorColumn(node, keysOffset, newKey, separator, column) == fill){
+            column--;
+        }
+        return (column + 1 - prefix) | (fill == 0 ? ZERO_FILLED : 0);
+    }
+
+    /**
+     * A column of the separators of the node, the new key being the last separator if it is not null. Where it would
+     * be inserted does not change the prefix or the stored columns.
+     */
+    private static long separatorColumn(ByteBuffer node, int keysOffset, long[] newKey, int separator, int column){
+        if(newKey != null && separator == NodeHeader.getNumberOfKeys(node))
+            return newKey[column];
+        return node.getLong(keysOffset + (((separator * NodeHeader.getKeyLength(node)) + column) * 8));
+    }
+}
@@ -8,47 +8,122 @@ import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 
+/**
+ * Decodes the page it is on into dBuffer, where reads and writes are made. Writes only mark the page dirty, it is
+ * encoded back to the page once, when the cursor moves to another page or is closed, so a mutation changing many
+ * fields of a leaf compresses it once rather than once per field. Internal nodes are written with their separators
+ * truncated when that is smaller, so they too can hold more than a page of whole keys.
+ */
 public class SuperCompressedPageCursor extends PageProxyCursor{
     PageCursor cursor;
-    int maxPageSize = DiskCache.PAGE_SIZE * 15;
+    DiskCache disk;
+    int lock;
+    public static final int MAX_DECODED_PAGE_SIZE = DiskCache.PAGE_SIZE * 15;
+    int maxPageSize = MAX_DECODED_PAGE_SIZE;
     ByteBuffer dBuffer = ByteBuffer.allocate(maxPageSize);
     int mostRecentCompressedLeafSize = DiskCache.PAGE_SIZE;//the default value
-    boolean deferWriting = false;
+    boolean dirty = false; //dBuffer holds changes which have not been encoded to the page yet
+    private final byte[] internalPage = new byte[DiskCache.PAGE_SIZE];
+    private final ByteBuffer internalPageBuffer = ByteBuffer.wrap(internalPage);
     int maxNumBytes;
-    final int sameID = 128;
-    final int sameFirstNode = 64;
+    /*
+    The header byte of a delta encoded key holds the number of bytes of each delta in its low four bits. The top two
+    bits count the leading columns equal to the key before, which are left out: 10 is one and 11 two, as they always
+    were, and 01 three. The two bits below them count the trailing zero columns, such as the padding of the shorter
+    keys of a MixedLengthIndex, which are left out as well. Leaves written before either was added read the same.
+     */
+    static final int DELTA_BYTES_MASK = 0x0F;
+    static final int TRAILING_ZEROS_SHIFT = 4;
+    static final int MAX_ELIDED_COLUMNS = 3;
+    static final int[] LEADING_SAME_HEADER = {0, 128, 128 | 64, 64};
+    static final int[] LEADING_SAME_COLUMNS = {0, 3, 1, 2}; //by the top two bits of the header
+    /*
+    Every RESTART_INTERVAL-th key of a leaf is encoded against zero rather than the key before it. The page offsets of
+    these keys are stored as shorts directly after the header, so a search can start decoding at any of them.
+    Leaves written without the table, such as those of SuperFillSortedDisk, have RESTART_POINTS_FLAG clear.
+     */
+    public static final int RESTART_INTERVAL = 16;
+    /*
+    Streaming decode state. When streaming, a leaf is not decoded into dBuffer when the cursor moves to it,
+    keys are decoded as reads reach them. Either way the leaf is copied out of the page cursor with one read when
+    it is loaded, and decoded from the copy.
+     */
+    final byte[] page = new byte[DiskCache.PAGE_SIZE];
+    final ByteBuffer pageBuffer = ByteBuffer.wrap(page);
+    long[] codecKeys = new long[0]; //the keys of a leaf as they are handed to and from a LeafCodec
+    boolean streamingDecode;
+    int leafKeyLength;
+    int leafNumberOfKeys;
+    int keysDecoded;
+    int decodedLimit;
+    int encodedPosition;
+    long[] decodePrev = new long[0];
+    long[] blockPrev = new long[0];
+    int restartPoints;
+    boolean[] blockDecoded = new boolean[0];
+    int encodedEnd;
+    /*
+    When streaming, leaves written with the ColumnarLeafCodec are decoded a column at a time, as reads reach each
+    column, so a scan reading only some columns of the keys decodes only those.
+     */
+    ColumnarLeafCodec columnarLeaf; //the codec of the leaf while some of its columns are not decoded, otherwise null
+    boolean[] columnDecoded = new boolean[0];
+    int columnsDecoded;
 
     public SuperCompressedPageCursor(DiskCache disk, long pageId, int lock) throws IOException {
-        this.cursor = disk.pagedFile.io(pageId, lock);
-        cursor.next();
-        loadCursorFromDisk();
+        this(disk, pageId, lock, disk.STREAMING_DECODE);
+    }
+
+    public SuperCompressedPageCursor(DiskCache disk, long pageId, int lock, boolean streamingDecode) throws IOException {
+        this.streamingDecode = streamingDecode;
+        this.disk = disk;
+        this.lock = lock;
+        this.cursor = disk.openPageCursor(pageId, lock);
+        loadValidatedFromDisk();
     }
 
     @Override
     public void next(long page) throws IOException {
-        cursor.next(page);
-        loadCursorFromDisk();
+        pushChangesToDisk();
+        cursor = disk.movePageCursor(cursor, page, lock);
+        loadValidatedFromDisk();
         dBuffer.position(0);
     }
 
+    /**
+     * Encodes the changes made to dBuffer to the page, if there are any.
+     */
     public void pushChangesToDisk(){
-        if(!deferWriting) {
+        if(dirty) {
             int mark = dBuffer.position();
             if (NodeHeader.isLeafNode(dBuffer))
                 compressAndWriteLeaf();
             else
                 writeInternal();
             dBuffer.position(mark);
+            dirty = false;
         }
-
     }
 
+    /**
+     * Writes an internal node with its separators truncated if that is smaller, otherwise whole, as other pages are.
+     */
     private void writeInternal(){
-        dBuffer.position(0);
-        cursor.setOffset(0);
-        for(int i = 0; i < DiskCache.PAGE_SIZE; i++){
-            cursor.putByte(dBuffer.get());
+        if(!NodeHeader.isInternalNode(dBuffer)){
+            System.arraycopy(dBuffer.array(), 0, internalPage, 0, DiskCache.PAGE_SIZE);
+        }
+        else {
+            int wholeLength = SeparatorTruncation.wholeLength(dBuffer, null);
+            int truncatedLength = SeparatorTruncation.truncatedLength(dBuffer, null);
+            if (truncatedLength < wholeLength && truncatedLength <= DiskCache.PAGE_SIZE)
+                SeparatorTruncation.truncate(dBuffer, internalPageBuffer);
+            else if (wholeLength <= DiskCache.PAGE_SIZE)
+                System.arraycopy(dBuffer.array(), 0, internalPage, 0, DiskCache.PAGE_SIZE);
+            else
+                throw new IllegalStateException("Internal node " + cursor.getCurrentPageId() + " does not fit in a page");
         }
+        cursor.setOffset(0);
+        cursor.putBytes(internalPage);
     }
 
 
@@ -58,7 +133,11 @@ public class SuperCompressedPageCursor extends PageProxyCursor{
         //will just check if the path id is zero, if so, this is the end of this block.
         int decompressedSize = getLastUsedLeafBufferPosition() - NodeHeader.NODE_HEADER_LENGTH;
         writeHeaderToCursor();
+        if(decompressedSize != 0 && disk.LEAF_CODEC != null && encodeWithCodec(disk.LEAF_CODEC)){
+            return;
+        }
         if(decompressedSize != 0) {
+            cursor.putByte(NodeHeader.BYTE_POSITION_NODE_TYPE, (byte) (cursor.getByte(NodeHeader.BYTE_POSITION_NODE_TYPE) | NodeHeader.RESTART_POINTS_FLAG));
             byte[] compresedMinusHeader = compress();
             cursor.setOffset(NodeHeader.NODE_HEADER_LENGTH);
             cursor.putBytes(compresedMinusHeader);
@@ -66,10 +145,43 @@ public class SuperCompressedPageCursor extends PageProxyCursor{
         }
     }
 
+    /**
+     * Writes the keys of the leaf with the codec, returning false without writing them if they would not fit in
+     * the page, which can happen when a leaf another codec filled is rewritten. It is then written delta encoded.
+     */
+    private boolean encodeWithCodec(LeafCodec codec){
+        int keyLength = NodeHeader.getKeyLength(dBuffer);
+        int numberOfKeys = NodeHeader.getNumberOfKeys(dBuffer) + (NodeHeader.hasHighKey(dBuffer) ? 1 : 0);
+        long[] keys = codecKeys(numberOfKeys * keyLength);
+        for(int i = 0; i < numberOfKeys * keyLength; i++){
+            keys[i] = dBuffer.getLong(NodeHeader.NODE_HEADER_LENGTH + (i * Long.BYTES));
+        }
+        int length = codec.encodedLength(keys, numberOfKeys, keyLength);
+        if(NodeHeader.NODE_HEADER_LENGTH + 1 + length > DiskCache.PAGE_SIZE){
+            return false;
+        }
+        byte[] encoded = new byte[1 + length];
+        encoded[0] = codec.id();
+        codec.encode(keys, numberOfKeys, keyLength, ByteBuffer.wrap(encoded, 1, length));
+        cursor.putByte(NodeHeader.BYTE_POSITION_NODE_TYPE, (byte) (cursor.getByte(NodeHeader.BYTE_POSITION_NODE_TYPE) | NodeHeader.CODEC_FLAG));
+        cursor.setOffset(NodeHeader.NODE_HEADER_LENGTH);
+        cursor.putBytes(encoded);
+        mostRecentCompressedLeafSize = NodeHeader.NODE_HEADER_LENGTH + encoded.length;
+        return true;
+    }
+
+    private long[] codecKeys(int values){
+        if(codecKeys.length < values){
+            codecKeys = new long[values];
+        }
+        return codecKeys;
+    }
+
     public byte[] compress(){
         int keyLength = NodeHeader.getKeyLength(cursor);
-        int numberOfKeys = NodeHeader.getNumberOfKeys(cursor);
+        int numberOfKeys = NodeHeader.getNumberOfKeys(cursor) + (NodeHeader.hasHighKey(cursor) ? 1 : 0);
         ByteBuffer buffer = ByteBuffer.allocate(DiskCache.PAGE_SIZE - NodeHeader.NODE_HEADER_LENGTH);
+        buffer.position(restartPointCount(numberOfKeys) * Short.BYTES);
         long[] next = new long[keyLength];
         long[] prev = new long[keyLength];
         dBuffer.position(NodeHeader.NODE_HEADER_LENGTH);
@@ -77,8 +189,12 @@ public class SuperCompressedPageCursor extends PageProxyCursor{
             for (int j = 0; j < keyLength; j++) {
                 next[j] = dBuffer.getLong();
             }
+            if(i % RESTART_INTERVAL == 0){
+                Arrays.fill(prev, 0l);
+                buffer.putShort((i / RESTART_INTERVAL) * Short.BYTES, (short) (NodeHeader.NODE_HEADER_LENGTH + buffer.position()));
+            }
             buffer.put(encodeKey(next, prev));
-            prev = next;
+            System.arraycopy(next, 0, prev, 0, keyLength);
         }
         byte[] truncatedCompressed = new byte[buffer.position()];
         System.arraycopy(buffer.array(), 0, truncatedCompressed, 0, truncatedCompressed.length);
@@ -86,57 +202,84 @@ public class SuperCompressedPageCursor extends PageProxyCursor{
     }
 
     public byte[] encodeKey(long[] key, long[] prev){
+        int leading = leadingSameColumns(key, prev);
+        int trailing = trailingZeroColumns(key, leading);
+        this.maxNumBytes = deltaBytes(key, prev, leading, trailing);
+        int encodedColumns = key.length - leading - trailing;
+        byte[] encoded = new byte[1 + (maxNumBytes * encodedColumns)];
+        encoded[0] = (byte) (LEADING_SAME_HEADER[leading] | (trailing << TRAILING_ZEROS_SHIFT) | maxNumBytes);
+        for(int i = 0; i < encodedColumns; i++){
+            toBytes(key[i + leading] - prev[i + leading], encoded, 1 + (i * maxNumBytes), maxNumBytes);
+        }
+        return encoded;
+    }
 
-        this.maxNumBytes = 0;
-        int firstEncodedIndex = 0;
-        byte header = (byte)0;
-        if(key[0] == prev[0]) {
-            //set first bit
-            firstEncodedIndex++;
-            header |= sameID;
-
-            if (key[1] == prev[1]) {
-                //set second bit
-                firstEncodedIndex++;
-                header |= sameFirstNode;
-            }
+    /**
+     * The number of bytes encodeKey would use for the key.
+     */
+    public static int encodedLength(long[] key, long[] prev){
+        int leading = leadingSameColumns(key, prev);
+        int trailing = trailingZeroColumns(key, leading);
+        return 1 + (deltaBytes(key, prev, leading, trailing) * (key.length - leading - trailing));
+    }
+
+    private static int leadingSameColumns(long[] key, long[] prev){
+        int same = 0;
+        while(same < MAX_ELIDED_COLUMNS && same < key.length && key[same] == prev[same]){
+            same++;
         }
+        return same;
+    }
 
-        for(int i = firstEncodedIndex; i < key.length; i++){
-            maxNumBytes = Math.max(maxNumBytes, numberOfBytes(key[i] - prev[i]));
+    private static int trailingZeroColumns(long[] key, int leading){
+        int zeros = 0;
+        while(zeros < MAX_ELIDED_COLUMNS && key.length - zeros > leading && key[key.length - zeros - 1] == 0){
+            zeros++;
         }
+        return zeros;
+    }
 
-        byte[] encoded = new byte[1 + (maxNumBytes * (key.length - firstEncodedIndex))];
-        header |=  maxNumBytes;
-        encoded[0] = header;
-        for(int i = 0; i < key.length - firstEncodedIndex; i++){
-            toBytes(key[i + firstEncodedIndex] - prev[i + firstEncodedIndex], encoded, 1 + (i * maxNumBytes), maxNumBytes);
+    private static int deltaBytes(long[] key, long[] prev, int leading, int trailing){
+        int maxBytes = 0;
+        for(int i = leading; i < key.length - trailing; i++){
+            maxBytes = Math.max(maxBytes, numberOfBytes(key[i] - prev[i]));
         }
-        return encoded;
+        return maxBytes;
     }
 
+    public static int restartPointCount(int numberOfKeys){
+        return (numberOfKeys + RESTART_INTERVAL - 1) / RESTART_INTERVAL;
+    }
+
+    /**
+     * The bytes needed to hold the value as the signed number toLong reads back. Only -2^(8n-1) of each width n is
+     * given a byte more than it needs.
+     */
     public static int numberOfBytes(long value){
-        long abs = Math.abs(value);
+        long abs = Math.abs(value); //stays negative for Long.MIN_VALUE, the delta of a padding column of a high key from zero
         int minBytes = 8;
-        if(abs <= 127){
+        if(abs < 0){
+            minBytes = 8;
+        }
+        else if(abs < 128){
             minBytes = 1;
         }
-        else if(abs <= 32768){
+        else if(abs < 32768){
             minBytes = 2;
         }
-        else if(abs <= 8388608){
+        else if(abs < 8388608){
             minBytes = 3;
         }
-        else if(abs <= 2147483648l){
+        else if(abs < 2147483648l){
             minBytes = 4;
         }
-        else if(abs <= 549755813888l){
+        else if(abs < 549755813888l){
             minBytes = 5;
         }
-        else if(abs <= 140737488355328l){
+        else if(abs < 140737488355328l){
             minBytes = 6;
         }
-        else if(abs <= 36028797018963968l){
+        else if(abs < 36028797018963968l){
             minBytes = 7;
         }
         return minBytes;
@@ -182,8 +325,25 @@ public class SuperCompressedPageCursor extends PageProxyCursor{
             cursor.putByte(dBuffer.get(i));
     }
 
+    private void loadValidatedFromDisk() throws IOException {
+        boolean retry;
+        do {
+            try {
+                loadCursorFromDisk();
+                retry = cursor.shouldRetry();
+            }
+            catch(RuntimeException e){ //a concurrent write left the page in a state which could not be decoded
+                retry = cursor.shouldRetry();
+                if(!retry)
+                    throw e;
+            }
+        } while(retry);
+    }
+
     private void loadCursorFromDisk(){
+        columnarLeaf = null;
         if (NodeHeader.isUninitializedNode(cursor)) {
+            leafNumberOfKeys = 0;
             return;
         } else if (NodeHeader.isLeafNode(cursor))
             decompressLeaf();
@@ -192,63 +352,253 @@ public class SuperCompressedPageCursor extends PageProxyCursor{
     }
 
     private void decompressLeaf(){
-        int keyLength = NodeHeader.getKeyLength(cursor);
-        int numberOfKeys = NodeHeader.getNumberOfKeys(cursor);
+        leafKeyLength = NodeHeader.getKeyLength(cursor);
+        leafNumberOfKeys = NodeHeader.getNumberOfKeys(cursor) + (NodeHeader.hasHighKey(cursor) ? 1 : 0); //the high key is encoded after the last key
+        if(leafNumberOfKeys < 0 || leafNumberOfKeys > DiskCache.PAGE_SIZE)
+            throw new IllegalStateException("Leaf " + cursor.getCurrentPageId() + " has an invalid number of keys");
+        restartPoints = NodeHeader.hasRestartPoints(cursor) ? restartPointCount(leafNumberOfKeys) : 0;
         dBuffer.limit(maxPageSize);
         dBuffer.position(0);
         cursor.setOffset(0);
-        for(int i = 0; i < NodeHeader.NODE_HEADER_LENGTH; i++){
-            dBuffer.put(cursor.getByte());
+        cursor.getBytes(page);
+        dBuffer.put(page, 0, NodeHeader.NODE_HEADER_LENGTH);
+        dBuffer.put(NodeHeader.BYTE_POSITION_NODE_TYPE, (byte) (dBuffer.get(NodeHeader.BYTE_POSITION_NODE_TYPE) & ~(NodeHeader.RESTART_POINTS_FLAG | NodeHeader.CODEC_FLAG)));
+        if(decodePrev.length != leafKeyLength){
+            decodePrev = new long[leafKeyLength];
+            blockPrev = new long[leafKeyLength];
         }
+        else{
+            Arrays.fill(decodePrev, 0l);
+        }
+        if(blockDecoded.length < restartPoints){
+            blockDecoded = new boolean[restartPoints];
+        }
+        else{
+            Arrays.fill(blockDecoded, 0, restartPoints, false);
+        }
+        keysDecoded = 0;
+        decodedLimit = NodeHeader.NODE_HEADER_LENGTH;
+        encodedPosition = NodeHeader.NODE_HEADER_LENGTH + (restartPoints * Short.BYTES);
+        if(NodeHeader.hasCodec(cursor)){
+            LeafCodec codec = LeafCodec.forId(page[NodeHeader.NODE_HEADER_LENGTH]);
+            if(streamingDecode && codec instanceof ColumnarLeafCodec && leafNumberOfKeys != 0)
+                startColumnarDecode((ColumnarLeafCodec) codec);
+            else
+                decodeWithCodec(codec);
+            return;
+        }
+        if(!streamingDecode || leafNumberOfKeys == 0){
+            decodeSequentially(leafNumberOfKeys);
+            mostRecentCompressedLeafSize = encodedEnd;
+        }
+    }
 
-        int position = NodeHeader.NODE_HEADER_LENGTH;
+    /**
+     * Decodes the keys holding the bytes from the given offset up to the limit of the decoded leaf, if they are not
+     * yet available. Only has an effect on leaves which are being decoded on demand. Leaves with restart points are
+     * decoded a block of RESTART_INTERVAL keys at a time, other leaves from the first key onwards.
+     */
+    private void ensureDecoded(int from, int limit){
+        if(limit > decodedLimit && keysDecoded < leafNumberOfKeys){
+            if(columnarLeaf != null){
+                decodeColumns(from, limit);
+                return;
+            }
+            int keyByteLength = leafKeyLength * Long.BYTES;
+            if(restartPoints == 0) {
+                int requiredKeys = (limit - NodeHeader.NODE_HEADER_LENGTH + keyByteLength - 1) / keyByteLength;
+                decodeSequentially(Math.min(requiredKeys, leafNumberOfKeys));
+                return;
+            }
+            int firstKey = Math.max(from - NodeHeader.NODE_HEADER_LENGTH, 0) / keyByteLength;
+            int lastKey = Math.min((limit - NodeHeader.NODE_HEADER_LENGTH - 1) / keyByteLength, leafNumberOfKeys - 1);
+            for(int block = firstKey / RESTART_INTERVAL; block <= lastKey / RESTART_INTERVAL && keysDecoded < leafNumberOfKeys; block++){
+                if(!blockDecoded[block])
+                    decodeBlock(block);
+            }
+        }
+    }
+
+    private void decodeRemainingKeys(){
+        if(columnarLeaf != null){
+            for(int column = 0; column < leafKeyLength; column++){
+                decodeColumn(column);
+            }
+        }
+        else if(keysDecoded < leafNumberOfKeys) {
+            decodeSequentially(leafNumberOfKeys);
+            mostRecentCompressedLeafSize = encodedEnd;
+        }
+    }
+
+    /**
+     * Leaves written with a LeafCodec are decoded whole, as they are loaded.
+     */
+    private void decodeWithCodec(LeafCodec codec){
+        int values = leafNumberOfKeys * leafKeyLength;
+        long[] keys = codecKeys(values);
+        pageBuffer.position(NodeHeader.NODE_HEADER_LENGTH + 1);
+        codec.decode(pageBuffer, leafNumberOfKeys, leafKeyLength, keys);
+        for(int i = 0; i < values; i++){
+            dBuffer.putLong(NodeHeader.NODE_HEADER_LENGTH + (i * Long.BYTES), keys[i]);
+        }
+        keysDecoded = leafNumberOfKeys;
+        decodedLimit = NodeHeader.NODE_HEADER_LENGTH + (values * Long.BYTES);
+        encodedEnd = pageBuffer.position();
+        mostRecentCompressedLeafSize = encodedEnd;
+    }
+
+    private void startColumnarDecode(ColumnarLeafCodec codec){
+        columnarLeaf = codec;
+        if(columnDecoded.length < leafKeyLength){
+            columnDecoded = new boolean[leafKeyLength];
+        }
+        else{
+            Arrays.fill(columnDecoded, 0, leafKeyLength, false);
+        }
+        columnsDecoded = 0;
+        pageBuffer.position(NodeHeader.NODE_HEADER_LENGTH + 1);
+        encodedEnd = pageBuffer.position() + ColumnarLeafCodec.length(pageBuffer, leafKeyLength);
+        mostRecentCompressedLeafSize = encodedEnd;
+    }
+
+    /**
+     * Decodes the columns of a columnar leaf holding the bytes from the given offset up to the limit. A range as long
+     * as a key holds every column.
+     */
+    private void decodeColumns(int from, int limit){
+        int keyByteLength = leafKeyLength * Long.BYTES;
+        from = Math.max(from, NodeHeader.NODE_HEADER_LENGTH);
+        limit = Math.min(limit, NodeHeader.NODE_HEADER_LENGTH + (leafNumberOfKeys * keyByteLength));
+        if(limit - from >= keyByteLength){
+            decodeRemainingKeys();
+            return;
+        }
+        for(int offset = from - ((from - NodeHeader.NODE_HEADER_LENGTH) % Long.BYTES); offset < limit; offset += Long.BYTES){
+            decodeColumn(((offset - NodeHeader.NODE_HEADER_LENGTH) / Long.BYTES) % leafKeyLength);
+        }
+    }
+
+    /**
+     * Decodes one column of a columnar leaf into its places in dBuffer, if it is not decoded yet. Once every column
+     * is, the leaf is decoded as if it had been decoded whole.
+     */
+    private void decodeColumn(int column){
+        if(columnarLeaf == null || columnDecoded[column])
+            return;
+        int values = leafNumberOfKeys * leafKeyLength;
+        long[] keys = codecKeys(values);
+        pageBuffer.position(NodeHeader.NODE_HEADER_LENGTH + 1);
+        columnarLeaf.decodeColumn(pageBuffer, leafNumberOfKeys, leafKeyLength, column, keys);
+        for(int i = column; i < values; i += leafKeyLength){
+            dBuffer.putLong(NodeHeader.NODE_HEADER_LENGTH + (i * Long.BYTES), keys[i]);
+        }
+        columnDecoded[column] = true;
+        if(++columnsDecoded == leafKeyLength){
+            columnarLeaf = null;
+            keysDecoded = leafNumberOfKeys;
+            decodedLimit = NodeHeader.NODE_HEADER_LENGTH + (values * Long.BYTES);
+        }
+    }
+
+    /**
+     * Decodes keys in order, continuing after the keys decoded so far.
+     */
+    private void decodeSequentially(int upToKey){
+        encodedPosition = decodeKeys(keysDecoded, upToKey, encodedPosition, decodePrev);
+        keysDecoded = upToKey;
+        decodedLimit = NodeHeader.NODE_HEADER_LENGTH + (upToKey * leafKeyLength * Long.BYTES);
+    }
+
+    /**
+     * Decodes the keys of one block, starting at its restart point.
+     */
+    private void decodeBlock(int block){
+        int firstKey = block * RESTART_INTERVAL;
+        decodeKeys(firstKey, Math.min(firstKey + RESTART_INTERVAL, leafNumberOfKeys), restartOffset(block), blockPrev);
+        blockDecoded[block] = true;
+        while(keysDecoded < leafNumberOfKeys && blockDecoded[keysDecoded / RESTART_INTERVAL]){
+            keysDecoded = Math.min(keysDecoded + RESTART_INTERVAL, leafNumberOfKeys);
+        }
+        decodedLimit = NodeHeader.NODE_HEADER_LENGTH + (keysDecoded * leafKeyLength * Long.BYTES);
+        encodedPosition = keysDecoded == leafNumberOfKeys ? encodedEnd : restartOffset(keysDecoded / RESTART_INTERVAL);
+    }
+
+    private int restartOffset(int block){
+        return pageBuffer.getShort(NodeHeader.NODE_HEADER_LENGTH + (block * Short.BYTES)) & 0xFFFF;
+    }
+
+    /**
+     * Decodes the keys from the encoded position into their place in dBuffer.
+     * @return the position in the page after the last key decoded.
+     */
+    private int decodeKeys(int fromKey, int upToKey, int position, long[] prev){
+        int writePosition = NodeHeader.NODE_HEADER_LENGTH + (fromKey * leafKeyLength * Long.BYTES);
         int reqBytes;
         long val;
         byte header;
-        int firstEncodedIndex;
-        boolean samePath;
-        boolean sameFirstID;
-        long[] prev = new long[keyLength];
-        for(int i = 0; i < numberOfKeys; i++){
-            header = cursor.getByte(position++);
-
-            //
-            firstEncodedIndex = 0;
-            samePath = (sameID & header) == sameID;
-            sameFirstID = (sameFirstNode & header) == sameFirstNode;
-            if(samePath) {
-                firstEncodedIndex++;
-                val = prev[0];
-                dBuffer.putLong(val);
+        int leading;
+        int trailingFrom;
+        for(int i = fromKey; i < upToKey; i++){
+            if(restartPoints != 0 && i % RESTART_INTERVAL == 0){
+                Arrays.fill(prev, 0l);
             }
-            if(sameFirstID) {
-                firstEncodedIndex++;
-                val = prev[1];
-                dBuffer.putLong(val);
+            header = page[position++];
+            leading = LEADING_SAME_COLUMNS[(header >> 6) & 3];
+            trailingFrom = leafKeyLength - ((header >> TRAILING_ZEROS_SHIFT) & 3);
+            reqBytes = header & DELTA_BYTES_MASK;
+
+            for(int j = 0; j < leading; j++){
+                dBuffer.putLong(writePosition, prev[j]);
+                writePosition += Long.BYTES;
             }
-            header &= ~(1 << 7);
-            header &= ~(1 << 6);
-            reqBytes = header;
-            //
-
-            for(int j = firstEncodedIndex; j < (keyLength); j++){
-                val = prev[j] + toLong(cursor, position, reqBytes);
-                dBuffer.putLong(val);
+            for(int j = leading; j < trailingFrom; j++){
+                val = prev[j] + readDelta(position, reqBytes);
+                dBuffer.putLong(writePosition, val);
+                writePosition += Long.BYTES;
                 prev[j] = val;
                 position += reqBytes;
             }
+            for(int j = trailingFrom; j < leafKeyLength; j++){
+                dBuffer.putLong(writePosition, 0l);
+                writePosition += Long.BYTES;
+                prev[j] = 0l;
+            }
+        }
+        if(upToKey == leafNumberOfKeys)
+            encodedEnd = position;
+        return position;
+    }
+
+    /**
+     * Reads a big endian, sign extended value of the given number of bytes from the copy of the page. Away from the
+     * end of the page this is one eight byte read, shifted down so the bytes after the value fall off and the sign
+     * is extended, without a branch or loop per byte width.
+     */
+    private long readDelta(int position, int numberOfBytes){
+        if(position + Long.BYTES <= DiskCache.PAGE_SIZE){
+            return pageBuffer.getLong(position) >> ((Long.BYTES - numberOfBytes) << 3);
         }
-        mostRecentCompressedLeafSize = position;
+        long l = page[position];
+        for(int i = position + 1; i < position + numberOfBytes; i++){
+            l = (l << 8) | (page[i] & 0xFF);
+        }
+        return l;
     }
 
     private void decompressInternalNode(){
+        leafNumberOfKeys = 0;
         Arrays.fill(dBuffer.array(), (byte)0);
-        dBuffer.position(0);
         cursor.setOffset(0);
-        dBuffer.limit(DiskCache.PAGE_SIZE);
-        for(int i = 0; i < DiskCache.PAGE_SIZE; i++){
-            dBuffer.put(cursor.getByte());
+        cursor.getBytes(page);
+        if(NodeHeader.hasTruncatedKeys(pageBuffer)){
+            SeparatorTruncation.restore(pageBuffer, dBuffer);
+        }
+        else{
+            dBuffer.clear();
+            dBuffer.put(page);
         }
+        dBuffer.limit(maxPageSize);
     }
 
     @Override
@@ -256,12 +606,14 @@ public class SuperCompressedPageCursor extends PageProxyCursor{
         return cursor.getCurrentPageId();
     }
 
+    @Override
+    public DiskCache getDisk(){
+        return disk;
+    }
+
     @Override
     public int capacity() {
-        if(NodeHeader.isLeafNode(this))
-            return maxPageSize;
-        else
-            return DiskCache.PAGE_SIZE;
+        return maxPageSize;
     }
 
     @Override
@@ -281,98 +633,190 @@ public class SuperCompressedPageCursor extends PageProxyCursor{
 
     @Override
     public void getBytes(byte[] dest) {
+        ensureDecoded(dBuffer.position(), dBuffer.position() + dest.length);
         dBuffer.get(dest);
     }
 
     @Override
     public byte getByte(int offset) {
+        ensureDecoded(offset, offset + 1);
         return dBuffer.get(offset);
     }
 
     @Override
     public void putBytes(byte[] src) {
+        decodeRemainingKeys();
         dBuffer.put(src);
-        pushChangesToDisk();
+        dirty = true;
     }
 
     @Override
     public void putByte(byte val){
+        decodeRemainingKeys();
         dBuffer.put(val);
-        pushChangesToDisk();
+        dirty = true;
     }
 
     @Override
     public void putByte(int offset, byte val){
+        decodeRemainingKeys();
         dBuffer.put(offset, val);
-        pushChangesToDisk();
+        dirty = true;
     }
 
     @Override
     public long getLong() {
+        ensureDecoded(dBuffer.position(), dBuffer.position() + Long.BYTES);
         return dBuffer.getLong();
     }
 
     @Override
     public long getLong(int offset) {
+        ensureDecoded(offset, offset + Long.BYTES);
         return dBuffer.getLong(offset);
     }
 
     @Override
     public void putLong(long val){
+        decodeRemainingKeys();
         dBuffer.putLong(val);
-        pushChangesToDisk();
+        dirty = true;
     }
     @Override
     public void putLong(int offset, long val){
+        decodeRemainingKeys();
         dBuffer.putLong(offset, val);
-        pushChangesToDisk();
+        dirty = true;
     }
 
     @Override
     public int getInt() {
+        ensureDecoded(dBuffer.position(), dBuffer.position() + Integer.BYTES);
         return dBuffer.getInt();
     }
 
     @Override
     public int getInt(int offset) {
+        ensureDecoded(offset, offset + Integer.BYTES);
         return dBuffer.getInt(offset);
     }
 
     @Override
     public void putInt(int val){
+        decodeRemainingKeys();
         dBuffer.putInt(val);
-        pushChangesToDisk();
+        dirty = true;
     }
     @Override
     public void putInt(int offset, int val){
+        decodeRemainingKeys();
         dBuffer.putInt(offset, val);
-        pushChangesToDisk();
+        dirty = true;
     }
     @Override
     public boolean leafNodeContainsSpaceForNewKey(long[] newKey){
         //return NodeSize.leafNodeContainsSpaceForNewKey(this, newKey);
-        int magic = 10;
-        return mostRecentCompressedLeafSize + (newKey.length * Long.BYTES) + magic < DiskCache.PAGE_SIZE;
+        decodeRemainingKeys();
+        if(disk.LEAF_CODEC != null)
+            return codecLeafSizeWith(disk.LEAF_CODEC, newKey) <= DiskCache.PAGE_SIZE;
+        return compressedLeafSizeWith(newKey) <= DiskCache.PAGE_SIZE;
+    }
+
+    /**
+     * The size the leaf would be written at by the codec once the key is inserted.
+     */
+    private int codecLeafSizeWith(LeafCodec codec, long[] newKey){
+        int keyLength = NodeHeader.getKeyLength(dBuffer);
+        int numberOfKeys = NodeHeader.getNumberOfKeys(dBuffer) + (NodeHeader.hasHighKey(dBuffer) ? 1 : 0) + 1;
+        long[] keys = codecKeys(numberOfKeys * keyLength);
+        long[] next = new long[keyLength];
+        boolean inserted = false;
+        int position = NodeHeader.NODE_HEADER_LENGTH;
+        for(int i = 0; i < numberOfKeys; i++){
+            for(int j = 0; j < keyLength; j++){
+                next[j] = dBuffer.getLong(position + (j * Long.BYTES));
+            }
+            long[] key = next;
+            if(!inserted && (i == numberOfKeys - 1 || IndexTree.comparator.prefixCompare(newKey, next) <= 0)){
+                key = newKey;
+                inserted = true;
+            }
+            else{
+                position += keyLength * Long.BYTES;
+            }
+            System.arraycopy(key, 0, keys, i * keyLength, keyLength);
+        }
+        return NodeHeader.NODE_HEADER_LENGTH + 1 + codec.encodedLength(keys, numberOfKeys, keyLength);
+    }
+
+    /**
+     * The size the leaf would be compressed to once the key is inserted. Inserting a key moves the keys after it
+     * across restart points, so this is computed rather than estimated from the current size.
+     */
+    private int compressedLeafSizeWith(long[] newKey){
+        int keyLength = NodeHeader.getKeyLength(dBuffer);
+        int numberOfKeys = NodeHeader.getNumberOfKeys(dBuffer) + (NodeHeader.hasHighKey(dBuffer) ? 1 : 0) + 1;
+        int size = NodeHeader.NODE_HEADER_LENGTH + (restartPointCount(numberOfKeys) * Short.BYTES);
+        long[] prev = new long[keyLength];
+        long[] next = new long[keyLength];
+        boolean inserted = false;
+        int position = NodeHeader.NODE_HEADER_LENGTH;
+        for(int i = 0; i < numberOfKeys; i++){
+            for(int j = 0; j < keyLength; j++){
+                next[j] = dBuffer.getLong(position + (j * Long.BYTES));
+            }
+            long[] key = next;
+            if(!inserted && (i == numberOfKeys - 1 || IndexTree.comparator.prefixCompare(newKey, next) <= 0)){
+                key = newKey;
+                inserted = true;
+            }
+            else{
+                position += keyLength * Long.BYTES;
+            }
+            if(i % RESTART_INTERVAL == 0){
+                Arrays.fill(prev, 0l);
+            }
+            size += encodedLength(key, prev);
+            System.arraycopy(key, 0, prev, 0, keyLength);
+        }
+        return size;
     }
 
+    /**
+     * Writes are always deferred until the cursor moves or closes.
+     */
     @Override
     public void deferWriting() {
-        deferWriting = true;
     }
 
     @Override
     public void resumeWriting() {
-        deferWriting = false;
-        pushChangesToDisk();//maybe not necessary, and this is maybe redundant.
     }
 
+    /**
+     * Whether the node still fits in a page, whole or with its separators truncated, once the key is added.
+     */
     @Override
     public boolean internalNodeContainsSpaceForNewKeyAndChild(long[] newKey){
-        return NodeSize.internalNodeContainsSpaceForNewKeyAndChild(this, newKey);
+        return Math.min(SeparatorTruncation.wholeLength(dBuffer, newKey), SeparatorTruncation.truncatedLength(dBuffer, newKey)) <= DiskCache.PAGE_SIZE;
+    }
+
+    @Override
+    public boolean shouldRetry() throws IOException {
+        if(cursor.shouldRetry()){
+            loadCursorFromDisk();
+            dBuffer.position(0);
+            return true;
+        }
+        return false;
     }
 
     @Override
     public void close() throws IOException {
-        this.cursor.close();
+        try {
+            pushChangesToDisk();
+        } finally {
+            disk.closePageCursor(cursor, lock);
+        }
     }
 }
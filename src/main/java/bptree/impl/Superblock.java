@@ -0,0 +1,169 @@
+package bptree.impl;
+
+import org.neo4j.io.pagecache.PagedFile;
+
+import java.io.IOException;
+
+/**
+ * The page describing the index stored in a file, so that the file can be opened without a side file giving its root.
+ * It is written on shutdown as the last page of the file, after the pages listing the free pages, and read back when
+ * the file is opened. Both are written uncompressed, whatever the codec of the leaves.
+ *
+ * As it is only written on shutdown, a crash leaves the file with no superblock, or with the stale one of an earlier
+ * shutdown, and the file cannot be opened. Only an index logging its mutations, see IndexTree.openWriteAheadLog, is
+ * recovered after a crash.
+ *
+ * Superblock: [type][format version][key length][root id][first leaf][last leaf][free list head][page count][codec][magic]
+ * Free list page: [type][number of ids][next free list page][ids...]
+ */
+public class Superblock {
+    public static final int FORMAT_VERSION = 1;
+    public static final long MAGIC = 0x50617468496e6478l; //"PathIndx"
+    public static final byte PAGE_TYPE = 3;
+    public static final byte FREE_LIST_PAGE_TYPE = 4;
+    public static final byte CODEC_NONE = 0;
+    public static final byte CODEC_SUPER_COMPRESSED = 1;
+    public static final byte CODEC_FRAME_OF_REFERENCE = 2;
+    public static final byte CODEC_PATH_RUN_LENGTH = 3;
+    public static final byte CODEC_COLUMNAR = 4;
+    static final int BYTE_POSITION_TYPE = 0;
+    static final int BYTE_POSITION_FORMAT_VERSION = 1;
+    static final int BYTE_POSITION_KEY_LENGTH = 5;
+    static final int BYTE_POSITION_ROOT_ID = 9;
+    static final int BYTE_POSITION_FIRST_LEAF = 17;
+    static final int BYTE_POSITION_LAST_LEAF = 25;
+    static final int BYTE_POSITION_FREE_LIST_HEAD = 33;
+    static final int BYTE_POSITION_PAGE_COUNT = 41;
+    static final int BYTE_POSITION_CODEC = 49;
+    static final int BYTE_POSITION_MAGIC = 50;
+    static final int FREE_LIST_BYTE_POSITION_COUNT = 1;
+    static final int FREE_LIST_BYTE_POSITION_NEXT = 5;
+    static final int FREE_LIST_HEADER_LENGTH = 13;
+    static final int IDS_PER_FREE_LIST_PAGE = (DiskCache.PAGE_SIZE - FREE_LIST_HEADER_LENGTH) / Long.BYTES;
+
+    public int formatVersion = FORMAT_VERSION;
+    public int keyLength;
+    public long rootId;
+    public long firstLeaf;
+    public long lastLeaf;
+    public long freeListHead = -1;
+    public long pageCount; //pages at and after this one were unused when the superblock was written
+    public byte codec;
+
+    /**
+     * Describes the index as it is now, finding its leaf range by descending the leftmost and rightmost paths from the
+     * root.
+     */
+    static Superblock describe(IndexTree index) throws IOException {
+        Superblock superblock = new Superblock();
+        superblock.keyLength = index.keySize;
+        superblock.rootId = index.rootNodeId;
+        superblock.codec = index.disk.leafCodecId();
+        try(BasicPageCursor cursor = new BasicPageCursor(index.disk, index.rootNodeId, PagedFile.PF_SHARED_LOCK)){
+            long node = index.rootNodeId;
+            while(!NodeHeader.isLeafNode(cursor)){
+                node = index.getChildIdAtIndex(cursor, 0);
+                cursor.next(node);
+            }
+            superblock.firstLeaf = node;
+            node = index.rootNodeId;
+            cursor.next(node);
+            while(!NodeHeader.isLeafNode(cursor)){
+                node = index.getChildIdAtIndex(cursor, NodeHeader.getNumberOfKeys(cursor));
+                cursor.next(node);
+            }
+            superblock.lastLeaf = node;
+        }
+        return superblock;
+    }
+
+    /**
+     * Writes the free pages of the disk, then this superblock as the last page of the file.
+     */
+    void write(DiskCache disk) throws IOException {
+        FreePageManager freePages = disk.freePages;
+        pageCount = freePages.nextNewPage();
+        long[] free = freePages.freePageIds();
+        int listPages = (free.length + IDS_PER_FREE_LIST_PAGE - 1) / IDS_PER_FREE_LIST_PAGE;
+        freeListHead = listPages == 0 ? -1 : freePages.acquireExtent(listPages);
+        long superblockPage = Math.max(freePages.acquireExtent(1), disk.pagedFile.getLastPageId());
+        try(BasicPageCursor cursor = new BasicPageCursor(disk, superblockPage, PagedFile.PF_EXCLUSIVE_LOCK)){
+            for(int page = 0; page < listPages; page++){
+                int first = page * IDS_PER_FREE_LIST_PAGE;
+                int count = Math.min(IDS_PER_FREE_LIST_PAGE, free.length - first);
+                cursor.next(freeListHead + page);
+                cursor.putByte(BYTE_POSITION_TYPE, FREE_LIST_PAGE_TYPE);
+                cursor.putInt(FREE_LIST_BYTE_POSITION_COUNT, count);
+                cursor.putLong(FREE_LIST_BYTE_POSITION_NEXT, page == listPages - 1 ? -1 : freeListHead + page + 1);
+                cursor.setOffset(FREE_LIST_HEADER_LENGTH);
+                for(int i = first; i < first + count; i++){
+                    cursor.putLong(free[i]);
+                }
+            }
+            cursor.next(superblockPage);
+            cursor.putByte(BYTE_POSITION_TYPE, PAGE_TYPE);
+            cursor.putInt(BYTE_POSITION_FORMAT_VERSION, formatVersion);
+            cursor.putInt(BYTE_POSITION_KEY_LENGTH, keyLength);
+            cursor.putLong(BYTE_POSITION_ROOT_ID, rootId);
+            cursor.putLong(BYTE_POSITION_FIRST_LEAF, firstLeaf);
+            cursor.putLong(BYTE_POSITION_LAST_LEAF, lastLeaf);
+            cursor.putLong(BYTE_POSITION_FREE_LIST_HEAD, freeListHead);
+            cursor.putLong(BYTE_POSITION_PAGE_COUNT, pageCount);
+            cursor.putByte(BYTE_POSITION_CODEC, codec);
+            cursor.putLong(BYTE_POSITION_MAGIC, MAGIC);
+        }
+    }
+
+    /**
+     * Reads the superblock from the last page of the file, or returns null if the file does not end with one.
+     */
+    static Superblock read(DiskCache disk) throws IOException {
+        long lastPage = disk.pagedFile.getLastPageId();
+        if(lastPage < 0){
+            return null;
+        }
+        try(BasicPageCursor cursor = new BasicPageCursor(disk, lastPage, PagedFile.PF_SHARED_LOCK)){
+            if(cursor.getByte(BYTE_POSITION_TYPE) != PAGE_TYPE || cursor.getLong(BYTE_POSITION_MAGIC) != MAGIC){
+                return null;
+            }
+            Superblock superblock = new Superblock();
+            superblock.formatVersion = cursor.getInt(BYTE_POSITION_FORMAT_VERSION);
+            if(superblock.formatVersion > FORMAT_VERSION){
+                throw new IllegalStateException("Superblock of " + disk.pageCacheFile + " has format version " +
+                        superblock.formatVersion + ", newer than " + FORMAT_VERSION);
+            }
+            superblock.keyLength = cursor.getInt(BYTE_POSITION_KEY_LENGTH);
+            superblock.rootId = cursor.getLong(BYTE_POSITION_ROOT_ID);
+            superblock.firstLeaf = cursor.getLong(BYTE_POSITION_FIRST_LEAF);
+            superblock.lastLeaf = cursor.getLong(BYTE_POSITION_LAST_LEAF);
+            superblock.freeListHead = cursor.getLong(BYTE_POSITION_FREE_LIST_HEAD);
+            superblock.pageCount = cursor.getLong(BYTE_POSITION_PAGE_COUNT);
+            superblock.codec = cursor.getByte(BYTE_POSITION_CODEC);
+            return superblock;
+        }
+    }
+
+    /**
+     * A free page manager holding the pages which were free when the superblock was written. The free list pages and
+     * the superblock itself are after pageCount, so they are reused as new pages.
+     */
+    FreePageManager readFreePages(DiskCache disk) throws IOException {
+        FreePageManager freePages = new FreePageManager(pageCount);
+        if(freeListHead == -1){
+            return freePages;
+        }
+        try(BasicPageCursor cursor = new BasicPageCursor(disk, freeListHead, PagedFile.PF_SHARED_LOCK)){
+            long page = freeListHead;
+            while(page != -1){
+                cursor.next(page);
+                int count = cursor.getInt(FREE_LIST_BYTE_POSITION_COUNT);
+                cursor.setOffset(FREE_LIST_HEADER_LENGTH);
+                for(int i = 0; i < count; i++){
+                    freePages.release(cursor.getLong());
+                }
+                page = cursor.getLong(FREE_LIST_BYTE_POSITION_NEXT);
+            }
+        }
+        return freePages;
+    }
+}
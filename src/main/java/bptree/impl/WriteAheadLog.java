@@ -0,0 +1,516 @@
+package bptree.impl;
+
+import bptree.PageProxyCursor;
+import org.neo4j.io.pagecache.PageCursor;
+import org.neo4j.io.pagecache.PagedFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * A redo log for the mutations of the index on a persistent DiskCache, kept next to its file as <file>.wal.
+ *
+ * A page is logged when a mutation lets go of it, while the mutation still holds it exclusively, so the records of a
+ * page are in the log in the order its changes were made. A key inserted into or removed from a leaf which is not
+ * split or emptied is logged as that key and page. Splits, and every other change, are logged as the image of each
+ * page written, as there is no page LSN to tell which of a split's pages reached the file. Pages which were held but
+ * not changed, such as the path of a remove, are not logged.
+ *
+ * Records are appended without being forced. The page cache forces the log before it writes any page to the file,
+ * see DiskCache, so a page never reaches the file before the records of its changes. A commit waits for the log to be
+ * forced up to its last record: the first waiting thread forces everything appended so far, and the threads which
+ * appended while it was forcing are made durable by the next force, so concurrent writers share their forces. Writers
+ * are not serialized by the log, only checkpoints wait for the mutations in progress to end.
+ *
+ * Replay starts from the last checkpoint, over pages which may have reached the file at any later point. Images are
+ * copied back. A key is inserted only if its leaf does not hold it and has room for it, and removed only if the leaf
+ * holds it and other keys, which leaves a leaf the same whether or not the page in the file already had the change,
+ * as any later change to the key or the leaf is logged after it. For this to hold a mutation only logs a key which is
+ * not in its leaf yet, or is in it once, any other change is an image. A crash in the middle of a split leaves the
+ * pages logged before it, which are written in the order of Lehman and Yao, so the tree recovered is one which
+ * concurrent readers could have seen.
+ *
+ * The log is checkpointed once it grows past CHECKPOINT_BYTES: the page cache is forced and the log starts again with
+ * a record of the root and the free pages.
+ *
+ * Record: [payload length][crc32 of type and payload][type][payload]
+ * Checkpoint: [root][key length][codec][next new page][free count][free pages]
+ * Page: [page id][image]
+ * Insert, remove: [page id][key length][key]
+ * Root: [root]
+ * Release: [page id]
+ */
+public class WriteAheadLog {
+    static final byte RECORD_CHECKPOINT = 1;
+    static final byte RECORD_PAGE = 2;
+    static final byte RECORD_INSERT = 3;
+    static final byte RECORD_REMOVE = 4;
+    static final byte RECORD_ROOT = 5;
+    static final byte RECORD_RELEASE = 6;
+    static final int RECORD_HEADER_LENGTH = 4 + 8 + 1;
+    public boolean SYNC_COMMIT = true; //commits wait until their records are forced to the log
+    public long CHECKPOINT_BYTES = 64l << 20; //the log is checkpointed when a mutation ends past this length
+    final DiskCache disk;
+    final File file;
+    private FileChannel channel;
+    private final ReentrantReadWriteLock checkpointLock = new ReentrantReadWriteLock(); //mutations share it, checkpoints take it whole
+    private final ThreadLocal<Mutation> mutation = ThreadLocal.withInitial(Mutation::new);
+    private long appendedLsn = 0; //the log position after the last appended record, counted across checkpoints
+    private long durableLsn = 0;
+    private long checkpointLsn = 0; //the log position after the last checkpoint record
+    private boolean forcing = false;
+
+    /*
+    The pages the mutation of one thread holds exclusively, each with its image from when it was taken and the key
+    it is logged as, if any.
+     */
+    private static class Mutation {
+        boolean active = false;
+        long lastLsn = 0;
+        Pin[] pins = new Pin[0];
+        int pinned = 0;
+        byte[] image = new byte[DiskCache.PAGE_SIZE];
+    }
+
+    private static class Pin {
+        long page;
+        byte[] before = new byte[DiskCache.PAGE_SIZE];
+        byte keyRecord; //RECORD_INSERT or RECORD_REMOVE if the page is logged as a key, otherwise 0
+        long[] key;
+    }
+
+    WriteAheadLog(DiskCache disk, File file) throws IOException {
+        this.disk = disk;
+        this.file = file;
+        this.channel = new RandomAccessFile(file, "rw").getChannel();
+    }
+
+    public static File logFile(File pageCacheFile){
+        return new File(pageCacheFile.getPath() + ".wal");
+    }
+
+    /**
+     * Starts a mutation on this thread, which only waits for a checkpoint in progress.
+     */
+    public void begin(){
+        checkpointLock.readLock().lock();
+        Mutation m = mutation.get();
+        m.active = true;
+        m.lastLsn = 0;
+        m.pinned = 0;
+    }
+
+    /**
+     * Ends the mutation on this thread, returning the log position awaitDurable waits for, or 0 if it logged nothing.
+     */
+    public long end(){
+        Mutation m = mutation.get();
+        m.active = false;
+        checkpointLock.readLock().unlock();
+        return m.lastLsn;
+    }
+
+    /**
+     * Takes the image of a page the mutation on this thread has just locked exclusively, to tell on release whether
+     * it was changed. Pages locked by other threads, such as readers or bulk loaders, are not logged.
+     */
+    void pinned(PageCursor cursor){
+        Mutation m = mutation.get();
+        if(!m.active){
+            return;
+        }
+        if(m.pinned == m.pins.length){
+            m.pins = Arrays.copyOf(m.pins, m.pinned + 4);
+            for(int i = m.pinned; i < m.pins.length; i++){
+                m.pins[i] = new Pin();
+            }
+        }
+        Pin pin = m.pins[m.pinned++];
+        pin.page = cursor.getCurrentPageId();
+        pin.keyRecord = 0;
+        cursor.setOffset(0);
+        cursor.getBytes(pin.before);
+        cursor.setOffset(0);
+    }
+
+    /**
+     * Logs a page the mutation on this thread is about to release, if it changed it, while it still holds it.
+     */
+    void unpinned(PageCursor cursor) throws IOException {
+        Mutation m = mutation.get();
+        if(!m.active){
+            return;
+        }
+        int index = pinIndex(m, cursor.getCurrentPageId());
+        if(index == -1){
+            return;
+        }
+        Pin pin = m.pins[index];
+        m.pins[index] = m.pins[--m.pinned];
+        m.pins[m.pinned] = pin;
+        cursor.setOffset(0);
+        cursor.getBytes(m.image);
+        cursor.setOffset(0);
+        if(Arrays.equals(pin.before, m.image) || disk.freePages.isFree(pin.page)){
+            return;
+        }
+        ByteBuffer record;
+        if(pin.keyRecord != 0){
+            record = startRecord(pin.keyRecord, 8 + 4 + pin.key.length * 8);
+            record.putLong(pin.page);
+            record.putInt(pin.key.length);
+            for(long item : pin.key){
+                record.putLong(item);
+            }
+        }
+        else{
+            record = startRecord(RECORD_PAGE, 8 + DiskCache.PAGE_SIZE);
+            record.putLong(pin.page);
+            record.put(m.image);
+        }
+        m.lastLsn = append(record);
+    }
+
+    /**
+     * Logs the leaf under the cursor as the key inserted into it, if the key is not in it yet and fits without a split.
+     */
+    void insertingKey(PageProxyCursor cursor, long[] key) throws IOException {
+        Pin pin = pinOf(cursor);
+        if(pin != null && NodeHeader.isLeafNode(cursor) && !holdsKey(cursor, key, 1) &&
+                cursor.leafNodeContainsSpaceForNewKey(key)){
+            pin.keyRecord = RECORD_INSERT;
+            pin.key = key.clone();
+        }
+    }
+
+    /**
+     * Logs the leaf under the cursor as the key removed from it, if the key is in it once and is not its last key.
+     */
+    void removingKey(PageProxyCursor cursor, long[] key){
+        Pin pin = pinOf(cursor);
+        if(pin != null && NodeHeader.isLeafNode(cursor) && NodeHeader.getNumberOfKeys(cursor) > 1 &&
+                holdsKey(cursor, key, 1) && !holdsKey(cursor, key, 2)){
+            pin.keyRecord = RECORD_REMOVE;
+            pin.key = key.clone();
+        }
+    }
+
+    /*
+    Whether the leaf holds at least the given number of copies of the key, which are next to each other.
+     */
+    private static boolean holdsKey(PageProxyCursor cursor, long[] key, int copies){
+        int keyLength = NodeHeader.getKeyLength(cursor);
+        if(key.length != keyLength){
+            return false;
+        }
+        int index = IndexSearch.searchIndex(cursor, key) + copies - 1;
+        return index < NodeHeader.getNumberOfKeys(cursor) &&
+                IndexSearch.compareToKeyAt(cursor, key, NodeHeader.NODE_HEADER_LENGTH + index * keyLength * 8, keyLength) == 0;
+    }
+
+    private Pin pinOf(PageProxyCursor cursor){
+        Mutation m = mutation.get();
+        int index = m.active ? pinIndex(m, cursor.getCurrentPageId()) : -1;
+        return index == -1 ? null : m.pins[index];
+    }
+
+    private static int pinIndex(Mutation m, long page){
+        for(int i = 0; i < m.pinned; i++){
+            if(m.pins[i].page == page){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Logs a new root, which is done after the image of its page.
+     */
+    void rootChanged(long root) throws IOException {
+        appendPageId(RECORD_ROOT, root);
+    }
+
+    void release(long page) throws IOException {
+        appendPageId(RECORD_RELEASE, page);
+    }
+
+    private void appendPageId(byte type, long page) throws IOException {
+        Mutation m = mutation.get();
+        if(!m.active){
+            return;
+        }
+        ByteBuffer record = startRecord(type, 8);
+        record.putLong(page);
+        m.lastLsn = append(record);
+    }
+
+    /**
+     * Waits until the log has been forced up to the given position.
+     */
+    public void awaitDurable(long lsn) throws IOException {
+        if(SYNC_COMMIT && lsn != 0){
+            force(lsn);
+        }
+    }
+
+    /**
+     * Forces every record appended so far, before the page cache writes a page to the file.
+     */
+    void forceAppended() throws IOException {
+        long lsn;
+        synchronized (this){
+            lsn = appendedLsn;
+        }
+        force(lsn);
+    }
+
+    private void force(long lsn) throws IOException {
+        long forceUpTo;
+        synchronized (this){
+            while(durableLsn < lsn && forcing){
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                }
+            }
+            if(durableLsn >= lsn){
+                return;
+            }
+            forcing = true;
+            forceUpTo = appendedLsn;
+        }
+        try {
+            channel.force(false);
+        } finally {
+            synchronized (this){
+                forcing = false;
+                durableLsn = Math.max(durableLsn, forceUpTo);
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Checkpoints the log if it has grown past CHECKPOINT_BYTES, unless another thread is checkpointing it. Called
+     * when a mutation has ended.
+     */
+    public void checkpointIfFull(IndexTree index) throws IOException {
+        if(logLength() >= CHECKPOINT_BYTES && checkpointLock.writeLock().tryLock()){
+            try {
+                if(logLength() >= CHECKPOINT_BYTES){
+                    checkpoint(index);
+                }
+            } finally {
+                checkpointLock.writeLock().unlock();
+            }
+        }
+    }
+
+    private synchronized long logLength(){
+        return appendedLsn - checkpointLsn;
+    }
+
+    /**
+     * Forces the page cache and starts the log again from a record of the index's root and free pages, waiting for
+     * the mutations in progress to end. The new log is written beside the old one and renamed over it, so a crash
+     * during the checkpoint leaves one of the two whole.
+     */
+    public void checkpoint(IndexTree index) throws IOException {
+        checkpointLock.writeLock().lock();
+        try {
+            disk.pagedFile.flushAndForce();
+            long[] free = disk.freePages.freePageIds();
+            ByteBuffer record = startRecord(RECORD_CHECKPOINT, 8 + 4 + 1 + 8 + 4 + free.length * 8);
+            record.putLong(index.rootNodeId);
+            record.putInt(index.keySize);
+            record.put(disk.leafCodecId());
+            record.putLong(disk.freePages.nextNewPage());
+            record.putInt(free.length);
+            for(long page : free){
+                record.putLong(page);
+            }
+            File next = new File(file.getPath() + ".next");
+            synchronized (this){
+                while(forcing){
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException(e);
+                    }
+                }
+                channel.close();
+                channel = new RandomAccessFile(next, "rw").getChannel();
+                channel.truncate(0);
+                long lsn = append(record);
+                channel.force(false);
+                Files.move(next.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                durableLsn = lsn;
+                checkpointLsn = lsn;
+            }
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private ByteBuffer startRecord(byte type, int payloadLength){
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_LENGTH + payloadLength);
+        record.putInt(payloadLength);
+        record.putLong(0); //the checksum, filled in when the record is appended
+        record.put(type);
+        return record;
+    }
+
+    /*
+    The checksum is taken before the record is appended, so concurrent writers only wait for each other's writes.
+     */
+    private long append(ByteBuffer record) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 12, record.capacity() - 12);
+        record.putLong(4, crc.getValue());
+        record.flip();
+        synchronized (this){
+            while(record.hasRemaining()){
+                channel.write(record);
+            }
+            appendedLsn += record.capacity();
+            return appendedLsn;
+        }
+    }
+
+    /**
+     * Replays the log of the disk, if a crash left one, over the superblock and free pages read from the file, and
+     * forces the replayed pages. Returns a superblock describing the recovered index, or the one given if the log
+     * holds no records. Keys are replayed through cursors of the codec the checkpoint records.
+     */
+    static Superblock recover(DiskCache disk, Superblock superblock) throws IOException {
+        File file = logFile(disk.pageCacheFile);
+        if(!file.exists()){
+            return superblock;
+        }
+        boolean replayed = false;
+        boolean compression = disk.COMPRESSION;
+        LeafCodec leafCodec = disk.LEAF_CODEC;
+        try(FileChannel channel = new RandomAccessFile(file, "r").getChannel()){
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+            CRC32 crc = new CRC32();
+            while(true){
+                header.clear();
+                if(!readFully(channel, header)){
+                    break;
+                }
+                header.flip();
+                int payloadLength = header.getInt();
+                long checksum = header.getLong();
+                byte type = header.get();
+                if(payloadLength < 0 || channel.size() - channel.position() < payloadLength){
+                    break; //the record was being appended when the crash came
+                }
+                ByteBuffer payload = ByteBuffer.allocate(payloadLength);
+                readFully(channel, payload);
+                crc.reset();
+                crc.update(type);
+                crc.update(payload.array(), 0, payloadLength);
+                if(crc.getValue() != checksum){
+                    break;
+                }
+                payload.flip();
+                if(type == RECORD_CHECKPOINT){
+                    superblock = new Superblock(); //the leaf range is found again once the index is opened
+                    superblock.firstLeaf = -1;
+                    superblock.lastLeaf = -1;
+                    superblock.rootId = payload.getLong();
+                    superblock.keyLength = payload.getInt();
+                    superblock.codec = payload.get();
+                    disk.setLeafCodecId(superblock.codec);
+                    disk.freePages = new FreePageManager(payload.getLong());
+                    int free = payload.getInt();
+                    for(int i = 0; i < free; i++){
+                        disk.freePages.release(payload.getLong());
+                    }
+                }
+                else if(!replayed){
+                    break; //a log starts with a checkpoint
+                }
+                else if(type == RECORD_PAGE){
+                    long page = payload.getLong();
+                    byte[] image = new byte[DiskCache.PAGE_SIZE];
+                    payload.get(image);
+                    disk.freePages.claim(page);
+                    try(BasicPageCursor cursor = new BasicPageCursor(disk, page, PagedFile.PF_EXCLUSIVE_LOCK)){
+                        cursor.setOffset(0);
+                        cursor.putBytes(image);
+                    }
+                }
+                else if(type == RECORD_INSERT || type == RECORD_REMOVE){
+                    long page = payload.getLong();
+                    long[] key = new long[payload.getInt()];
+                    for(int i = 0; i < key.length; i++){
+                        key[i] = payload.getLong();
+                    }
+                    disk.freePages.claim(page);
+                    redoKey(disk, type, page, key);
+                }
+                else if(type == RECORD_ROOT){
+                    superblock.rootId = payload.getLong();
+                }
+                else if(type == RECORD_RELEASE){
+                    disk.freePages.release(payload.getLong());
+                }
+                else{
+                    break;
+                }
+                replayed = true;
+            }
+        } finally {
+            disk.COMPRESSION = compression;
+            disk.LEAF_CODEC = leafCodec;
+        }
+        if(replayed){
+            disk.pagedFile.flushAndForce();
+        }
+        return superblock;
+    }
+
+    /*
+    A page which is not a leaf of the key's length was rewritten after the change, and that is logged as an image
+    after it, so the key is left to the image.
+     */
+    private static void redoKey(DiskCache disk, byte type, long page, long[] key) throws IOException {
+        try(PageProxyCursor cursor = disk.getCursor(page, PagedFile.PF_EXCLUSIVE_LOCK)){
+            if(!NodeHeader.isLeafNode(cursor) || NodeHeader.getKeyLength(cursor) != key.length){
+                return;
+            }
+            boolean holds = holdsKey(cursor, key, 1);
+            if(type == RECORD_INSERT && !holds && cursor.leafNodeContainsSpaceForNewKey(key)){
+                IndexInsertion.addKeyToLeafNode(cursor, key);
+            }
+            else if(type == RECORD_REMOVE && holds && NodeHeader.getNumberOfKeys(cursor) > 1){
+                IndexDeletion.removeKeyFromLeafNode(cursor, page, key);
+            }
+        }
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining()){
+            if(channel.read(buffer) < 0){
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,80 @@
+package Join;
+
+import bptree.PageProxyCursor;
+import bptree.impl.DiskCache;
+import bptree.impl.IndexTree;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.io.pagecache.PagedFile;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class JoinsTest {
+    DiskCache disk;
+    IndexTree tree;
+    List<long[]> keysA = new ArrayList<>();
+    List<long[]> keysB = new ArrayList<>();
+
+    @Before
+    public void buildIndex() throws IOException {
+        disk = DiskCache.temporaryDiskCache("joins_test.dat", false);
+        tree = new IndexTree(4, disk);
+        Random random = new Random(3);
+        for(int i = 0; i < 3000; i++){
+            long[] a = new long[]{1, random.nextInt(200), random.nextInt(200), i};
+            long[] b = new long[]{2, random.nextInt(200), random.nextInt(200), random.nextInt(200)};
+            tree.insert(a);
+            tree.insert(b);
+            keysA.add(a);
+            keysB.add(b);
+        }
+    }
+
+    @After
+    public void shutdown() throws IOException {
+        disk.shutdown();
+    }
+
+    private List<String> nestedLoopJoin(int[] columnsA, int[] columnsB){
+        List<String> pairs = new ArrayList<>();
+        for(long[] a : keysA){
+            for(long[] b : keysB){
+                if(Joins.matches(a, columnsA, b, columnsB, 0))
+                    pairs.add(Arrays.toString(a) + Arrays.toString(b));
+            }
+        }
+        pairs.sort(null);
+        return pairs;
+    }
+
+    private List<String> join(int[] columnsA, int[] columnsB, Class<?> expectedJoin) throws IOException {
+        List<String> pairs = new ArrayList<>();
+        try(PageProxyCursor cursor = disk.getCursor(tree.rootNodeId, PagedFile.PF_SHARED_LOCK);
+            JoinCursor join = Joins.join(new PrefixScan(tree, new long[]{1}, cursor), columnsA, new PrefixScan(tree, new long[]{2}, cursor), columnsB)){
+            assert(join.getClass() == expectedJoin);
+            while(join.next()){
+                pairs.add(Arrays.toString(join.left()) + Arrays.toString(join.right()));
+            }
+        }
+        pairs.sort(null);
+        return pairs;
+    }
+
+    @Test
+    public void mergeJoinOnSortedColumns() throws IOException {
+        assert(join(new int[]{1}, new int[]{1}, MergeJoin.class).equals(nestedLoopJoin(new int[]{1}, new int[]{1})));
+        assert(join(new int[]{1, 2}, new int[]{1, 2}, MergeJoin.class).equals(nestedLoopJoin(new int[]{1, 2}, new int[]{1, 2})));
+        assert(join(new int[]{1, 2}, new int[]{1, 3}, MergeJoin.class).equals(nestedLoopJoin(new int[]{1, 2}, new int[]{1, 3})));
+    }
+
+    @Test
+    public void hashJoinOnUnsortedColumns() throws IOException {
+        assert(join(new int[]{2}, new int[]{1}, HashJoin.class).equals(nestedLoopJoin(new int[]{2}, new int[]{1})));
+        assert(join(new int[]{2, 1}, new int[]{3, 1}, HashJoin.class).equals(nestedLoopJoin(new int[]{2, 1}, new int[]{3, 1})));
+    }
+}
@@ -0,0 +1,81 @@
+package Join;
+
+import bptree.PageProxyCursor;
+import bptree.impl.DiskCache;
+import bptree.impl.IndexTree;
+import org.junit.After;
+import org.junit.Test;
+import org.neo4j.io.pagecache.PagedFile;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class LeapfrogTriejoinTest {
+    DiskCache disk;
+    IndexTree tree;
+    List<long[]> edges = new ArrayList<>();
+
+    @After
+    public void shutdown() throws IOException {
+        disk.shutdown();
+    }
+
+    private void buildIndex(boolean compressed) throws IOException {
+        disk = DiskCache.temporaryDiskCache("leapfrog_test.dat", compressed);
+        tree = new IndexTree(3, disk);
+        Random random = new Random(11);
+        for(int i = 0; i < 6000; i++){
+            long[] edge = new long[]{1 + (i % 3), random.nextInt(60), random.nextInt(60)};
+            if(!edges.stream().anyMatch(e -> Arrays.equals(e, edge))){
+                tree.insert(edge);
+                edges.add(edge);
+            }
+        }
+    }
+
+    private boolean hasEdge(long path, long from, long to){
+        return edges.stream().anyMatch(e -> e[0] == path && e[1] == from && e[2] == to);
+    }
+
+    /*
+    (x)-[1]->(z)-[2]->(y), (x)-[3]->(y), binding x, then z, then y.
+     */
+    private void triangles(boolean compressed) throws IOException {
+        buildIndex(compressed);
+        List<String> expected = new ArrayList<>();
+        for(long[] r : edges){
+            for(long[] s : edges){
+                if(r[0] == 1 && s[0] == 2 && r[2] == s[1] && hasEdge(3, r[1], s[2]))
+                    expected.add(Arrays.toString(new long[]{r[1], r[2], s[2]}));
+            }
+        }
+        expected.sort(null);
+        List<String> found = new ArrayList<>();
+        try(PageProxyCursor cursor = disk.getCursor(tree.rootNodeId, PagedFile.PF_SHARED_LOCK)){
+            TrieIterator[] tries = new TrieIterator[]{
+                    new TrieIterator(tree, new long[]{1}, cursor),
+                    new TrieIterator(tree, new long[]{2}, cursor),
+                    new TrieIterator(tree, new long[]{3}, cursor)};
+            LeapfrogTriejoin join = new LeapfrogTriejoin(3, tries, new int[][]{{0, 1}, {1, 2}, {0, 2}});
+            long count = join.run(binding -> found.add(Arrays.toString(binding)));
+            assert(count == expected.size());
+            assert(join.run(binding -> false) == Math.min(1, expected.size()));
+        }
+        found.sort(null);
+        assert(found.equals(expected));
+        assert(!expected.isEmpty());
+    }
+
+    @Test
+    public void trianglesMatchNestedLoopUncompressed() throws IOException {
+        triangles(false);
+    }
+
+    @Test
+    public void trianglesMatchNestedLoopCompressed() throws IOException {
+        triangles(true);
+    }
+}
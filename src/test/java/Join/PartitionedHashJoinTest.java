@@ -0,0 +1,62 @@
+package Join;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class PartitionedHashJoinTest {
+    List<long[]> paths = new ArrayList<>();
+
+    public PartitionedHashJoinTest(){
+        Random random = new Random(5);
+        for(int i = 0; i < 5000; i++){
+            paths.add(new long[]{1 + random.nextInt(4), random.nextInt(1000), random.nextInt(1000)});
+        }
+    }
+
+    private List<String> nestedLoopJoin(){
+        List<String> pairs = new ArrayList<>();
+        for(long[] a : paths){
+            for(long[] b : paths){
+                if(a[2] == b[1])
+                    pairs.add(Arrays.toString(a) + Arrays.toString(b));
+            }
+        }
+        pairs.sort(null);
+        return pairs;
+    }
+
+    private List<String> hashJoin(int maxBuildRows, boolean expectSpill) throws IOException {
+        List<String> pairs = new ArrayList<>();
+        JoinVisitor visitor = (a, b) -> pairs.add(Arrays.toString(a) + Arrays.toString(b));
+        try(PartitionedHashJoin join = new PartitionedHashJoin(3, 2, 3, 1, 8, maxBuildRows)){
+            long[] row = new long[3];
+            for(long[] a : paths){
+                System.arraycopy(a, 0, row, 0, 3);
+                join.addBuildRow(row);
+            }
+            assert(join.spilled() == expectSpill);
+            for(long[] b : paths){
+                System.arraycopy(b, 0, row, 0, 3);
+                join.probe(row, visitor);
+            }
+            join.finish(visitor);
+        }
+        pairs.sort(null);
+        return pairs;
+    }
+
+    @Test
+    public void inMemoryJoinMatchesNestedLoop() throws IOException {
+        assert(hashJoin(PartitionedHashJoin.DEFAULT_MAX_BUILD_ROWS, false).equals(nestedLoopJoin()));
+    }
+
+    @Test
+    public void spilledJoinMatchesNestedLoop() throws IOException {
+        assert(hashJoin(500, true).equals(nestedLoopJoin()));
+    }
+}
@@ -1,9 +1,11 @@
 package PageCacheSort;
 
+import bptree.impl.KeyImpl;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Random;
 
 /**
@@ -70,6 +72,47 @@ public class SorterTest {
         assert(readBackCount == count-2);
     }
 
+    @Test
+    public void parallelMerge() throws IOException {
+        int count = 1000000;
+        sorter.FAN_IN = 8;
+        sorter.MERGE_THREADS = 4;
+        writeRandomKeysToSorter(sorter, count);
+        SetIterator itr = sorter.sort();
+        long[] prev = new long[]{1,1,1,1};
+        int readBackCount = 0;
+        while(itr.hasNext()){
+            long next[] = itr.getNext();
+            assert(next[0] > prev[0]);
+            prev = next;
+            readBackCount++;
+        }
+        assert(readBackCount == count-2);
+        int keysPerPage = (Sorter.ALT_MAX_PAGE_SIZE - 1) / (4 * 8);
+        assert(sorter.finalPageId() == (readBackCount - 1) / keysPerPage); //the bulk loader reads pages 0 to finalPageId
+    }
+
+    @Test
+    public void radixSortedRuns() throws IOException {
+        int count = 1000000;
+        sorter.RUN_BUFFER_MB = 8;
+        sorter.RUN_SORT_THREADS = 4;
+        Random random = new Random(3);
+        for(int i = 0; i < count; i++){
+            sorter.addUnsortedKey(new long[]{random.nextInt(10), random.nextInt(1000) - 500, random.nextLong(), random.nextInt(5)});
+        }
+        SetIterator itr = sorter.sort();
+        long[] prev = itr.getNext();
+        int readBackCount = 1;
+        while(itr.hasNext()){
+            long next[] = itr.getNext();
+            assert(KeyImpl.getComparator().compare(prev, next) <= 0) : Arrays.toString(prev) + " before " + Arrays.toString(next);
+            prev = next;
+            readBackCount++;
+        }
+        assert(readBackCount == count);
+    }
+
     public void writeUnsortedKeysToSorter(Sorter sorter, int count) throws IOException {
         int ijk = 0;
         for(int i = 2; i < count; i++){
@@ -0,0 +1,74 @@
+package bptree;
+
+import bptree.impl.DiskCache;
+import bptree.impl.IndexTree;
+import bptree.impl.SearchCursor;
+import org.junit.After;
+import org.junit.Test;
+import org.neo4j.io.pagecache.PagedFile;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class FindAllTest {
+    DiskCache disk;
+    IndexTree tree;
+    int numberOfKeys = 50000;
+
+    @After
+    public void shutdown() throws IOException {
+        disk.shutdown();
+    }
+
+    @Test
+    public void findAllMatchesFindUncompressed() throws IOException {
+        findAllMatchesFind(false);
+    }
+
+    @Test
+    public void findAllMatchesFindCompressed() throws IOException {
+        findAllMatchesFind(true);
+    }
+
+    private void findAllMatchesFind(boolean compressed) throws IOException {
+        disk = DiskCache.temporaryDiskCache("find_all_test.dat", compressed);
+        tree = new IndexTree(3, disk);
+        for(int i = 0; i < numberOfKeys; i++){
+            tree.insert(new long[]{1 + (i % 5), (i * 7919l) % 20011, i});
+        }
+        Random random = new Random(1);
+        long[][] probes = new long[2000][];
+        for(int i = 0; i < probes.length; i++){
+            probes[i] = i % 10 == 0 ? new long[]{1 + random.nextInt(6)} : new long[]{1 + random.nextInt(6), random.nextInt(20011)};
+        }
+        try (PageProxyCursor cursor = disk.getCursor(tree.rootNodeId, PagedFile.PF_SHARED_LOCK)) {
+            List<List<long[]>> expected = new ArrayList<>();
+            for(long[] probe : probes){
+                List<long[]> keys = new ArrayList<>();
+                SearchCursor result = tree.find(cursor, probe);
+                long[] key;
+                while((key = result.next(cursor)) != null){
+                    keys.add(key);
+                }
+                expected.add(keys);
+            }
+            List<List<long[]>> found = new ArrayList<>();
+            for(long[] probe : probes){
+                found.add(new ArrayList<>());
+            }
+            long visited = tree.findAll(cursor, probes, (probe, key) -> found.get(probe).add(key.clone()));
+            long total = 0;
+            for(int i = 0; i < probes.length; i++){
+                total += expected.get(i).size();
+                assert(expected.get(i).size() == found.get(i).size()) : Arrays.toString(probes[i]);
+                for(int j = 0; j < expected.get(i).size(); j++){
+                    assert(Arrays.equals(expected.get(i).get(j), found.get(i).get(j)));
+                }
+            }
+            assert(visited == total);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package bptree;
+
+import bptree.impl.DiskCache;
+import bptree.impl.FreePageManager;
+import bptree.impl.IndexTree;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class FreePageManagerTest {
+
+    @Test
+    public void releasedPagesAreReusedLowestFirst(){
+        FreePageManager pages = new FreePageManager(0);
+        for(long i = 0; i < 5; i++){
+            assert(pages.acquire() == i);
+        }
+        pages.release(3l);
+        pages.release(0l);
+        assert(pages.isFree(0l) && pages.isFree(3l) && !pages.isFree(1l));
+        assert(pages.acquire() == 0l);
+        assert(pages.acquire() == 3l);
+        assert(pages.acquire() == 5l);
+        assert(pages.acquireExtent(10) == 6l);
+        assert(pages.nextNewPage() == 16l);
+    }
+
+    @Test
+    public void releasingAFreePageTwiceFreesItOnce(){
+        FreePageManager pages = new FreePageManager(FreePageManager.SEGMENT_PAGES * 3);
+        pages.release(FreePageManager.SEGMENT_PAGES * 2 + 7);
+        pages.release(FreePageManager.SEGMENT_PAGES * 2 + 7);
+        assert(pages.numberOfFreePages() == 1);
+        assert(pages.acquire() == FreePageManager.SEGMENT_PAGES * 2 + 7);
+        assert(pages.acquire() == FreePageManager.SEGMENT_PAGES * 3);
+    }
+
+    @Test
+    public void concurrentAcquiresNeverHandOutAPageTwice() throws InterruptedException {
+        FreePageManager pages = new FreePageManager(100000);
+        for(long i = 0; i < 100000; i += 3){
+            pages.release(i);
+        }
+        ConcurrentHashMap<Long, Boolean> acquired = new ConcurrentHashMap<>();
+        AtomicBoolean handedOutTwice = new AtomicBoolean(false);
+        int threads = 4;
+        CountDownLatch done = new CountDownLatch(threads);
+        List<Thread> workers = new ArrayList<>();
+        for(int t = 0; t < threads; t++){
+            workers.add(new Thread(() -> {
+                for(int i = 0; i < 20000; i++){
+                    long page = pages.acquire();
+                    if(acquired.put(page, true) != null){
+                        handedOutTwice.set(true);
+                    }
+                    if(i % 4 == 0){
+                        acquired.remove(page);
+                        pages.release(page);
+                    }
+                }
+                done.countDown();
+            }));
+        }
+        workers.forEach(Thread::start);
+        done.await();
+        assert(!handedOutTwice.get());
+        for(long page : acquired.keySet()){
+            assert(!pages.isFree(page));
+        }
+    }
+
+    @Test
+    public void freePagesSurviveReopeningAPersistentDisk() throws IOException {
+        File file = new File("free_page_test.dat");
+        file.delete();
+        DiskCache disk = DiskCache.persistentDiskCache(file.getPath(), false);
+        IndexTree tree = new IndexTree(2, disk);
+        for(int i = 0; i < 10000; i++){
+            tree.insert(new long[]{1, i});
+        }
+        long spare = disk.freePages.acquire();
+        tree.releaseNode(spare);
+        long nextNewPage = disk.freePages.nextNewPage();
+        disk.shutdown();
+
+        disk = DiskCache.persistentDiskCache(file.getPath(), false);
+        assert(disk.freePages.nextNewPage() == nextNewPage);
+        assert(disk.freePages.acquire() == spare);
+        assert(disk.freePages.acquire() == nextNewPage);
+        disk.shutdown();
+        file.delete();
+    }
+}
@@ -0,0 +1,150 @@
+package bptree;
+
+import bptree.impl.DiskCache;
+import bptree.impl.IndexTree;
+import bptree.impl.NodeHeader;
+import bptree.impl.SearchCursor;
+import org.junit.After;
+import org.junit.Test;
+import org.neo4j.io.pagecache.PagedFile;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class IndexTreeConcurrencyTest {
+    DiskCache disk;
+    IndexTree tree;
+    int preloadedKeys = 20000;
+    int concurrentKeys = 30000;
+    int readers = 4;
+    int writers = 3;
+
+    @After
+    public void shutdown() throws IOException {
+        disk.shutdown();
+    }
+
+    private long[] key(int i){
+        return new long[]{1 + (i % 7), (i * 7919l) % 100003, i};
+    }
+
+    @Test
+    public void concurrentFindsAndInsertsUncompressed() throws Exception {
+        concurrentFindsAndInserts(false);
+    }
+
+    @Test
+    public void concurrentFindsAndInsertsCompressed() throws Exception {
+        concurrentFindsAndInserts(true);
+    }
+
+    private void concurrentFindsAndInserts(boolean compressed) throws Exception {
+        disk = DiskCache.temporaryDiskCache("concurrency_test.dat", compressed);
+        tree = new IndexTree(3, disk);
+        for(int i = 0; i < preloadedKeys; i++){
+            tree.insert(key(i));
+        }
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> writerThreads = new ArrayList<>();
+        for(int w = 0; w < writers; w++){
+            final int first = preloadedKeys + w;
+            writerThreads.add(new Thread(() -> {
+                for (int i = first; i < preloadedKeys + concurrentKeys; i += writers) {
+                    tree.insert(key(i));
+                }
+            }));
+        }
+        List<Thread> readerThreads = new ArrayList<>();
+        for(int r = 0; r < readers; r++){
+            final int seed = r;
+            readerThreads.add(new Thread(() -> {
+                Random random = new Random(seed);
+                try {
+                    while (writerThreads.stream().anyMatch(Thread::isAlive) && failure.get() == null) {
+                        long[] key = key(random.nextInt(preloadedKeys));
+                        SearchCursor result = tree.find(key);
+                        try (PageProxyCursor cursor = disk.getCursor(result.pageID, PagedFile.PF_SHARED_LOCK)) {
+                            long[] found = result.next(cursor);
+                            if (!Arrays.equals(found, key)) {
+                                failure.compareAndSet(null, new AssertionError(Arrays.toString(key) + " found as " + Arrays.toString(found)));
+                            }
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }));
+        }
+        for(Thread reader : readerThreads){
+            reader.start();
+        }
+        for(Thread writer : writerThreads){
+            writer.start();
+        }
+        for(Thread writer : writerThreads){
+            writer.join();
+        }
+        for(Thread reader : readerThreads){
+            reader.join();
+        }
+        assert(failure.get() == null) : failure.get();
+
+        try (PageProxyCursor cursor = disk.getCursor(tree.rootNodeId, PagedFile.PF_SHARED_LOCK)) {
+            for (int i = 0; i < preloadedKeys + concurrentKeys; i++) {
+                assert(Arrays.equals(tree.find(cursor, key(i)).next(cursor), key(i)));
+            }
+        }
+    }
+
+    /*
+    Neighbouring keys are inserted by different writers, so leaves are split while other writers insert into their
+    right siblings. Each split rewrites its old sibling's preceding id, which on a compressed disk writes back the
+    whole page, so an insert racing with it would be lost.
+     */
+    @Test
+    public void concurrentSplitsOfNeighbouringLeavesCompressed() throws Exception {
+        disk = DiskCache.temporaryDiskCache("concurrency_split_test.dat", true);
+        tree = new IndexTree(3, disk);
+        int keys = 120000;
+        List<Thread> writerThreads = new ArrayList<>();
+        for(int w = 0; w < 4; w++){
+            final int first = w;
+            writerThreads.add(new Thread(() -> {
+                for(int i = first; i < keys; i += 4){
+                    tree.insert(new long[]{1, i % 1000, i});
+                }
+            }));
+        }
+        for(Thread writer : writerThreads){
+            writer.start();
+        }
+        for(Thread writer : writerThreads){
+            writer.join();
+        }
+
+        try (PageProxyCursor cursor = disk.getCursor(tree.rootNodeId, PagedFile.PF_SHARED_LOCK)) {
+            while(!NodeHeader.isLeafNode(cursor)){
+                cursor.next(tree.getChildIdAtIndex(cursor, 0));
+            }
+            long leaf = cursor.getCurrentPageId();
+            long preceding = -1;
+            int found = 0;
+            while(leaf != -1){
+                cursor.next(leaf);
+                assert(NodeHeader.getPrecedingID(cursor) == preceding) : leaf + " follows " + preceding;
+                found += NodeHeader.getNumberOfKeys(cursor);
+                preceding = leaf;
+                leaf = NodeHeader.getSiblingID(cursor);
+            }
+            assert(found == keys) : found;
+            for(int i = 0; i < keys; i++){
+                long[] key = new long[]{1, i % 1000, i};
+                assert(Arrays.equals(tree.find(cursor, key).next(cursor), key)) : Arrays.toString(key);
+            }
+        }
+    }
+}
@@ -41,6 +41,8 @@ public class KeyTest {
         assert(comparator.validPrefix(keyD1, keyD2));
         assert(comparator.validPrefix(keyD, keyD2));
         assert(!comparator.validPrefix(keyD2, keyD1));
+        assert(comparator.prefixCompare(new long[]{Long.MIN_VALUE}, new long[]{Long.MAX_VALUE}) < 0);
+        assert(comparator.prefixCompare(new long[]{1l << 40}, new long[]{0l}) > 0);
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,134 @@
+package bptree;
+
+import bptree.impl.ColumnarLeafCodec;
+import bptree.impl.DiskCache;
+import bptree.impl.IndexTree;
+import bptree.impl.LeafCodec;
+import bptree.impl.NodeHeader;
+import bptree.impl.PipelinedIndexBuilder;
+import bptree.impl.SearchCursor;
+import org.junit.Test;
+import org.neo4j.io.pagecache.PageCursor;
+import org.neo4j.io.pagecache.PagedFile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+public class LeafCodecTest {
+    LeafCodec[] codecs = new LeafCodec[]{LeafCodec.FRAME_OF_REFERENCE, LeafCodec.PATH_RUN_LENGTH, LeafCodec.COLUMNAR};
+
+    /*
+    The third column has a few outliers at the ends of the range of a long, which the frame of reference codec
+    patches in as exceptions.
+     */
+    @Test
+    public void keysSurviveEncoding(){
+        int keyLength = 4;
+        int numberOfKeys = 700;
+        Random random = new Random(3);
+        long[] keys = new long[numberOfKeys * keyLength];
+        for(int i = 0; i < numberOfKeys; i++){
+            keys[i * keyLength] = 1 + (i / 300);
+            keys[i * keyLength + 1] = 1000 + i;
+            keys[i * keyLength + 2] = i % 97 == 0 ? (i % 2 == 0 ? Long.MAX_VALUE : Long.MIN_VALUE) : random.nextInt(5000);
+            keys[i * keyLength + 3] = -random.nextLong();
+        }
+        for(LeafCodec codec : codecs){
+            for(int n : new int[]{1, 2, 63, numberOfKeys}){
+                int length = codec.encodedLength(keys, n, keyLength);
+                ByteBuffer buffer = ByteBuffer.allocate(length);
+                codec.encode(keys, n, keyLength, buffer);
+                assert(buffer.position() == length) : codec.id() + " " + n;
+                buffer.flip();
+                long[] decoded = new long[n * keyLength];
+                codec.decode(buffer, n, keyLength, decoded);
+                assert(!buffer.hasRemaining());
+                assert(Arrays.equals(decoded, Arrays.copyOf(keys, n * keyLength))) : codec.id() + " " + n;
+            }
+            assert(LeafCodec.forId(codec.id()) == codec);
+        }
+    }
+
+    @Test
+    public void buildAndInsertWithEachCodec() throws IOException {
+        for(LeafCodec codec : codecs){
+            DiskCache disk = DiskCache.temporaryDiskCache("leaf_codec_test.dat", true);
+            disk.LEAF_CODEC = codec;
+            PipelinedIndexBuilder builder = new PipelinedIndexBuilder(disk, 3, 0.9);
+            for(int i = 0; i < 60000; i++){
+                builder.addKey(new long[]{1 + (i / 20000), i * 2l, i * 5l});
+            }
+            IndexTree tree = builder.finish();
+            for(int i = 0; i < 6000; i++){
+                tree.insert(new long[]{2, i * 20l + 1, i});
+            }
+            try(PageCursor page = disk.pagedFile.io(0, PagedFile.PF_SHARED_LOCK)){
+                page.next();
+                assert(NodeHeader.isLeafNode(page) && NodeHeader.hasCodec(page));
+                assert(page.getByte(NodeHeader.NODE_HEADER_LENGTH) == codec.id());
+            }
+            assert(count(tree, 1) == 20000);
+            assert(count(tree, 2) == 26000);
+            assert(count(tree, 3) == 20000);
+            long[] expected = new long[]{0};
+            try(PageProxyCursor cursor = tree.disk.getCursor(tree.rootNodeId, PagedFile.PF_SHARED_LOCK)){
+                long visited = tree.findColumn(cursor, new long[]{1}, 2, value -> {
+                    assert(value == expected[0] * 5) : value;
+                    expected[0]++;
+                    return true;
+                });
+                assert(visited == 20000);
+            }
+            disk.shutdown();
+        }
+    }
+
+    /*
+    The columns are encoded differently: runs of path ids, a column bit packed better than it is delta encoded, and
+    one of growing differences delta encoded better than it is bit packed.
+     */
+    @Test
+    public void columnsDecodeOnTheirOwn(){
+        int keyLength = 4;
+        int numberOfKeys = 500;
+        Random random = new Random(7);
+        long[] keys = new long[numberOfKeys * keyLength];
+        long growing = 0;
+        for(int i = 0; i < numberOfKeys; i++){
+            growing += random.nextInt(100);
+            keys[i * keyLength] = 5 + (i / 200);
+            keys[i * keyLength + 1] = random.nextInt(16);
+            keys[i * keyLength + 2] = (1l << 50) + growing;
+            keys[i * keyLength + 3] = i * 3;
+        }
+        ColumnarLeafCodec codec = LeafCodec.COLUMNAR;
+        ByteBuffer buffer = ByteBuffer.allocate(3 + codec.encodedLength(keys, numberOfKeys, keyLength));
+        buffer.position(3);
+        codec.encode(keys, numberOfKeys, keyLength, buffer);
+        assert(!buffer.hasRemaining());
+        buffer.position(3);
+        assert(ColumnarLeafCodec.length(buffer, keyLength) == buffer.capacity() - 3);
+        for(int column = 0; column < keyLength; column++){
+            long[] decoded = new long[numberOfKeys * keyLength];
+            codec.decodeColumn(buffer, numberOfKeys, keyLength, column, decoded);
+            assert(buffer.position() == 3);
+            for(int i = 0; i < numberOfKeys * keyLength; i++){
+                assert(decoded[i] == (i % keyLength == column ? keys[i] : 0)) : column + " " + i;
+            }
+        }
+    }
+
+    private int count(IndexTree tree, long prefix) throws IOException {
+        try(PageProxyCursor cursor = tree.disk.getCursor(tree.rootNodeId, PagedFile.PF_SHARED_LOCK)){
+            long[] key = new long[3];
+            int found = 0;
+            SearchCursor results = tree.find(cursor, new long[]{prefix});
+            while(results.next(cursor, key)){
+                found++;
+            }
+            return found;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package bptree;
+
+import bptree.impl.DiskCache;
+import bptree.impl.MixedLengthIndex;
+import bptree.impl.SearchCursor;
+import bptree.impl.SuperCompressedPageCursor;
+import org.junit.Test;
+import org.neo4j.io.pagecache.PagedFile;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+public class MixedLengthIndexTest {
+
+    @Test
+    public void keysOfEachLengthUncompressed() throws IOException {
+        keysOfEachLength(false);
+    }
+
+    @Test
+    public void keysOfEachLengthCompressed() throws IOException {
+        keysOfEachLength(true);
+    }
+
+    /*
+    The paths of every length share their path ids and first nodes, only the length keeps them apart.
+     */
+    private void keysOfEachLength(boolean compressed) throws IOException {
+        DiskCache disk = DiskCache.temporaryDiskCache("mixed_length_test.dat", compressed);
+        MixedLengthIndex index = new MixedLengthIndex(disk, 5);
+        int paths = 8000;
+        for(int i = 0; i < paths; i++){
+            for(int length = 3; length <= 5; length++){
+                index.insert(key(length, i));
+            }
+        }
+        for(int i = 0; i < paths; i += 4){
+            index.remove(key(4, i));
+        }
+        try(PageProxyCursor cursor = disk.getCursor(index.tree.rootNodeId, PagedFile.PF_SHARED_LOCK)){
+            for(int length = 3; length <= 5; length++){
+                int expectedLength = length;
+                int[] found = new int[1];
+                index.forEach(cursor, length, new long[]{1}, key -> {
+                    assert(key.length == expectedLength);
+                    assert(key[0] == 1 && key[2] == key[1] * 3) : Arrays.toString(key);
+                    found[0]++;
+                    return true;
+                });
+                assert(found[0] == (length == 4 ? paths / 4 : paths / 2)) : length + " " + found[0];
+            }
+            long[] key = new long[5];
+            SearchCursor results = index.find(cursor, 5, new long[]{2, 7});
+            assert(index.next(results, cursor, key));
+            assert(Arrays.equals(key, key(5, 7)));
+            assert(!index.next(results, cursor, key));
+            long[] next = new long[]{0};
+            long visited = index.findColumn(cursor, 3, new long[]{1}, 1, value -> {
+                assert(value == next[0]) : value;
+                next[0] += 2;
+                return true;
+            });
+            assert(visited == paths / 2);
+        }
+        disk.shutdown();
+    }
+
+    /*
+    With the length and padding left out, a stored key which differs from the key before within its first three
+    columns is delta encoded in as many bytes as the key in a tree of its own.
+     */
+    @Test
+    public void storedKeysEncodeAsTheirOwn(){
+        Random random = new Random(3);
+        for(int length = 2; length <= 5; length++){
+            long[] prev = new long[length];
+            for(int i = 0; i < 1000; i++){
+                long[] key = prev.clone();
+                int changed = random.nextInt(Math.min(length, 3));
+                key[changed] += 1 + random.nextInt(1 << (8 * (1 + random.nextInt(3))));
+                for(int column = changed + 1; column < length; column++){
+                    key[column] = random.nextInt(1 << 20);
+                }
+                assert(SuperCompressedPageCursor.encodedLength(MixedLengthIndex.storedKey(key, 5), MixedLengthIndex.storedKey(prev, 5)) ==
+                        SuperCompressedPageCursor.encodedLength(key, prev)) : length + " " + Arrays.toString(key);
+                prev = key;
+            }
+        }
+    }
+
+    private long[] key(int length, int i){
+        long[] key = new long[length];
+        key[0] = 1 + (i % 2);
+        for(int column = 1; column < length; column++){
+            key[column] = i * (column == 1 ? 1 : 3l);
+        }
+        return key;
+    }
+}
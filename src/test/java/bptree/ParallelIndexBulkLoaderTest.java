@@ -0,0 +1,79 @@
+package bptree;
+
+import bptree.impl.IndexBulkLoader;
+import bptree.impl.IndexTree;
+import bptree.impl.NodeHeader;
+import bptree.impl.ParallelIndexBulkLoader;
+import bptree.impl.SearchCursor;
+import bptree.impl.SimpleDataGenerator;
+import org.junit.After;
+import org.junit.Test;
+import org.neo4j.io.pagecache.PagedFile;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+public class ParallelIndexBulkLoaderTest {
+    SimpleDataGenerator dataGenerator;
+    int numberOfPages = 3000;
+
+    @After
+    public void shutdown() throws IOException {
+        dataGenerator.disk.shutdown();
+    }
+
+    @Test
+    public void singleThreaded() throws IOException {
+        loadAndFindEveryLeaf(1);
+    }
+
+    @Test
+    public void multiThreaded() throws IOException {
+        loadAndFindEveryLeaf(4);
+    }
+
+    /*
+    Small chunks, so every level above the leaves is split over several tasks.
+     */
+    private void loadAndFindEveryLeaf(int threads) throws IOException {
+        dataGenerator = new SimpleDataGenerator(numberOfPages);
+        ParallelIndexBulkLoader bulkLoader = new ParallelIndexBulkLoader(dataGenerator.disk, numberOfPages, dataGenerator.keyLength);
+        bulkLoader.THREADS = threads;
+        bulkLoader.NODES_PER_CHUNK = 2;
+        IndexTree tree = bulkLoader.run();
+        int keysPerPage = dataGenerator.keysPerPage;
+        try(PageProxyCursor cursor = dataGenerator.disk.getCursor(tree.rootNodeId, PagedFile.PF_SHARED_LOCK)){
+            assert(!NodeHeader.isLeafNode(cursor));
+            long[] found = new long[dataGenerator.keyLength];
+            for(int page = 0; page < numberOfPages; page++){
+                for(long value : new long[]{(long) page * keysPerPage + 1, (long) (page + 1) * keysPerPage}){
+                    long[] key = new long[dataGenerator.keyLength];
+                    Arrays.fill(key, value);
+                    SearchCursor results = tree.find(cursor, key);
+                    assert(results.next(cursor, found) && Arrays.equals(found, key)) : Arrays.toString(key);
+                }
+            }
+        }
+    }
+
+    /*
+    The generated leaves are packed full, as Sorter packs them, so neither loader can leave space in them.
+     */
+    @Test
+    public void fillFactorOverFullLeavesIsRejected() throws IOException {
+        dataGenerator = new SimpleDataGenerator(numberOfPages);
+        try{
+            new ParallelIndexBulkLoader(dataGenerator.disk, numberOfPages, dataGenerator.keyLength, 0.7);
+            assert(false);
+        }
+        catch(IllegalArgumentException expected){
+        }
+        try{
+            new IndexBulkLoader(dataGenerator.disk, numberOfPages, dataGenerator.keyLength, 0.7);
+            assert(false);
+        }
+        catch(IllegalArgumentException expected){
+        }
+        new ParallelIndexBulkLoader(dataGenerator.disk, numberOfPages, dataGenerator.keyLength, 1.0);
+    }
+}
@@ -0,0 +1,113 @@
+package bptree;
+
+import PageCacheSort.Sorter;
+import bptree.impl.DiskCache;
+import bptree.impl.IndexTree;
+import bptree.impl.NodeHeader;
+import bptree.impl.NodeSize;
+import bptree.impl.PipelinedIndexBuilder;
+import bptree.impl.SearchCursor;
+import org.junit.After;
+import org.junit.Test;
+import org.neo4j.io.pagecache.PagedFile;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class PipelinedIndexBuilderTest {
+    DiskCache disk;
+    IndexTree tree;
+    int numberOfKeys = 300000;
+
+    @After
+    public void shutdown() throws IOException {
+        disk.shutdown();
+    }
+
+    @Test
+    public void sortIntoIndexUncompressed() throws IOException {
+        sortIntoIndex(false);
+    }
+
+    @Test
+    public void sortIntoIndexCompressed() throws IOException {
+        sortIntoIndex(true);
+    }
+
+    /*
+    Keys are [1 + (i % 3), random, i], added in random order to a sorter with a small fan in, so the final merge
+    which feeds the builder follows merge passes.
+     */
+    private void sortIntoIndex(boolean compressed) throws IOException {
+        Random random = new Random(5);
+        List<long[]> keys = new ArrayList<>();
+        for(int i = 0; i < numberOfKeys; i++){
+            keys.add(new long[]{1 + (i % 3), random.nextInt(100000), i});
+        }
+        Sorter sorter = new Sorter(3);
+        sorter.FAN_IN = 8;
+        for(int i = keys.size() - 1; i >= 0; i--){
+            sorter.addUnsortedKey(keys.get((int) ((i * 7919l) % keys.size())));
+        }
+        keys.sort(bptree.impl.KeyImpl.getComparator());
+        disk = DiskCache.temporaryDiskCache("pipelined_test.dat", compressed);
+        tree = sorter.sortInto(new PipelinedIndexBuilder(disk, 3));
+        try(PageProxyCursor cursor = disk.getCursor(tree.rootNodeId, PagedFile.PF_SHARED_LOCK)){
+            assert(!NodeHeader.isLeafNode(cursor));
+            int found = 0;
+            long[] key = new long[3];
+            for(long path = 1; path <= 3; path++){
+                SearchCursor results = tree.find(cursor, new long[]{path});
+                while(results.next(cursor, key)){
+                    assert(Arrays.equals(key, keys.get(found))) : Arrays.toString(key) + " at " + found;
+                    found++;
+                }
+            }
+            assert(found == numberOfKeys);
+            for(int i = 0; i < 1000; i++){
+                long[] probe = keys.get(random.nextInt(numberOfKeys));
+                SearchCursor results = tree.find(cursor, probe);
+                assert(results.next(cursor, key) && Arrays.equals(key, probe));
+            }
+        }
+        for(int i = 0; i < 2000; i++){
+            tree.insert(new long[]{2, random.nextInt(100000), numberOfKeys + i});
+        }
+        try(PageProxyCursor cursor = disk.getCursor(tree.rootNodeId, PagedFile.PF_SHARED_LOCK)){
+            SearchCursor results = tree.find(cursor, new long[]{2});
+            long[] key = new long[3];
+            long[] prev = new long[3];
+            int found = 0;
+            while(results.next(cursor, key)){
+                assert(bptree.impl.KeyImpl.getComparator().compare(prev, key) < 0);
+                System.arraycopy(key, 0, prev, 0, 3);
+                found++;
+            }
+            assert(found == numberOfKeys / 3 + 2000);
+        }
+    }
+
+    /*
+    A leaf filled to 70% takes the next key without a split, so no page is acquired.
+     */
+    @Test
+    public void fillFactorLeavesSpaceForInserts() throws IOException {
+        disk = DiskCache.temporaryDiskCache("pipelined_fill_test.dat", false);
+        PipelinedIndexBuilder builder = new PipelinedIndexBuilder(disk, 3, 0.7);
+        for(int i = 0; i < 100000; i++){
+            builder.addKey(new long[]{1, i * 2l, i * 2l});
+        }
+        tree = builder.finish();
+        try(PageProxyCursor cursor = disk.getCursor(0, PagedFile.PF_SHARED_LOCK)){
+            int keysPerFilledLeaf = (NodeSize.bulkLoadedPageBytes(0.7) - NodeHeader.NODE_HEADER_LENGTH) / (3 * 8);
+            int keys = NodeHeader.getNumberOfKeys(cursor);
+            assert(keys == keysPerFilledLeaf) : keys;
+        }
+        long pages = disk.freePages.nextNewPage();
+        tree.insert(new long[]{1, 1, 1});
+        assert(disk.freePages.nextNewPage() == pages);
+    }
+}
@@ -0,0 +1,92 @@
+package bptree;
+
+import bptree.impl.DiskCache;
+import bptree.impl.IndexSearch;
+import bptree.impl.IndexTree;
+import bptree.impl.SearchCursor;
+import org.junit.After;
+import org.junit.Test;
+import org.neo4j.io.pagecache.PagedFile;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+public class SeekToTest {
+    DiskCache disk;
+    IndexTree tree;
+    int numberOfKeys = 40000;
+
+    @After
+    public void shutdown() throws IOException {
+        disk.shutdown();
+    }
+
+    @Test
+    public void seekToMatchesScanUncompressed() throws IOException {
+        seekToMatchesScan(false);
+    }
+
+    @Test
+    public void seekToMatchesScanCompressed() throws IOException {
+        seekToMatchesScan(true);
+    }
+
+    /*
+    A cursor from IndexSearch rather than IndexTree.find seeks further than SEEK_SIBLING_HOPS leaves from the root.
+     */
+    @Test
+    public void seekFromIndexSearchCursor() throws IOException {
+        disk = DiskCache.temporaryDiskCache("seek_to_test.dat", false);
+        tree = new IndexTree(3, disk);
+        for(int i = 0; i < numberOfKeys; i++){
+            tree.insert(new long[]{1 + (i % 2), i, 3 * i});
+        }
+        long[] key = new long[3];
+        try(PageProxyCursor cursor = disk.getCursor(tree.rootNodeId, PagedFile.PF_SHARED_LOCK)){
+            SearchCursor results = new IndexSearch(tree).findWithCursor(cursor, new long[]{1});
+            results.seekTo(cursor, new long[]{1, numberOfKeys - 10});
+            assert(results.next(cursor, key));
+            assert(Arrays.equals(key, new long[]{1, numberOfKeys - 10, 3 * (numberOfKeys - 10)})) : Arrays.toString(key);
+        }
+    }
+
+    /*
+    Keys are [1 + (i % 2), i, 3 * i], seeks under path 1 land on every second key.
+     */
+    private void seekToMatchesScan(boolean compressed) throws IOException {
+        disk = DiskCache.temporaryDiskCache("seek_to_test.dat", compressed);
+        tree = new IndexTree(3, disk);
+        for(int i = 0; i < numberOfKeys; i++){
+            tree.insert(new long[]{1 + (i % 2), i, 3 * i});
+        }
+        Random random = new Random(7);
+        long[] key = new long[3];
+        try(PageProxyCursor cursor = disk.getCursor(tree.rootNodeId, PagedFile.PF_SHARED_LOCK)){
+            SearchCursor results = new SearchCursor();
+            tree.find(cursor, new long[]{1}, results);
+            long target = 0;
+            while(true){
+                target += 1 + random.nextInt(random.nextBoolean() ? 10 : 4000); //within a leaf, and leaves ahead
+                results.seekTo(cursor, new long[]{1, target});
+                long expected = target % 2 == 0 ? target : target + 1;
+                if(expected >= numberOfKeys){
+                    assert(!results.next(cursor, key));
+                    break;
+                }
+                assert(results.next(cursor, key));
+                assert(Arrays.equals(key, new long[]{1, expected, 3 * expected})) : Arrays.toString(key) + " for " + target;
+                results.seekTo(cursor, new long[]{1, expected - 100}); //backwards does nothing
+                if(!results.next(cursor, key)){
+                    assert(expected + 2 >= numberOfKeys);
+                    break;
+                }
+                assert(key[1] == expected + 2);
+                target = key[1];
+            }
+            tree.find(cursor, new long[]{2, 501}, results);
+            results.seekTo(cursor, new long[]{2, 501, 3 * 501 + 1}); //past the only key matching the prefix
+            assert(!results.next(cursor, key));
+        }
+    }
+}
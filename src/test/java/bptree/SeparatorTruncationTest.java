@@ -0,0 +1,145 @@
+package bptree;
+
+import bptree.impl.DiskCache;
+import bptree.impl.IndexTree;
+import bptree.impl.NodeHeader;
+import bptree.impl.SearchCursor;
+import bptree.impl.SeparatorTruncation;
+import org.junit.Test;
+import org.neo4j.io.pagecache.PageCursor;
+import org.neo4j.io.pagecache.PagedFile;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+public class SeparatorTruncationTest {
+    static final long PAD = SeparatorTruncation.PADDING;
+
+    @Test
+    public void separatorIsTheShortestBetweenTheKeys(){
+        assert(Arrays.equals(SeparatorTruncation.shortestSeparator(new long[]{1, 5, 9}, new long[]{2, 0, 3}), new long[]{2, PAD, PAD}));
+        assert(Arrays.equals(SeparatorTruncation.shortestSeparator(new long[]{1, 5, 9}, new long[]{1, 6, 3}), new long[]{1, 6, PAD}));
+        assert(Arrays.equals(SeparatorTruncation.shortestSeparator(new long[]{1, 5, 9}, new long[]{1, 5, 10}), new long[]{1, 5, 10}));
+    }
+
+    /*
+    400 separators of three columns are more than a page whole, but share their first column and have no third.
+     */
+    @Test
+    public void internalNodeLargerThanAPageWhole() throws IOException {
+        DiskCache disk = DiskCache.temporaryDiskCache("separator_truncation_test.dat", true);
+        int separators = 400;
+        try(PageProxyCursor cursor = disk.getCursor(0, PagedFile.PF_EXCLUSIVE_LOCK)){
+            NodeHeader.initializeInternalNode(cursor);
+            NodeHeader.setKeyLength(cursor, 3);
+            NodeHeader.setNumberOfKeys(cursor, separators);
+            cursor.setOffset(NodeHeader.NODE_HEADER_LENGTH);
+            for(int i = 0; i <= separators; i++){
+                cursor.putLong(100 + i);
+            }
+            for(int i = 0; i < separators; i++){
+                cursor.putLong(7);
+                cursor.putLong(1000 + i * 3);
+                cursor.putLong(PAD);
+            }
+            assert(cursor.internalNodeContainsSpaceForNewKeyAndChild(new long[]{7, 5000, PAD}));
+            assert(!cursor.internalNodeContainsSpaceForNewKeyAndChild(new long[]{8, 5000, 1}));
+        }
+        try(PageCursor page = disk.pagedFile.io(0, PagedFile.PF_SHARED_LOCK)){
+            page.next();
+            assert((page.getByte(NodeHeader.BYTE_POSITION_NODE_TYPE) & NodeHeader.TRUNCATED_KEYS_FLAG) != 0);
+        }
+        try(PageProxyCursor cursor = disk.getCursor(0, PagedFile.PF_SHARED_LOCK)){
+            assert(!NodeHeader.isLeafNode(cursor));
+            assert(NodeHeader.getNumberOfKeys(cursor) == separators);
+            assert((cursor.getByte(NodeHeader.BYTE_POSITION_NODE_TYPE) & NodeHeader.TRUNCATED_KEYS_FLAG) == 0);
+            cursor.setOffset(NodeHeader.NODE_HEADER_LENGTH);
+            for(int i = 0; i <= separators; i++){
+                assert(cursor.getLong() == 100 + i);
+            }
+            for(int i = 0; i < separators; i++){
+                assert(cursor.getLong() == 7);
+                assert(cursor.getLong() == 1000 + i * 3);
+                assert(cursor.getLong() == PAD);
+            }
+        }
+        disk.shutdown();
+    }
+
+    /*
+    One separator kept whole among 400 which have no third column. Were it to widen the others, they would not fit.
+     */
+    @Test
+    public void wholeSeparatorDoesNotWidenTheOthers() throws IOException {
+        DiskCache disk = DiskCache.temporaryDiskCache("separator_truncation_test.dat", true);
+        int separators = 400;
+        int whole = 200;
+        try(PageProxyCursor cursor = disk.getCursor(0, PagedFile.PF_EXCLUSIVE_LOCK)){
+            NodeHeader.initializeInternalNode(cursor);
+            NodeHeader.setKeyLength(cursor, 3);
+            NodeHeader.setNumberOfKeys(cursor, separators);
+            cursor.setOffset(NodeHeader.NODE_HEADER_LENGTH);
+            for(int i = 0; i <= separators; i++){
+                cursor.putLong(100 + i);
+            }
+            for(int i = 0; i < separators; i++){
+                cursor.putLong(7);
+                cursor.putLong(1000 + i * 3);
+                cursor.putLong(i == whole ? 9 : PAD);
+            }
+            assert(cursor.internalNodeContainsSpaceForNewKeyAndChild(new long[]{7, 5000, PAD}));
+        }
+        try(PageProxyCursor cursor = disk.getCursor(0, PagedFile.PF_SHARED_LOCK)){
+            assert(NodeHeader.getNumberOfKeys(cursor) == separators);
+            cursor.setOffset(NodeHeader.NODE_HEADER_LENGTH + ((separators + 1) * 8));
+            for(int i = 0; i < separators; i++){
+                assert(cursor.getLong() == 7);
+                assert(cursor.getLong() == 1000 + i * 3);
+                assert(cursor.getLong() == (i == whole ? 9 : PAD)) : i;
+            }
+        }
+        disk.shutdown();
+    }
+
+    @Test
+    public void keysAreFoundUncompressed() throws IOException {
+        keysAreFound(false);
+    }
+
+    @Test
+    public void keysAreFoundCompressed() throws IOException {
+        keysAreFound(true);
+    }
+
+    private void keysAreFound(boolean compressed) throws IOException {
+        DiskCache disk = DiskCache.temporaryDiskCache("separator_truncation_test.dat", compressed);
+        IndexTree tree = new IndexTree(3, disk);
+        Random random = new Random(11);
+        long[][] keys = new long[60000][];
+        for(int i = 0; i < keys.length; i++){
+            keys[i] = new long[]{1 + (i % 3), random.nextInt(1 << 20), i};
+            tree.insert(keys[i]);
+        }
+        try(PageProxyCursor cursor = disk.getCursor(tree.rootNodeId, PagedFile.PF_SHARED_LOCK)){
+            assert(!NodeHeader.isLeafNode(cursor));
+            for(int i = 0; i < keys.length; i += 7){
+                SearchCursor results = tree.find(cursor, keys[i]);
+                assert(Arrays.equals(results.next(cursor), keys[i])) : i;
+            }
+            for(long path = 1; path <= 3; path++){
+                long[] key = new long[3];
+                long[] previous = null;
+                int found = 0;
+                SearchCursor results = tree.find(cursor, new long[]{path});
+                while(results.next(cursor, key)){
+                    assert(previous == null || IndexTree.comparator.compare(previous, key) < 0);
+                    previous = key.clone();
+                    found++;
+                }
+                assert(found == keys.length / 3) : path + " " + found;
+            }
+        }
+        disk.shutdown();
+    }
+}
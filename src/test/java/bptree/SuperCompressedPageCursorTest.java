@@ -0,0 +1,197 @@
+package bptree;
+
+import bptree.impl.DiskCache;
+import bptree.impl.IndexSearch;
+import bptree.impl.NodeHeader;
+import bptree.impl.SuperCompressedPageCursor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.io.pagecache.PageCursor;
+import org.neo4j.io.pagecache.PagedFile;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+public class SuperCompressedPageCursorTest {
+    DiskCache disk;
+    int keyLength = 3;
+    int numberOfKeys = 300;
+
+    @Before
+    public void writeCompressedLeaf() throws IOException {
+        disk = DiskCache.temporaryDiskCache("super_compressed_test.dat", true);
+        try(PageProxyCursor cursor = disk.getCursor(0, PagedFile.PF_EXCLUSIVE_LOCK)){
+            NodeHeader.initializeLeafNode(cursor, keyLength);
+            cursor.deferWriting();
+            NodeHeader.setNumberOfKeys(cursor, numberOfKeys);
+            cursor.setOffset(NodeHeader.NODE_HEADER_LENGTH);
+            for(int i = 0; i < numberOfKeys; i++){
+                for(long val : key(i)){
+                    cursor.putLong(val);
+                }
+            }
+            cursor.resumeWriting();
+        }
+    }
+
+    @After
+    public void shutdown() throws IOException {
+        disk.shutdown();
+    }
+
+    private long[] key(int i){
+        return new long[]{10 + (i / 50), 1000 + (i / 3), 5000 + (i * 7)};
+    }
+
+    private long[] readKey(PageProxyCursor cursor, int i){
+        long[] key = new long[keyLength];
+        for(int j = 0; j < keyLength; j++){
+            key[j] = cursor.getLong(NodeHeader.NODE_HEADER_LENGTH + (i * keyLength * 8) + (j * 8));
+        }
+        return key;
+    }
+
+    @Test
+    public void streamingAndFullDecodeAgree() throws IOException {
+        for(boolean streaming : new boolean[]{true, false}) {
+            try (PageProxyCursor cursor = new SuperCompressedPageCursor(disk, 0, PagedFile.PF_SHARED_LOCK, streaming)) {
+                assert(NodeHeader.getNumberOfKeys(cursor) == numberOfKeys);
+                assert(NodeHeader.getKeyLength(cursor) == keyLength);
+                for (int i = 0; i < numberOfKeys; i++) {
+                    assert(Arrays.equals(readKey(cursor, i), key(i)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void streamingDecodeReadsOutOfOrder() throws IOException {
+        try(PageProxyCursor cursor = new SuperCompressedPageCursor(disk, 0, PagedFile.PF_SHARED_LOCK, true)){
+            assert(Arrays.equals(readKey(cursor, 5), key(5)));
+            assert(Arrays.equals(readKey(cursor, numberOfKeys - 1), key(numberOfKeys - 1)));
+            assert(Arrays.equals(readKey(cursor, 0), key(0)));
+            cursor.setOffset(NodeHeader.NODE_HEADER_LENGTH);
+            byte[] firstKey = new byte[keyLength * 8];
+            cursor.getBytes(firstKey);
+            assert(java.nio.ByteBuffer.wrap(firstKey).getLong(16) == key(0)[2]);
+        }
+    }
+
+    @Test
+    public void writeAfterPartialStreamingRead() throws IOException {
+        try(PageProxyCursor cursor = new SuperCompressedPageCursor(disk, 0, PagedFile.PF_EXCLUSIVE_LOCK, true)){
+            assert(Arrays.equals(readKey(cursor, 1), key(1)));
+            cursor.putLong(NodeHeader.NODE_HEADER_LENGTH + 8, 999);
+        }
+        try(PageProxyCursor cursor = new SuperCompressedPageCursor(disk, 0, PagedFile.PF_SHARED_LOCK, true)){
+            assert(readKey(cursor, 0)[1] == 999);
+            for(int i = 1; i < numberOfKeys; i++){
+                assert(Arrays.equals(readKey(cursor, i), key(i)));
+            }
+        }
+    }
+
+    @Test
+    public void changesAreEncodedWhenTheCursorMoves() throws IOException {
+        long[] added = key(numberOfKeys);
+        try(PageProxyCursor cursor = new SuperCompressedPageCursor(disk, 0, PagedFile.PF_EXCLUSIVE_LOCK, true)){
+            NodeHeader.setNumberOfKeys(cursor, numberOfKeys + 1);
+            cursor.setOffset(NodeHeader.NODE_HEADER_LENGTH + (numberOfKeys * keyLength * 8));
+            for(long val : added){
+                cursor.putLong(val);
+            }
+            cursor.next(1);
+            NodeHeader.initializeLeafNode(cursor, keyLength);
+            cursor.next(0);
+            assert(NodeHeader.getNumberOfKeys(cursor) == numberOfKeys + 1);
+            assert(Arrays.equals(readKey(cursor, numberOfKeys), added));
+        }
+        try(PageProxyCursor cursor = new SuperCompressedPageCursor(disk, 1, PagedFile.PF_SHARED_LOCK, true)){
+            assert(NodeHeader.isLeafNode(cursor) && NodeHeader.getKeyLength(cursor) == keyLength);
+        }
+    }
+
+    /*
+    The first leaf holds deltas of every width, the second is filled to the last byte of the page with eight byte
+    deltas, so the last values are read from the end of the page.
+     */
+    @Test
+    public void decodesDeltasOfEveryWidth() throws IOException {
+        long[][] widths = new long[300][];
+        for(int i = 0; i < widths.length; i++){
+            long magnitude = 1l << ((i % 8) * 8 + 3);
+            widths[i] = new long[]{i + 1, i % 2 == 0 ? magnitude : -magnitude, magnitude + i};
+        }
+        long[][] full = new long[325][];
+        for(int i = 0; i < full.length; i++){
+            long large = i % 2 == 0 ? Long.MAX_VALUE / 2 : -(Long.MAX_VALUE / 2);
+            full[i] = new long[]{i + 1, large, -large};
+        }
+        writeLeaf(1, widths);
+        writeLeaf(2, full);
+        for(boolean streaming : new boolean[]{true, false}) {
+            try (PageProxyCursor cursor = new SuperCompressedPageCursor(disk, 1, PagedFile.PF_SHARED_LOCK, streaming)) {
+                for (int i = 0; i < widths.length; i++) {
+                    assert(Arrays.equals(readKey(cursor, i), widths[i]));
+                }
+                cursor.next(2);
+                for (int i = full.length - 1; i >= 0; i--) {
+                    assert(Arrays.equals(readKey(cursor, i), full[i]));
+                }
+            }
+        }
+    }
+
+    /*
+    Each key is alone in its leaf, so it is encoded against zero and its values are stored as they are. The middle
+    value, 2^(8n-1), is one past the range of n signed bytes, which the other values of the key fit in.
+     */
+    @Test
+    public void decodesValuesAtTheEdgeOfEachWidth() throws IOException {
+        long[][] edges = new long[7][];
+        for(int n = 1; n <= edges.length; n++){
+            long edge = 1l << (n * 8 - 1);
+            edges[n - 1] = new long[]{edge - 1, edge, -edge};
+            writeLeaf(n, new long[][]{edges[n - 1]});
+        }
+        try(PageProxyCursor cursor = new SuperCompressedPageCursor(disk, 1, PagedFile.PF_SHARED_LOCK, true)){
+            for(int n = 1; n <= edges.length; n++){
+                cursor.next(n);
+                assert(Arrays.equals(readKey(cursor, 0), edges[n - 1])) : Arrays.toString(readKey(cursor, 0));
+            }
+        }
+    }
+
+    private void writeLeaf(long page, long[][] keys) throws IOException {
+        try(PageProxyCursor cursor = disk.getCursor(page, PagedFile.PF_EXCLUSIVE_LOCK)){
+            NodeHeader.initializeLeafNode(cursor, keyLength);
+            NodeHeader.setNumberOfKeys(cursor, keys.length);
+            cursor.setOffset(NodeHeader.NODE_HEADER_LENGTH);
+            for(long[] key : keys){
+                for(long val : key){
+                    cursor.putLong(val);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void searchDecodesFromRestartPoints() throws IOException {
+        try(PageCursor page = disk.pagedFile.io(0, PagedFile.PF_SHARED_LOCK)){
+            page.next();
+            assert(NodeHeader.hasRestartPoints(page));
+        }
+        for(int i = numberOfKeys - 1; i >= 0; i -= 37){
+            try(PageProxyCursor cursor = new SuperCompressedPageCursor(disk, 0, PagedFile.PF_SHARED_LOCK, true)){
+                assert(IndexSearch.search(cursor, key(i))[0] == i);
+                assert(IndexSearch.search(cursor, new long[]{key(i)[0], key(i)[1]})[0] <= i);
+                assert(Arrays.equals(readKey(cursor, i), key(i)));
+            }
+        }
+        try(PageProxyCursor cursor = new SuperCompressedPageCursor(disk, 0, PagedFile.PF_SHARED_LOCK, true)){
+            assert(IndexSearch.search(cursor, new long[]{Long.MAX_VALUE, 0, 0})[0] == numberOfKeys);
+            assert(IndexSearch.search(cursor, new long[]{Long.MIN_VALUE, 0, 0})[0] == 0);
+        }
+    }
+}
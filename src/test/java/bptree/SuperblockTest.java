@@ -0,0 +1,82 @@
+package bptree;
+
+import bptree.impl.DiskCache;
+import bptree.impl.IndexTree;
+import bptree.impl.NodeHeader;
+import bptree.impl.SearchCursor;
+import bptree.impl.Superblock;
+import org.junit.Test;
+import org.neo4j.io.pagecache.PagedFile;
+
+import java.io.File;
+import java.io.IOException;
+
+public class SuperblockTest {
+
+    @Test
+    public void reopenUncompressedIndexFromSuperblock() throws IOException {
+        reopenIndexFromSuperblock(false);
+    }
+
+    @Test
+    public void reopenCompressedIndexFromSuperblock() throws IOException {
+        reopenIndexFromSuperblock(true);
+    }
+
+    /*
+    The index is reopened twice, so the second superblock is written over the first rather than after it.
+     */
+    private void reopenIndexFromSuperblock(boolean compressed) throws IOException {
+        File file = new File("superblock_test.dat");
+        file.delete();
+        DiskCache disk = DiskCache.persistentDiskCache(file.getPath(), compressed);
+        IndexTree tree = new IndexTree(3, disk);
+        for(int i = 0; i < 50000; i++){
+            tree.insert(new long[]{1 + (i % 4), i, i});
+        }
+        long root = tree.rootNodeId;
+        disk.shutdown();
+
+        for(int reopen = 0; reopen < 2; reopen++){
+            tree = DiskCache.openIndex(file.getPath());
+            Superblock superblock = tree.disk.superblock;
+            assert(tree.rootNodeId == root && tree.keySize == 3);
+            assert(tree.disk.COMPRESSION == compressed);
+            try(PageProxyCursor cursor = tree.disk.getCursor(superblock.firstLeaf, PagedFile.PF_SHARED_LOCK)){
+                assert(NodeHeader.isLeafNode(cursor) && NodeHeader.getPrecedingID(cursor) == -1);
+                cursor.next(superblock.lastLeaf);
+                assert(NodeHeader.isLeafNode(cursor) && NodeHeader.getSiblingID(cursor) == -1);
+                cursor.next(root);
+                long[] key = new long[3];
+                int found = 0;
+                SearchCursor results = tree.find(cursor, new long[]{2});
+                while(results.next(cursor, key)){
+                    found++;
+                }
+                assert(found == 12500) : found;
+            }
+            tree.disk.shutdown();
+        }
+        file.delete();
+    }
+
+    @Test
+    public void secondIndexOnADiskIsRejected() throws IOException {
+        DiskCache disk = DiskCache.temporaryDiskCache("superblock_second_index_test.dat", false);
+        IndexTree tree = new IndexTree(3, disk);
+        try{
+            new IndexTree(3, disk);
+            assert(false);
+        }
+        catch(IllegalStateException expected){
+        }
+        try{
+            new IndexTree(3, tree.rootNodeId, disk);
+            assert(false);
+        }
+        catch(IllegalStateException expected){
+        }
+        assert(disk.index == tree);
+        disk.shutdown();
+    }
+}
@@ -0,0 +1,190 @@
+package bptree;
+
+import bptree.impl.DiskCache;
+import bptree.impl.IndexTree;
+import bptree.impl.SearchCursor;
+import bptree.impl.WriteAheadLog;
+import org.junit.Test;
+import org.neo4j.io.pagecache.PagedFile;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+public class WriteAheadLogTest {
+
+    @Test
+    public void recoverUncompressedIndexFromLog() throws IOException {
+        recoverIndexFromLog(false);
+    }
+
+    @Test
+    public void recoverCompressedIndexFromLog() throws IOException {
+        recoverIndexFromLog(true);
+    }
+
+    /*
+    The crash is simulated by copying the file as it was at the checkpoint, before any logged insert reached it, along
+    with the log as it is after the inserts and a torn record at its end.
+     */
+    private void recoverIndexFromLog(boolean compressed) throws IOException {
+        File file = new File("wal_test.dat");
+        File crashed = new File("wal_test_crashed.dat");
+        file.delete();
+        crashed.delete();
+        WriteAheadLog.logFile(crashed).delete();
+        DiskCache disk = DiskCache.persistentDiskCache(file.getPath(), compressed);
+        IndexTree tree = new IndexTree(3, disk);
+        for(int i = 0; i < 5000; i++){
+            tree.insert(new long[]{1, i, i});
+        }
+        tree.openWriteAheadLog();
+        disk.wal.SYNC_COMMIT = false; //the copy below reads the log whether or not it was forced
+        Files.copy(file.toPath(), crashed.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        for(int i = 0; i < 3000; i++){
+            tree.insert(new long[]{2, i, i});
+        }
+        for(int i = 0; i < 3000; i += 2){
+            tree.remove(new long[]{1, i, i});
+        }
+        Files.copy(WriteAheadLog.logFile(file).toPath(), WriteAheadLog.logFile(crashed).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        try(FileOutputStream log = new FileOutputStream(WriteAheadLog.logFile(crashed), true)){
+            log.write(new byte[]{0, 0, 1, 0, 7, 7, 7});
+        }
+        disk.shutdown();
+        assert(!WriteAheadLog.logFile(file).exists());
+
+        tree = DiskCache.openIndex(crashed.getPath());
+        assert(tree.keySize == 3 && tree.disk.COMPRESSION == compressed);
+        assert(count(tree, 1) == 3500);
+        assert(count(tree, 2) == 3000);
+        tree.disk.shutdown();
+        file.delete();
+        crashed.delete();
+        WriteAheadLog.logFile(crashed).delete();
+    }
+
+    @Test
+    public void replayUncompressedLogOverPagesWrittenSinceCheckpoint() throws IOException {
+        replayLogOverPagesWrittenSinceCheckpoint(false);
+    }
+
+    @Test
+    public void replayCompressedLogOverPagesWrittenSinceCheckpoint() throws IOException {
+        replayLogOverPagesWrittenSinceCheckpoint(true);
+    }
+
+    /*
+    The crash is simulated by copying the file after the page cache has written some of the logged mutations to it,
+    so the log is replayed from its checkpoint over leaves which already have some of its keys inserted and removed.
+     */
+    private void replayLogOverPagesWrittenSinceCheckpoint(boolean compressed) throws IOException {
+        File file = new File("wal_replay_test.dat");
+        File crashed = new File("wal_replay_test_crashed.dat");
+        file.delete();
+        crashed.delete();
+        WriteAheadLog.logFile(crashed).delete();
+        DiskCache disk = DiskCache.persistentDiskCache(file.getPath(), compressed);
+        IndexTree tree = new IndexTree(3, disk);
+        for(int i = 0; i < 5000; i++){
+            tree.insert(new long[]{1, i, i});
+        }
+        tree.openWriteAheadLog();
+        disk.wal.SYNC_COMMIT = false;
+        for(int i = 0; i < 3000; i++){
+            tree.insert(new long[]{2, i, i});
+        }
+        for(int i = 0; i < 2000; i += 2){
+            tree.remove(new long[]{1, i, i});
+        }
+        disk.pagedFile.flushAndForce(); //forces the log first
+        Files.copy(file.toPath(), crashed.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        for(int i = 0; i < 2000; i += 2){
+            tree.insert(new long[]{1, i, i});
+        }
+        for(int i = 0; i < 3000; i += 3){
+            tree.remove(new long[]{2, i, i});
+        }
+        Files.copy(WriteAheadLog.logFile(file).toPath(), WriteAheadLog.logFile(crashed).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        disk.shutdown();
+
+        tree = DiskCache.openIndex(crashed.getPath());
+        assert(count(tree, 1) == 5000);
+        assert(count(tree, 2) == 2000);
+        tree.disk.shutdown();
+        file.delete();
+        crashed.delete();
+        WriteAheadLog.logFile(crashed).delete();
+    }
+
+    @Test
+    public void recoverConcurrentWritersFromLog() throws Exception {
+        File file = new File("wal_concurrent_test.dat");
+        File crashed = new File("wal_concurrent_test_crashed.dat");
+        file.delete();
+        crashed.delete();
+        WriteAheadLog.logFile(crashed).delete();
+        DiskCache disk = DiskCache.persistentDiskCache(file.getPath(), true);
+        IndexTree tree = new IndexTree(3, disk);
+        tree.openWriteAheadLog();
+        Files.copy(file.toPath(), crashed.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Thread[] writers = new Thread[4];
+        for(int t = 0; t < writers.length; t++){
+            long prefix = t + 1;
+            writers[t] = new Thread(() -> {
+                for(int i = 0; i < 2000; i++){
+                    tree.insert(new long[]{prefix, i, i});
+                }
+            });
+            writers[t].start();
+        }
+        for(Thread writer : writers){
+            writer.join();
+        }
+        Files.copy(WriteAheadLog.logFile(file).toPath(), WriteAheadLog.logFile(crashed).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        disk.shutdown();
+
+        IndexTree recovered = DiskCache.openIndex(crashed.getPath());
+        for(int t = 0; t < writers.length; t++){
+            assert(count(recovered, t + 1) == 2000);
+        }
+        recovered.disk.shutdown();
+        file.delete();
+        crashed.delete();
+        WriteAheadLog.logFile(crashed).delete();
+    }
+
+    @Test
+    public void checkpointWhenLogIsFull() throws IOException {
+        File file = new File("wal_checkpoint_test.dat");
+        file.delete();
+        DiskCache disk = DiskCache.persistentDiskCache(file.getPath(), false);
+        IndexTree tree = new IndexTree(3, disk);
+        tree.openWriteAheadLog();
+        disk.wal.SYNC_COMMIT = false;
+        disk.wal.CHECKPOINT_BYTES = 64 * DiskCache.PAGE_SIZE;
+        long longest = 0;
+        for(int i = 0; i < 20000; i++){
+            tree.insert(new long[]{1, i, i});
+            longest = Math.max(longest, WriteAheadLog.logFile(file).length());
+        }
+        assert(longest < disk.wal.CHECKPOINT_BYTES + 8 * DiskCache.PAGE_SIZE); //one mutation past it at most
+        assert(count(tree, 1) == 20000);
+        disk.shutdown();
+        file.delete();
+    }
+
+    private int count(IndexTree tree, long prefix) throws IOException {
+        try(PageProxyCursor cursor = tree.disk.getCursor(tree.rootNodeId, PagedFile.PF_SHARED_LOCK)){
+            long[] key = new long[3];
+            int found = 0;
+            SearchCursor results = tree.find(cursor, new long[]{prefix});
+            while(results.next(cursor, key)){
+                found++;
+            }
+            return found;
+        }
+    }
+}